@@ -0,0 +1,31 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import net.sharksystem.asap.crypto.InMemoASAPKeyStore;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Two peers knowing each others keys - no PKI, no file system.
+ */
+class BenchmarkPeers {
+    static final String ALICE_ID = "ALICE_ID";
+    static final String BOB_ID = "BOB_ID";
+    static final String BOND_UNIT = "EURO";
+    static final int BOND_AMOUNT = 100;
+
+    final InMemoASAPKeyStore alice;
+    final InMemoASAPKeyStore bob;
+
+    BenchmarkPeers() throws ASAPSecurityException {
+        this.alice = new InMemoASAPKeyStore(ALICE_ID);
+        this.bob = new InMemoASAPKeyStore(BOB_ID);
+        this.alice.addKeyPair(BOB_ID, this.bob.getKeyPair());
+        this.bob.addKeyPair(ALICE_ID, this.alice.getKeyPair());
+    }
+
+    Set<CharSequence> toBob() {
+        return Collections.singleton(BOB_ID);
+    }
+}
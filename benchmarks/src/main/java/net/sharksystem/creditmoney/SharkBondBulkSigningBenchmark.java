@@ -0,0 +1,68 @@
+package net.sharksystem.creditmoney;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issuing BOND_COUNT bonds in one go: signed one after another, with SharkBondHelper.signAll and with one signed
+ * Merkle root. Bonds are created anew before each call - nothing is encoded yet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharkBondBulkSigningBenchmark {
+    private static final int BOND_COUNT = 256;
+
+    private BenchmarkPeers peers;
+    private List<SharkBond> sharkBonds;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.peers = new BenchmarkPeers();
+    }
+
+    @Setup(Level.Invocation)
+    public void createBonds() {
+        this.sharkBonds = new ArrayList<>(BOND_COUNT);
+        for (int i = 0; i < BOND_COUNT; i++) {
+            this.sharkBonds.add(new InMemoSharkBond(BenchmarkPeers.ALICE_ID, BenchmarkPeers.BOB_ID,
+                    BenchmarkPeers.BOND_UNIT, i, false));
+        }
+    }
+
+    @Benchmark
+    public List<SharkBond> signOneAfterAnother() throws Exception {
+        for (SharkBond sharkBond : this.sharkBonds) {
+            SharkBondHelper.signAsCreditor(this.peers.alice, sharkBond, false);
+        }
+
+        return this.sharkBonds;
+    }
+
+    @Benchmark
+    public List<SharkBond> signAll() throws Exception {
+        SharkBondHelper.signAll(this.peers.alice, this.sharkBonds, true);
+        return this.sharkBonds;
+    }
+
+    @Benchmark
+    public List<SharkBondInclusionProof> signAllByMerkleRoot() throws Exception {
+        return SharkBondHelper.signAllByMerkleRoot(this.peers.alice, this.sharkBonds);
+    }
+}
@@ -0,0 +1,83 @@
+package net.sharksystem.creditmoney;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catch-up after an encounter: BOND_COUNT bonds signed by both parties verified one after another and with
+ * SharkBondHelper.verifyAll on a pool of the given number of threads. The verification cache is emptied before each call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharkBondBulkVerificationBenchmark {
+    private static final int BOND_COUNT = 256;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private BenchmarkPeers peers;
+    private final List<SharkBond> sharkBonds = new ArrayList<>();
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.peers = new BenchmarkPeers();
+        for (int i = 0; i < BOND_COUNT; i++) {
+            SharkBond sharkBond = new InMemoSharkBond(BenchmarkPeers.ALICE_ID, BenchmarkPeers.BOB_ID,
+                    BenchmarkPeers.BOND_UNIT, i, false);
+            SharkBondHelper.signAsCreditor(this.peers.alice, sharkBond, false);
+            SharkBondHelper.signAsDebtor(this.peers.bob, sharkBond, false);
+            this.sharkBonds.add(sharkBond);
+        }
+        this.pool = new ForkJoinPool(this.threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.pool.shutdown();
+    }
+
+    @Benchmark
+    public int verifyOneAfterAnother() throws Exception {
+        this.forgetVerifications();
+        int verified = 0;
+        for (SharkBond sharkBond : this.sharkBonds) {
+            if (SharkBondHelper.isSignedAsCreditor(sharkBond, this.peers.bob)
+                    && SharkBondHelper.isSignedAsDebtor(sharkBond, this.peers.bob)) {
+                verified++;
+            }
+        }
+
+        return verified;
+    }
+
+    @Benchmark
+    public List<SharkBondVerification> verifyAll() throws InterruptedException {
+        this.forgetVerifications();
+        return SharkBondHelper.verifyAll(this.sharkBonds, this.peers.bob, this.pool);
+    }
+
+    private void forgetVerifications() {
+        SharkBondHelper.forgetVerifications(BenchmarkPeers.ALICE_ID);
+        SharkBondHelper.forgetVerifications(BenchmarkPeers.BOB_ID);
+    }
+}
@@ -0,0 +1,64 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing and checking bond signatures. changedBond variants change the bond first - no cached canonical form.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharkBondHelperBenchmark {
+    private BenchmarkPeers peers;
+    private SharkBond sharkBond;
+    private boolean allowedToChangeDebtor = false;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.peers = new BenchmarkPeers();
+        this.sharkBond = new InMemoSharkBond(BenchmarkPeers.ALICE_ID, BenchmarkPeers.BOB_ID,
+                BenchmarkPeers.BOND_UNIT, BenchmarkPeers.BOND_AMOUNT, false);
+        SharkBondHelper.signAsCreditor(this.peers.alice, this.sharkBond, false);
+        SharkBondHelper.signAsDebtor(this.peers.bob, this.sharkBond, false);
+    }
+
+    @Benchmark
+    public byte[] signAsCreditor() throws SharkCreditMoneyException, IOException, ASAPSecurityException {
+        SharkBondHelper.signAsCreditor(this.peers.alice, this.sharkBond, false);
+        return this.sharkBond.getCreditorSignature();
+    }
+
+    @Benchmark
+    public boolean isSignedAsCreditor() throws IOException, ASAPSecurityException {
+        return SharkBondHelper.isSignedAsCreditor(this.sharkBond, this.peers.bob);
+    }
+
+    @Benchmark
+    public boolean isSignedAsDebtor() throws IOException, ASAPSecurityException {
+        return SharkBondHelper.isSignedAsDebtor(this.sharkBond, this.peers.alice);
+    }
+
+    @Benchmark
+    public byte[] signChangedBond() throws SharkCreditMoneyException, IOException, ASAPSecurityException {
+        this.allowedToChangeDebtor = !this.allowedToChangeDebtor;
+        this.sharkBond.setAllowedToChangeDebtor(this.allowedToChangeDebtor);
+        SharkBondHelper.signAsCreditor(this.peers.alice, this.sharkBond, false);
+        return this.sharkBond.getCreditorSignature();
+    }
+}
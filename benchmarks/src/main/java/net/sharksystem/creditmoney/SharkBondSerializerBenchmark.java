@@ -0,0 +1,64 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Alice sends a signed bond to Bob - message as written by serializeCreditBond and read by deserializeCreditBond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharkBondSerializerBenchmark {
+    @Param({"plain", "signed", "encrypted", "signedAndEncrypted"})
+    public String payload;
+
+    private BenchmarkPeers peers;
+    private SharkBond sharkBond;
+    private Set<CharSequence> receiver;
+    private boolean sign;
+    private boolean encrypt;
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.peers = new BenchmarkPeers();
+        this.receiver = this.peers.toBob();
+        this.sign = this.payload.startsWith("signed");
+        this.encrypt = this.payload.endsWith("ncrypted");
+
+        this.sharkBond = new InMemoSharkBond(BenchmarkPeers.ALICE_ID, BenchmarkPeers.BOB_ID,
+                BenchmarkPeers.BOND_UNIT, BenchmarkPeers.BOND_AMOUNT, false);
+        SharkBondHelper.signAsCreditor(this.peers.alice, this.sharkBond, false);
+
+        this.message = this.serialize();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException, ASAPException {
+        return SharkBondSerializer.serializeCreditBond(this.sharkBond, BenchmarkPeers.ALICE_ID, this.receiver,
+                this.sign, this.encrypt, this.peers.alice, false);
+    }
+
+    @Benchmark
+    public SharkBond deserialize() throws IOException, ASAPException {
+        return SharkBondSerializer.deserializeCreditBond(this.message, this.peers.bob);
+    }
+}
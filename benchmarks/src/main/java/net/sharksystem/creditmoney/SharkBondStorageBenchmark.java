@@ -0,0 +1,105 @@
+package net.sharksystem.creditmoney;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries on a storage of bondCount bonds between PEER_COUNT peers. Each call asks for another bond or peer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SharkBondStorageBenchmark {
+    private static final int PEER_COUNT = 1000;
+    private static final int LOOKUP_COUNT = 1024;
+
+    @Param({"1000", "100000", "1000000"})
+    public int bondCount;
+
+    private SharkBondStorageImpl storage;
+    private final String[] bondIDs = new String[LOOKUP_COUNT];
+    private final String[] peerIDs = new String[LOOKUP_COUNT];
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws SharkCreditMoneyException {
+        Random random = new Random(42);
+        this.storage = new SharkBondStorageImpl();
+        for (int i = 0; i < this.bondCount; i++) {
+            SharkBond sharkBond = new InMemoSharkBond(peer(random.nextInt(PEER_COUNT)),
+                    peer(random.nextInt(PEER_COUNT)), BenchmarkPeers.BOND_UNIT, random.nextInt(1000), false);
+            this.storage.addSharkBond(sharkBond);
+            if (i < LOOKUP_COUNT) this.bondIDs[i] = sharkBond.getBondID().toString();
+        }
+
+        for (int i = 0; i < LOOKUP_COUNT; i++) {
+            if (this.bondIDs[i] == null) this.bondIDs[i] = this.bondIDs[i % this.bondCount];
+            this.peerIDs[i] = peer(random.nextInt(PEER_COUNT));
+        }
+        // columns are built on first use
+        this.storage.getColumns();
+    }
+
+    private static String peer(int i) {
+        return "PEER_" + i;
+    }
+
+    private int next() {
+        return this.next = (this.next + 1) & (LOOKUP_COUNT - 1);
+    }
+
+    @Benchmark
+    public SharkBond getSharkBondByBondId() {
+        return this.storage.getSharkBondByBondId(this.bondIDs[this.next()]);
+    }
+
+    @Benchmark
+    public Collection<SharkBond> getSharkBondsByCreditor() {
+        return this.storage.getSharkBondsByCreditor(this.peerIDs[this.next()]);
+    }
+
+    @Benchmark
+    public Collection<SharkBond> getSharkBondsByDebtor() {
+        return this.storage.getSharkBondsByDebtor(this.peerIDs[this.next()]);
+    }
+
+    @Benchmark
+    public Collection<SharkBond> getSharkBondsByCreditorAndDebtor() {
+        int i = this.next();
+        return this.storage.getSharkBondsByCreditorAndDebtor(this.peerIDs[i], this.peerIDs[(i + 1) & (LOOKUP_COUNT - 1)]);
+    }
+
+    @Benchmark
+    public long streamSharkBondsQuery() {
+        return this.storage.streamSharkBonds(new SharkBondQuery()
+                .creditor(this.peerIDs[this.next()]).amountBetween(100, 500)).count();
+    }
+
+    @Benchmark
+    public long columnsGetExposure() {
+        return this.storage.getColumns().getExposure(this.peerIDs[this.next()], null, BenchmarkPeers.BOND_UNIT,
+                System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public Map<String, Long> columnsGetBalances() {
+        return this.storage.getColumns().getBalances(BenchmarkPeers.BOND_UNIT, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,296 @@
+package net.sharksystem.creditmoney;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.UUID;
+
+/**
+ * Bond with a small memory footprint - meant for storages holding many bonds. A UUID bond id is kept as two longs,
+ * peer ids and units as symbols of the shared symbol tables, flags in one int. Strings are handed out by the
+ * symbol tables - no copies per bond.
+ * <br/>
+ * Behaves like {@link InMemoSharkBond}. Not serializable - use {@link SharkBondSerializer#sharkBondToByteArray}.
+ */
+class CompactSharkBond implements ObservableSharkBond {
+    private static final SharkBondSymbolTable peerIDs = SharkBondSymbolTable.PEER_IDS;
+    private static final SharkBondSymbolTable units = SharkBondSymbolTable.UNITS;
+
+    private static final int ALLOWED_TO_CHANGE_CREDITOR = 0x1;
+    private static final int ALLOWED_TO_CHANGE_DEBTOR = 0x2;
+    private static final int ANNULLED_BY_CREDITOR = 0x4;
+    private static final int ANNULLED_BY_DEBTOR = 0x8;
+
+    private final long bondIDHigh, bondIDLow;
+    // bond id if not a UUID in its usual form, null otherwise
+    private final String otherBondID;
+    private final int unitDescription;
+    private final int amount;
+    private int creditorID, debtorID;
+    private int tempCreditorID, tempDebtorID;
+    private int flags;
+    private long expirationDate;
+    private byte[] debtorSignature, creditorSignature;
+    private volatile SharkBondChangedListener[] changedListeners;
+
+    private CompactSharkBond(SharkBond sharkBond) {
+        String bondID = sharkBond.getBondID() == null ? null : sharkBond.getBondID().toString();
+        UUID uuid = toUUID(bondID);
+        if (uuid != null) {
+            this.bondIDHigh = uuid.getMostSignificantBits();
+            this.bondIDLow = uuid.getLeastSignificantBits();
+            this.otherBondID = null;
+        } else {
+            this.bondIDHigh = 0;
+            this.bondIDLow = 0;
+            this.otherBondID = bondID;
+        }
+
+        this.creditorID = peerIDs.intern(sharkBond.getCreditorID());
+        this.debtorID = peerIDs.intern(sharkBond.getDebtorID());
+        this.tempCreditorID = peerIDs.intern(sharkBond.getTempCreditorID());
+        this.tempDebtorID = peerIDs.intern(sharkBond.getTempDebtorID());
+        this.unitDescription = units.intern(sharkBond.unitDescription());
+        this.amount = sharkBond.getAmount();
+        this.expirationDate = sharkBond.getExpirationDate();
+        this.creditorSignature = sharkBond.getCreditorSignature();
+        this.debtorSignature = sharkBond.getDebtorSignature();
+        this.setFlag(ALLOWED_TO_CHANGE_CREDITOR, sharkBond.allowedToChangeCreditor());
+        this.setFlag(ALLOWED_TO_CHANGE_DEBTOR, sharkBond.allowedToChangeDebtor());
+        this.setFlag(ANNULLED_BY_CREDITOR, sharkBond.getBondIsAnnulledByCreditor());
+        this.setFlag(ANNULLED_BY_DEBTOR, sharkBond.getBondIsAnnulledByDebtor());
+    }
+
+    /**
+     * @return compact copy of this bond - the bond itself if already compact
+     */
+    static CompactSharkBond of(SharkBond sharkBond) {
+        if (sharkBond instanceof CompactSharkBond) return (CompactSharkBond) sharkBond;
+
+        return new CompactSharkBond(sharkBond);
+    }
+
+    private static UUID toUUID(String bondID) {
+        if (bondID == null) return null;
+        try {
+            UUID uuid = UUID.fromString(bondID);
+            // fromString accepts other spellings as well - only ids written back the same way are compact
+            return uuid.toString().equals(bondID) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private boolean getFlag(int mask) {
+        return (this.flags & mask) != 0;
+    }
+
+    private void setFlag(int mask, boolean on) {
+        this.flags = on ? this.flags | mask : this.flags & ~mask;
+    }
+
+    /**
+     * @return bond id - created with each call if a UUID
+     */
+    @Override
+    public CharSequence getBondID() {
+        if (this.otherBondID != null) return this.otherBondID;
+
+        return new UUID(this.bondIDHigh, this.bondIDLow).toString();
+    }
+
+    @Override
+    public CharSequence getDebtorID() {
+        return peerIDs.get(this.debtorID);
+    }
+
+    @Override
+    public CharSequence getCreditorID() {
+        return peerIDs.get(this.creditorID);
+    }
+
+    @Override
+    public CharSequence getTempDebtorID() {
+        return peerIDs.get(this.tempDebtorID);
+    }
+
+    @Override
+    public CharSequence getTempCreditorID() {
+        return peerIDs.get(this.tempCreditorID);
+    }
+
+    @Override
+    public byte[] getDebtorSignature() {
+        return this.debtorSignature;
+    }
+
+    @Override
+    public byte[] getCreditorSignature() {
+        return this.creditorSignature;
+    }
+
+    @Override
+    public boolean getBondIsAnnulledByCreditor() {
+        return this.getFlag(ANNULLED_BY_CREDITOR);
+    }
+
+    @Override
+    public boolean getBondIsAnnulledByDebtor() {
+        return this.getFlag(ANNULLED_BY_DEBTOR);
+    }
+
+    @Override
+    public void setDebtorID(CharSequence debtorID) throws SharkCreditMoneyException {
+        if (this.allowedToChangeDebtor()) {
+            this.debtorID = peerIDs.intern(debtorID);
+            this.notifyChangedListeners();
+        } else {
+            throw new SharkCreditMoneyException("Method not allowed. The current bond's debtor can't be changed");
+        }
+    }
+
+    @Override
+    public void setCreditorID(CharSequence creditorID) throws SharkCreditMoneyException {
+        if (this.allowedToChangeCreditor()) {
+            this.creditorID = peerIDs.intern(creditorID);
+            this.notifyChangedListeners();
+        } else {
+            throw new SharkCreditMoneyException("Method not allowed. The current bond's creditor can't be changed");
+        }
+    }
+
+    @Override
+    public void setTempDebtorID(CharSequence debtorID) {
+        this.tempDebtorID = peerIDs.intern(debtorID);
+    }
+
+    @Override
+    public void setTempCreditorID(CharSequence creditorID) {
+        this.tempCreditorID = peerIDs.intern(creditorID);
+    }
+
+    @Override
+    public boolean allowedToChangeDebtor() {
+        return this.getFlag(ALLOWED_TO_CHANGE_DEBTOR);
+    }
+
+    @Override
+    public boolean allowedToChangeCreditor() {
+        return this.getFlag(ALLOWED_TO_CHANGE_CREDITOR);
+    }
+
+    @Override
+    public void setAllowedToChangeDebtor(boolean on) {
+        this.setFlag(ALLOWED_TO_CHANGE_DEBTOR, on);
+    }
+
+    @Override
+    public void setAllowedToChangeCreditor(boolean on) {
+        this.setFlag(ALLOWED_TO_CHANGE_CREDITOR, on);
+    }
+
+    @Override
+    public void setCreditorSignature(byte[] signature) {
+        this.creditorSignature = signature;
+    }
+
+    @Override
+    public void setDebtorSignature(byte[] signature) {
+        this.debtorSignature = signature;
+    }
+
+    @Override
+    public void setBondIsAnnulledByCreditor() {
+        this.setFlag(ANNULLED_BY_CREDITOR, true);
+    }
+
+    @Override
+    public void setBondIsAnnulledByDebtor() {
+        this.setFlag(ANNULLED_BY_DEBTOR, true);
+    }
+
+    @Override
+    public void resetBondState() {
+        this.flags = 0;
+        this.tempCreditorID = SharkBondSymbolTable.NULL_SYMBOL;
+        this.tempDebtorID = SharkBondSymbolTable.NULL_SYMBOL;
+    }
+
+    @Override
+    public int getAmount() {
+        return this.amount;
+    }
+
+    @Override
+    public long getExpirationDate() {
+        return this.expirationDate;
+    }
+
+    @Override
+    public CharSequence unitDescription() {
+        return units.get(this.unitDescription);
+    }
+
+    @Override
+    public boolean isAnnulled() {
+        return this.getBondIsAnnulledByCreditor() && this.getBondIsAnnulledByDebtor();
+    }
+
+    @Override
+    public boolean bondIsExpired() {
+        return this.expirationDate <= System.currentTimeMillis();
+    }
+
+    @Override
+    public void extendCreditBondValidity() {
+        Calendar until = Calendar.getInstance();
+        until.setTimeInMillis(this.expirationDate);
+        until.add(Calendar.YEAR, InMemoSharkBond.DEFAULT_CREDIT_BOND_VALIDITY_IN_YEARS);
+        this.expirationDate = until.getTimeInMillis();
+        this.notifyChangedListeners();
+    }
+
+    @Override
+    public void setBondAsExpired() {
+        this.expirationDate = System.currentTimeMillis();
+        this.notifyChangedListeners();
+    }
+
+    // an array instead of a list - a stored bond has one listener, its storage
+    @Override
+    public synchronized void addChangedListener(SharkBondChangedListener listener) {
+        SharkBondChangedListener[] listeners = this.changedListeners;
+        if (listeners == null) {
+            this.changedListeners = new SharkBondChangedListener[] {listener};
+        } else if (!Arrays.asList(listeners).contains(listener)) {
+            listeners = Arrays.copyOf(listeners, listeners.length + 1);
+            listeners[listeners.length - 1] = listener;
+            this.changedListeners = listeners;
+        }
+    }
+
+    @Override
+    public synchronized void removeChangedListener(SharkBondChangedListener listener) {
+        SharkBondChangedListener[] listeners = this.changedListeners;
+        if (listeners == null) return;
+
+        int index = Arrays.asList(listeners).indexOf(listener);
+        if (index == -1) return;
+        if (listeners.length == 1) {
+            this.changedListeners = null;
+        } else {
+            SharkBondChangedListener[] remaining = new SharkBondChangedListener[listeners.length - 1];
+            System.arraycopy(listeners, 0, remaining, 0, index);
+            System.arraycopy(listeners, index + 1, remaining, index, remaining.length - index);
+            this.changedListeners = remaining;
+        }
+    }
+
+    private void notifyChangedListeners() {
+        SharkBondChangedListener[] listeners = this.changedListeners;
+        if (listeners != null) {
+            for (SharkBondChangedListener listener : listeners) {
+                listener.sharkBondChanged(this);
+            }
+        }
+    }
+}
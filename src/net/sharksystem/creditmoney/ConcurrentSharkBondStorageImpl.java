@@ -0,0 +1,431 @@
+package net.sharksystem.creditmoney;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Bond storage that can be used by several threads at the same time, e.g. ASAP listener threads receiving bonds
+ * and application threads creating and transferring bonds.
+ * <ul>
+ *     <li>Reads don't lock. Bonds and secondary indexes are kept in concurrent maps.</li>
+ *     <li>Changes of a bond are serialized by a lock stripe chosen by its bond ID. Changes of different bonds run
+ *     in parallel as long as they hit different stripes. {@link #addOrUpdateSharkBond(SharkBond)} is atomic.</li>
+ *     <li>Positions (see {@link #getSharkBondAtIndex(int)}) are kept in a {@link SharkBondVector}. A short lock
+ *     guards it.</li>
+ * </ul>
+ * Query results are copies, {@link #getAllSharkBonds()} is an immutable snapshot - they don't change with the
+ * storage.
+ */
+public class ConcurrentSharkBondStorageImpl implements SharkBondStorage, SharkBondChangedListener {
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 64;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final SharkBondIndex creditorIndex = new SharkBondIndex(true);
+    private final SharkBondIndex debtorIndex = new SharkBondIndex(true);
+    private final SharkBondIndex creditorAndDebtorIndex = new SharkBondIndex(true);
+    private final SharkBondIndex unitIndex = new SharkBondIndex(true);
+    private final SharkBondExpirationIndex expirationIndex = new SharkBondExpirationIndex(true);
+    private final Object[] stripes;
+    // changes of single bonds share this lock, deleteAll takes it exclusively
+    private final ReadWriteLock storageLock = new ReentrantReadWriteLock();
+    // guards positions and Entry.position
+    private final ReadWriteLock positionLock = new ReentrantReadWriteLock();
+    private final SharkBondVector positions = new SharkBondVector();
+
+    public ConcurrentSharkBondStorageImpl() {
+        this(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param concurrencyLevel number of lock stripes - about the number of threads expected to change bonds at
+     *                         the same time
+     */
+    public ConcurrentSharkBondStorageImpl(int concurrencyLevel) {
+        this.stripes = new Object[Integer.highestOneBit(Math.max(1, concurrencyLevel - 1)) << 1];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Object();
+        }
+        this.loadBondsFromStorage();
+    }
+
+    @Override
+    public void loadBondsFromStorage() {
+        // bonds are kept in memory only - nothing to load
+        this.deleteAll();
+    }
+
+    @Override
+    public void addSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        String bondID = checkBondID(sharkBond);
+        this.storageLock.readLock().lock();
+        try {
+            synchronized (this.getStripe(bondID)) {
+                if (this.entries.containsKey(bondID)) {
+                    throw new SharkCreditMoneyException("The provided bond already exist in the sharkBondStorage. Use updateSharkBond to edit an existing bond");
+                }
+                this.appendSharkBond(bondID, sharkBond);
+            }
+        } finally {
+            this.storageLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        String bondID = checkBondID(sharkBond);
+        this.storageLock.readLock().lock();
+        try {
+            synchronized (this.getStripe(bondID)) {
+                Entry entry = this.entries.get(bondID);
+                if (entry == null) {
+                    throw new SharkCreditMoneyException("A bond matching The provided bondId couldn't be found in the sharkBondStorage");
+                }
+                this.replaceSharkBond(bondID, entry, sharkBond);
+            }
+        } finally {
+            this.storageLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addOrUpdateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        String bondID = checkBondID(sharkBond);
+        this.storageLock.readLock().lock();
+        try {
+            synchronized (this.getStripe(bondID)) {
+                Entry entry = this.entries.get(bondID);
+                if (entry == null) {
+                    this.appendSharkBond(bondID, sharkBond);
+                } else {
+                    this.replaceSharkBond(bondID, entry, sharkBond);
+                }
+            }
+        } finally {
+            this.storageLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The last bond takes the position of the deleted one - like in {@link SharkBondStorageImpl}.
+     */
+    @Override
+    public void deleteSharkBondById(CharSequence bondId) throws SharkCreditMoneyException {
+        String bondID = SharkBondIndex.toKey(bondId);
+        this.storageLock.readLock().lock();
+        try {
+            synchronized (this.getStripe(bondID)) {
+                Entry entry = bondID == null ? null : this.entries.get(bondID);
+                if (entry == null) {
+                    throw new SharkCreditMoneyException("A bond matching the provided bondId couldn't be found in the sharkBondStorage");
+                }
+                this.unindex(bondID, entry);
+                unobserve(entry.sharkBond, this);
+
+                // entries and positions must match for other threads deleting the last bond
+                this.positionLock.writeLock().lock();
+                try {
+                    this.entries.remove(bondID);
+                    SharkBond lastSharkBond = this.positions.removeLast();
+                    if (entry.position < this.positions.size()) {
+                        this.positions.set(entry.position, lastSharkBond);
+                        this.entries.get(lastSharkBond.getBondID().toString()).position = entry.position;
+                    }
+                    entry.position = -1;
+                } finally {
+                    this.positionLock.writeLock().unlock();
+                }
+            }
+        } finally {
+            this.storageLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        this.storageLock.writeLock().lock();
+        try {
+            for (Entry entry : this.entries.values()) {
+                unobserve(entry.sharkBond, this);
+            }
+            this.entries.clear();
+            this.creditorIndex.clear();
+            this.debtorIndex.clear();
+            this.creditorAndDebtorIndex.clear();
+            this.unitIndex.clear();
+            this.expirationIndex.clear();
+            this.positionLock.writeLock().lock();
+            try {
+                this.positions.clear();
+            } finally {
+                this.positionLock.writeLock().unlock();
+            }
+        } finally {
+            this.storageLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getStorageSize() {
+        return this.entries.size();
+    }
+
+    @Override
+    public int getIndexOfSharkBond(CharSequence bondId) {
+        Entry entry = bondId == null ? null : this.entries.get(bondId.toString());
+        if (entry == null) return -1;
+
+        this.positionLock.readLock().lock();
+        try {
+            return entry.position;
+        } finally {
+            this.positionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return immutable snapshot of all bonds - taking it does not copy the bonds
+     */
+    @Override
+    public Collection<SharkBond> getAllSharkBonds() {
+        // a snapshot changes the vector's copy-on-write state
+        this.positionLock.writeLock().lock();
+        try {
+            return this.positions.snapshot();
+        } finally {
+            this.positionLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public SharkBond getSharkBondAtIndex(int index) {
+        this.positionLock.readLock().lock();
+        try {
+            if (index >= this.positions.size() || index < 0) {
+                throw new InvalidParameterException("The provided index is out of the bounds. Make sure that the index match the condition below: 0 <= index < getStorageSize()");
+            }
+            return this.positions.get(index);
+        } finally {
+            this.positionLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public SharkBond getSharkBondByBondId(CharSequence bondId) {
+        Entry entry = bondId == null ? null : this.entries.get(bondId.toString());
+        if (entry == null) {
+            throw new InvalidParameterException("A bond matching the provided bondId couldn't be found in the sharkBondStorage");
+        }
+
+        return entry.sharkBond;
+    }
+
+    @Override
+    public Collection<SharkBond> getSharkBondsByCreditor(CharSequence creditorId) {
+        return this.getSharkBonds(this.creditorIndex.get(SharkBondIndex.toKey(creditorId)));
+    }
+
+    @Override
+    public Collection<SharkBond> getSharkBondsByDebtor(CharSequence debtorId) {
+        return this.getSharkBonds(this.debtorIndex.get(SharkBondIndex.toKey(debtorId)));
+    }
+
+    @Override
+    public Collection<SharkBond> getSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId) {
+        return this.getSharkBonds(this.creditorAndDebtorIndex.get(SharkBondIndex.toKey(creditorId, debtorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamAllSharkBonds() {
+        return this.getAllSharkBonds().stream();
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBondsByCreditor(CharSequence creditorId) {
+        return this.streamSharkBonds(this.creditorIndex.get(SharkBondIndex.toKey(creditorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBondsByDebtor(CharSequence debtorId) {
+        return this.streamSharkBonds(this.debtorIndex.get(SharkBondIndex.toKey(debtorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId) {
+        return this.streamSharkBonds(this.creditorAndDebtorIndex.get(SharkBondIndex.toKey(creditorId, debtorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBonds(SharkBondQuery query) {
+        Collection<String> bondIDs = query.selectBondIDs(this.creditorIndex, this.debtorIndex,
+                this.creditorAndDebtorIndex, this.unitIndex, this.expirationIndex);
+        Stream<SharkBond> sharkBonds = bondIDs == null ? this.streamAllSharkBonds() : this.streamSharkBonds(bondIDs);
+        return sharkBonds.filter(query::matches);
+    }
+
+    /**
+     * @return index of expiration dates - read by the {@link SharkBondExpirationSweeper}
+     */
+    SharkBondExpirationIndex getExpirationIndex() {
+        return this.expirationIndex;
+    }
+
+    /**
+     * A stored bond changed its creditor, debtor or expiration date - move it to its new index positions.
+     */
+    @Override
+    public void sharkBondChanged(SharkBond sharkBond) {
+        String bondID = SharkBondIndex.toKey(sharkBond.getBondID());
+        if (bondID == null) return;
+
+        this.storageLock.readLock().lock();
+        try {
+            synchronized (this.getStripe(bondID)) {
+                Entry entry = this.entries.get(bondID);
+                // ignore bonds with same id which are not (or no longer) stored here
+                if (entry != null && entry.sharkBond == sharkBond) {
+                    this.reindex(bondID, entry, sharkBond);
+                }
+            }
+        } finally {
+            this.storageLock.readLock().unlock();
+        }
+    }
+
+    // index sets are sorted and weakly consistent - read lazily, nothing is copied
+    private Stream<SharkBond> streamSharkBonds(Collection<String> bondIDs) {
+        return bondIDs.stream().map(this.entries::get).filter(Objects::nonNull).map(entry -> entry.sharkBond);
+    }
+
+    private Collection<SharkBond> getSharkBonds(Set<String> bondIDs) {
+        Collection<SharkBond> sharkBonds = new ArrayList<>(bondIDs.size());
+        for (String bondID : bondIDs) {
+            // index and bonds are not changed atomically - bond can be gone already
+            Entry entry = this.entries.get(bondID);
+            if (entry != null) {
+                sharkBonds.add(entry.sharkBond);
+            }
+        }
+
+        return sharkBonds;
+    }
+
+    // caller holds the stripe of bondID
+    private void appendSharkBond(String bondID, SharkBond sharkBond) {
+        Entry entry = new Entry(sharkBond);
+        this.positionLock.writeLock().lock();
+        try {
+            entry.position = this.positions.size();
+            this.positions.add(sharkBond);
+            this.entries.put(bondID, entry);
+        } finally {
+            this.positionLock.writeLock().unlock();
+        }
+        this.reindex(bondID, entry, sharkBond);
+        observe(sharkBond, this);
+    }
+
+    // caller holds the stripe of bondID
+    private void replaceSharkBond(String bondID, Entry entry, SharkBond sharkBond) {
+        SharkBond previousSharkBond = entry.sharkBond;
+        entry.sharkBond = sharkBond;
+        if (previousSharkBond != sharkBond) {
+            this.positionLock.writeLock().lock();
+            try {
+                this.positions.set(entry.position, sharkBond);
+            } finally {
+                this.positionLock.writeLock().unlock();
+            }
+            unobserve(previousSharkBond, this);
+            observe(sharkBond, this);
+        }
+        // bonds not telling about their changes are re-indexed with each update
+        this.reindex(bondID, entry, sharkBond);
+    }
+
+    private void reindex(String bondID, Entry entry, SharkBond sharkBond) {
+        String creditorID = SharkBondIndex.toKey(sharkBond.getCreditorID());
+        String debtorID = SharkBondIndex.toKey(sharkBond.getDebtorID());
+        String unitDescription = SharkBondIndex.toKey(sharkBond.unitDescription());
+        long expirationDate = sharkBond.getExpirationDate();
+        if (entry.indexed && equals(creditorID, entry.creditorID) && equals(debtorID, entry.debtorID)
+                && equals(unitDescription, entry.unitDescription) && expirationDate == entry.expirationDate) {
+            return;
+        }
+
+        boolean newExpirationDate = !entry.indexed || expirationDate != entry.expirationDate;
+        this.unindex(bondID, entry);
+        entry.creditorID = creditorID;
+        entry.debtorID = debtorID;
+        entry.unitDescription = unitDescription;
+        entry.expirationDate = expirationDate;
+        entry.indexed = true;
+        this.creditorIndex.add(creditorID, bondID);
+        this.debtorIndex.add(debtorID, bondID);
+        this.creditorAndDebtorIndex.add(SharkBondIndex.toKey(creditorID, debtorID), bondID);
+        this.unitIndex.add(unitDescription, bondID);
+        this.expirationIndex.add(expirationDate, bondID, newExpirationDate);
+    }
+
+    private void unindex(String bondID, Entry entry) {
+        if (entry.indexed) {
+            this.creditorIndex.remove(entry.creditorID, bondID);
+            this.debtorIndex.remove(entry.debtorID, bondID);
+            this.creditorAndDebtorIndex.remove(SharkBondIndex.toKey(entry.creditorID, entry.debtorID), bondID);
+            this.unitIndex.remove(entry.unitDescription, bondID);
+            this.expirationIndex.remove(entry.expirationDate, bondID);
+            entry.indexed = false;
+        }
+    }
+
+    private Object getStripe(String bondID) {
+        if (bondID == null) return this.stripes[0];
+        int hash = bondID.hashCode();
+        // spread high bits - bond ids often share a prefix
+        return this.stripes[(hash ^ (hash >>> 16)) & (this.stripes.length - 1)];
+    }
+
+    private static void observe(SharkBond sharkBond, SharkBondChangedListener listener) {
+        if (sharkBond instanceof ObservableSharkBond) {
+            ((ObservableSharkBond) sharkBond).addChangedListener(listener);
+        }
+    }
+
+    private static void unobserve(SharkBond sharkBond, SharkBondChangedListener listener) {
+        if (sharkBond instanceof ObservableSharkBond) {
+            ((ObservableSharkBond) sharkBond).removeChangedListener(listener);
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String checkBondID(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (sharkBond.getBondID() == null) {
+            throw new SharkCreditMoneyException("The provided bond has no bondId and can't be stored in the sharkBondStorage");
+        }
+
+        return sharkBond.getBondID().toString();
+    }
+
+    private static class Entry {
+        private volatile SharkBond sharkBond;
+        // guarded by positionLock
+        private int position;
+        // keys this bond is currently indexed with - guarded by the stripe of the bond
+        private boolean indexed;
+        private String creditorID, debtorID, unitDescription;
+        private long expirationDate;
+
+        Entry(SharkBond sharkBond) {
+            this.sharkBond = sharkBond;
+        }
+    }
+}
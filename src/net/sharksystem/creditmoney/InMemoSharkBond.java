@@ -2,9 +2,14 @@ package net.sharksystem.creditmoney;
 
 import java.io.*;
 import java.util.Calendar;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class InMemoSharkBond implements ObservableSharkBond, Serializable {
+    // as computed for the first version of this class - legacy serialized bonds are still read
+    private static final long serialVersionUID = 4497274028918208422L;
 
-public class InMemoSharkBond implements SharkBond, Serializable {
     /**
      * This constant is used to set the bond's expirationDate
      * It can also be set to the validity of the ASAP's certificate as follow:
@@ -20,6 +25,12 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     private CharSequence tempDebtorID, tempCreditorID;
     private byte[] debtorSignature, creditorSignature;
     private boolean bondIsAnnulledByCreditor, bondIsAnnulledByDebtor;
+    // storages holding this bond - not part of the bond
+    // storages of several threads can observe the bond
+    private transient volatile CopyOnWriteArrayList<SharkBondChangedListener> changedListeners;
+    // signed bytes of the current bond state - signatures are not part of it
+    private transient volatile SharkBondCanonicalForm canonicalForm;
+    private transient volatile int stateVersion;
 
     public InMemoSharkBond(SharkBond bond) {
         this(bond.getBondID(), bond.getCreditorID(), bond.getDebtorID(),
@@ -84,6 +95,7 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     @Override
     public void setAllowedToChangeDebtor(boolean on) throws SharkCreditMoneyException {
         this.allowedToChangeDebtor = on;
+        this.stateChanged();
     }
 
     /**
@@ -94,6 +106,8 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     public void setDebtorID(CharSequence debtorID) throws SharkCreditMoneyException {
         if (this.allowedToChangeDebtor) {
             this.debtorID = debtorID;
+            this.stateChanged();
+            this.notifyChangedListeners();
         } else {
             throw new SharkCreditMoneyException("Method not allowed. The current bond's debtor can't be changed");
         }
@@ -140,6 +154,7 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     @Override
     public void setAllowedToChangeCreditor(boolean on) throws SharkCreditMoneyException {
         this.allowedToChangeCreditor = on;
+        this.stateChanged();
     }
 
     /**
@@ -150,6 +165,8 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     public void setCreditorID(CharSequence creditorID) throws SharkCreditMoneyException {
         if (this.allowedToChangeCreditor) {
             this.creditorID = creditorID;
+            this.stateChanged();
+            this.notifyChangedListeners();
         } else {
             throw new SharkCreditMoneyException("Method not allowed. The current bond's creditor can't be changed");
         }
@@ -158,11 +175,13 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     @Override
     public void setTempDebtorID(CharSequence debtorID) {
         this.tempDebtorID = debtorID;
+        this.stateChanged();
     }
 
     @Override
     public void setTempCreditorID(CharSequence creditorID) {
         this.tempCreditorID = creditorID;
+        this.stateChanged();
     }
 
     @Override
@@ -178,11 +197,13 @@ public class InMemoSharkBond implements SharkBond, Serializable {
     @Override
     public void setBondIsAnnulledByCreditor() {
         this.bondIsAnnulledByCreditor = true;
+        this.stateChanged();
     }
 
     @Override
     public void setBondIsAnnulledByDebtor() {
         this.bondIsAnnulledByDebtor = true;
+        this.stateChanged();
     }
 
     @Override
@@ -193,6 +214,7 @@ public class InMemoSharkBond implements SharkBond, Serializable {
         this.allowedToChangeDebtor = false;
         this.tempCreditorID = null;
         this.tempDebtorID = null;
+        this.stateChanged();
     }
 
     /**
@@ -226,20 +248,22 @@ public class InMemoSharkBond implements SharkBond, Serializable {
 
     @Override
     public boolean bondIsExpired() {
-        Calendar until = Calendar.getInstance();
-        return this.expirationDate <= until.getTimeInMillis();
+        return this.expirationDate <= System.currentTimeMillis();
     }
 
     @Override
     public void extendCreditBondValidity() {
         //TODO: extend bond's validity to one year.
         this.setExpirationDate(this.expirationDate);
+        this.stateChanged();
+        this.notifyChangedListeners();
     }
 
     @Override
     public void setBondAsExpired() {
-        Calendar until = Calendar.getInstance();
-        this.expirationDate = until.getTimeInMillis();
+        this.expirationDate = System.currentTimeMillis();
+        this.stateChanged();
+        this.notifyChangedListeners();
     }
 
     private void setExpirationDate(long creationDate) {
@@ -249,8 +273,49 @@ public class InMemoSharkBond implements SharkBond, Serializable {
         this.expirationDate = until.getTimeInMillis();
     }
 
+    SharkBondCanonicalForm getCanonicalForm() {
+        // read version first - a change while encoding leaves an outdated form which is replaced next time
+        int version = this.stateVersion;
+        SharkBondCanonicalForm canonicalForm = this.canonicalForm;
+        if (canonicalForm == null || canonicalForm.getBondVersion() != version) {
+            canonicalForm = new SharkBondCanonicalForm(this, version);
+            this.canonicalForm = canonicalForm;
+        }
+
+        return canonicalForm;
+    }
+
+    private void stateChanged() {
+        this.stateVersion++;
+    }
+
+    @Override
+    public synchronized void addChangedListener(SharkBondChangedListener listener) {
+        if (this.changedListeners == null) {
+            this.changedListeners = new CopyOnWriteArrayList<>();
+        }
+        this.changedListeners.addIfAbsent(listener);
+    }
+
+    @Override
+    public synchronized void removeChangedListener(SharkBondChangedListener listener) {
+        if (this.changedListeners != null) {
+            this.changedListeners.remove(listener);
+        }
+    }
+
+    private void notifyChangedListeners() {
+        List<SharkBondChangedListener> listeners = this.changedListeners;
+        if (listeners != null) {
+            for (SharkBondChangedListener listener : listeners) {
+                listener.sharkBondChanged(this);
+            }
+        }
+    }
+
     private static long getDefaultExpirationDate() {
         Calendar until = Calendar.getInstance();
+        until.add(Calendar.YEAR, DEFAULT_CREDIT_BOND_VALIDITY_IN_YEARS);
         return until.getTimeInMillis();
     }
 
@@ -0,0 +1,11 @@
+package net.sharksystem.creditmoney;
+
+/**
+ * Bond telling storages about its changes (see {@link SharkBondChangedListener}). Bonds which do not are re-indexed
+ * with each update.
+ */
+interface ObservableSharkBond extends SharkBond {
+    void addChangedListener(SharkBondChangedListener listener);
+
+    void removeChangedListener(SharkBondChangedListener listener);
+}
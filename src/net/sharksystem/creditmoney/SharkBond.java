@@ -21,6 +21,9 @@ import java.io.IOException;
 public interface SharkBond {
     int SIGNED_MASK = 0x1;
     int ENCRYPTED_MASK = 0x2;
+    int BATCH_MASK = 0x4;
+    int COMPRESSED_MASK = 0x8;
+    int SESSION_KEY_MASK = 0x10;
 
     /**
      * There is an id that makes any bond unique.
@@ -0,0 +1,570 @@
+package net.sharksystem.creditmoney;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Read-only view on closed bond log files (snapshot and segments). Files are mapped into memory, bonds are decoded
+ * from the mapping when they are requested. The heap keeps a few primitive arrays per bond only:
+ * <ul>
+ *     <li>bond ID hashes in sorted order - slot of a bond, lookup by binary search</li>
+ *     <li>file, position and length of the latest version of each bond</li>
+ *     <li>creditor and debtor hashes with slots sorted by them - range lookup by binary search</li>
+ *     <li>expiration dates with slots sorted by them - range scan by expiration date</li>
+ * </ul>
+ * Hashes can collide. Each hit is decoded and compared with the requested ID.
+ * <br/>
+ * Bonds can be removed from the archive (e.g. because a newer version has been written to the log). Removed slots
+ * are counted in a Fenwick tree. Finding the n-th live bond takes logarithmic time.
+ */
+class SharkBondArchive {
+    private final ByteBuffer[] files;
+    private final int size;
+    // sorted by bondIDHashes
+    private final long[] bondIDHashes;
+    private final int[] fileIndexes;
+    private final int[] positions;
+    private final int[] lengths;
+    private final long[] creditorHashes;
+    private final long[] debtorHashes;
+    private final long[] expirationDates;
+    // slots sorted by creditor / debtor hash and expiration date
+    private final int[] slotsByCreditor;
+    private final int[] slotsByDebtor;
+    private final int[] slotsByExpiration;
+    private boolean[] removed;
+    // removed flags are copied on write if a snapshot uses them
+    private boolean removedShared = false;
+    // live bonds per slot range - fenwick tree, 1-based
+    private final int[] liveTree;
+    private int removedCount = 0;
+
+    /**
+     * Maps the files and indexes the latest version of each bond. Files must be given in log order.
+     */
+    static SharkBondArchive open(List<File> logFiles) throws IOException {
+        ByteBuffer[] files = new ByteBuffer[logFiles.size()];
+        for (int i = 0; i < files.length; i++) {
+            try (FileChannel channel = FileChannel.open(logFiles.get(i).toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("bond log file too large to be mapped: " + logFiles.get(i));
+                }
+                // mapping remains valid after channel is closed
+                MappedByteBuffer mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                files[i] = mappedFile;
+            }
+        }
+
+        return new Builder(files).build();
+    }
+
+    private SharkBondArchive(ByteBuffer[] files, int size, long[] bondIDHashes, int[] fileIndexes, int[] positions,
+                             int[] lengths, long[] creditorHashes, long[] debtorHashes, long[] expirationDates) {
+        this.files = files;
+        this.size = size;
+        this.bondIDHashes = bondIDHashes;
+        this.fileIndexes = fileIndexes;
+        this.positions = positions;
+        this.lengths = lengths;
+        this.creditorHashes = creditorHashes;
+        this.debtorHashes = debtorHashes;
+        this.expirationDates = expirationDates;
+        this.slotsByCreditor = sortedSlots(creditorHashes, size);
+        this.slotsByDebtor = sortedSlots(debtorHashes, size);
+        this.slotsByExpiration = sortedSlots(expirationDates, size);
+        this.removed = new boolean[size];
+
+        this.liveTree = new int[size + 1];
+        for (int i = 1; i <= size; i++) {
+            this.liveTree[i]++;
+            int parent = i + (i & -i);
+            if (parent <= size) this.liveTree[parent] += this.liveTree[i];
+        }
+    }
+
+    /**
+     * @return number of bonds not removed
+     */
+    int getSize() {
+        return this.size - this.removedCount;
+    }
+
+    /**
+     * @return slot of a live bond or -1
+     */
+    int getSlot(CharSequence bondID) {
+        if (bondID == null) return -1;
+        String id = bondID.toString();
+        long hash = hash(id);
+        for (int slot = lowerBound(this.bondIDHashes, hash);
+             slot < this.size && this.bondIDHashes[slot] == hash; slot++) {
+            if (!this.removed[slot] && id.equals(this.decode(slot).getBondID().toString())) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return number of live bonds in slots before this one
+     */
+    int getRank(int slot) {
+        int rank = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            rank += this.liveTree[i];
+        }
+
+        return rank;
+    }
+
+    /**
+     * @return slot of the live bond with the given rank
+     */
+    int getSlotByRank(int rank) {
+        if (this.removedCount == 0) return rank;
+
+        int position = 0;
+        int remaining = rank + 1;
+        for (int step = Integer.highestOneBit(Math.max(1, this.size)); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next <= this.size && this.liveTree[next] < remaining) {
+                position = next;
+                remaining -= this.liveTree[next];
+            }
+        }
+
+        return position;
+    }
+
+    void remove(int slot) {
+        if (this.removed[slot]) return;
+
+        if (this.removedShared) {
+            this.removed = this.removed.clone();
+            this.removedShared = false;
+        }
+        this.removed[slot] = true;
+        this.removedCount++;
+        for (int i = slot + 1; i <= this.size; i += i & -i) {
+            this.liveTree[i]--;
+        }
+    }
+
+    /**
+     * @return all live bonds - decoded while iterating. Bonds removed later are still part of it.
+     */
+    Collection<SharkBond> snapshot() {
+        this.removedShared = true;
+        boolean[] removed = this.removed;
+        int size = this.getSize();
+        return new AbstractCollection<SharkBond>() {
+            @Override
+            public Iterator<SharkBond> iterator() {
+                return new Iterator<SharkBond>() {
+                    private int slot = this.nextSlot(0);
+
+                    private int nextSlot(int slot) {
+                        while (slot < removed.length && removed[slot]) slot++;
+                        return slot;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.slot < removed.length;
+                    }
+
+                    @Override
+                    public SharkBond next() {
+                        if (!this.hasNext()) throw new NoSuchElementException();
+                        SharkBond sharkBond = decode(this.slot);
+                        this.slot = this.nextSlot(this.slot + 1);
+                        return sharkBond;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Decodes a bond from the mapped file. Each call creates a new instance.
+     */
+    SharkBond decode(int slot) {
+        byte[] serializedBond = new byte[this.lengths[slot]];
+        ByteBuffer file = this.files[this.fileIndexes[slot]].duplicate();
+        file.position(this.positions[slot]);
+        file.get(serializedBond);
+
+        try {
+            return SharkBondSerializer.byteArrayToSharkBond(serializedBond);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot deserialize archived bond", e);
+        }
+    }
+
+    /**
+     * @return live bonds with this creditor - decoded while the stream is consumed
+     */
+    Stream<SharkBond> streamSharkBondsByCreditor(CharSequence creditorID) {
+        return this.streamSharkBonds(this.slotsByCreditor, this.creditorHashes, creditorID, false, null);
+    }
+
+    /**
+     * @return live bonds with this debtor - decoded while the stream is consumed
+     */
+    Stream<SharkBond> streamSharkBondsByDebtor(CharSequence debtorID) {
+        return this.streamSharkBonds(this.slotsByDebtor, this.debtorHashes, debtorID, false, null);
+    }
+
+    /**
+     * @return live bonds with this creditor and debtor - decoded while the stream is consumed
+     */
+    Stream<SharkBond> streamSharkBondsByCreditorAndDebtor(CharSequence creditorID, CharSequence debtorID) {
+        return this.streamSharkBonds(this.slotsByCreditor, this.creditorHashes, creditorID, true, debtorID);
+    }
+
+    /**
+     * @param from inclusive
+     * @param until exclusive
+     * @return live bonds expiring in this range, earliest first - decoded while the stream is consumed
+     */
+    Stream<SharkBond> streamSharkBondsExpiringBetween(long from, long until) {
+        this.removedShared = true;
+        boolean[] removed = this.removed;
+
+        int low = 0, high = this.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.expirationDates[this.slotsByExpiration[middle]] < from) low = middle + 1;
+            else high = middle;
+        }
+
+        int first = low;
+        Iterator<SharkBond> iterator = new Iterator<SharkBond>() {
+            private int i = this.skipRemoved(first);
+
+            private int skipRemoved(int i) {
+                while (i < size && removed[slotsByExpiration[i]]) i++;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.i < size && expirationDates[slotsByExpiration[this.i]] < until;
+            }
+
+            @Override
+            public SharkBond next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                SharkBond sharkBond = decode(slotsByExpiration[this.i]);
+                this.i = this.skipRemoved(this.i + 1);
+                return sharkBond;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private Stream<SharkBond> streamSharkBonds(int[] sortedSlots, long[] hashes, CharSequence id,
+                                               boolean matchDebtor, CharSequence debtorID) {
+        boolean byCreditor = sortedSlots == this.slotsByCreditor;
+        String key = SharkBondIndex.toKey(id);
+        String debtorKey = SharkBondIndex.toKey(debtorID);
+        long hash = hash(key);
+        long debtorHash = hash(debtorKey);
+        // bonds removed while the stream is consumed are still part of it
+        this.removedShared = true;
+        boolean[] removed = this.removed;
+
+        int low = 0, high = this.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (hashes[sortedSlots[middle]] < hash) low = middle + 1;
+            else high = middle;
+        }
+
+        int first = low;
+        Iterator<SharkBond> iterator = new Iterator<SharkBond>() {
+            private int i = first;
+            private SharkBond next = this.findNext();
+
+            private SharkBond findNext() {
+                for (; this.i < size && hashes[sortedSlots[this.i]] == hash; this.i++) {
+                    int slot = sortedSlots[this.i];
+                    if (removed[slot] || (matchDebtor && debtorHashes[slot] != debtorHash)) continue;
+
+                    // hashes can collide
+                    SharkBond sharkBond = decode(slot);
+                    if (SharkBondArchive.equals(key, byCreditor ? sharkBond.getCreditorID() : sharkBond.getDebtorID())
+                            && (!matchDebtor || SharkBondArchive.equals(debtorKey, sharkBond.getDebtorID()))) {
+                        this.i++;
+                        return sharkBond;
+                    }
+                }
+
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public SharkBond next() {
+                if (this.next == null) throw new NoSuchElementException();
+                SharkBond sharkBond = this.next;
+                this.next = this.findNext();
+                return sharkBond;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private static boolean equals(String key, CharSequence id) {
+        return key == null ? id == null : id != null && key.equals(id.toString());
+    }
+
+    /**
+     * 64 bit FNV-1a of the UTF-8 bytes - collisions are rare enough to resolve them by decoding
+     */
+    static long hash(String s) {
+        if (s == null) return 0;
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static int lowerBound(long[] sortedValues, long value) {
+        int low = 0, high = sortedValues.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedValues[middle] < value) low = middle + 1;
+            else high = middle;
+        }
+
+        return low;
+    }
+
+    private static int[] sortedSlots(long[] hashes, int size) {
+        long[] keys = Arrays.copyOf(hashes, size);
+        int[] slots = new int[size];
+        for (int i = 0; i < size; i++) slots[i] = i;
+        sort(keys, slots, 0, size - 1);
+
+        return slots;
+    }
+
+    /**
+     * Sorts keys and values by (key, value) - quicksort on primitive arrays, no boxing for millions of bonds
+     */
+    private static void sort(long[] keys, int[] values, int from, int to) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            long pivotKey = keys[middle];
+            int pivotValue = values[middle];
+            int i = from, j = to;
+            while (i <= j) {
+                while (compare(keys[i], values[i], pivotKey, pivotValue) < 0) i++;
+                while (compare(keys[j], values[j], pivotKey, pivotValue) > 0) j--;
+                if (i <= j) {
+                    long key = keys[i]; keys[i] = keys[j]; keys[j] = key;
+                    int value = values[i]; values[i] = values[j]; values[j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller part - bounded stack depth
+            if (j - from < to - i) {
+                sort(keys, values, from, j);
+                from = i;
+            } else {
+                sort(keys, values, i, to);
+                to = j;
+            }
+        }
+    }
+
+    private static int compare(long key1, int value1, long key2, int value2) {
+        int result = Long.compare(key1, key2);
+        return result != 0 ? result : Integer.compare(value1, value2);
+    }
+
+    /**
+     * Collects all bond records of the log files and keeps the latest record of each bond.
+     */
+    private static class Builder {
+        private final ByteBuffer[] files;
+        private int count = 0;
+        private long[] bondIDHashes = new long[1024];
+        private byte[] types = new byte[1024];
+        private int[] fileIndexes = new int[1024];
+        private int[] positions = new int[1024];
+        private int[] lengths = new int[1024];
+        private long[] creditorHashes = new long[1024];
+        private long[] debtorHashes = new long[1024];
+        private long[] expirationDates = new long[1024];
+
+        Builder(ByteBuffer[] files) {
+            this.files = files;
+        }
+
+        SharkBondArchive build() throws IOException {
+            for (int fileIndex = 0; fileIndex < this.files.length; fileIndex++) {
+                ByteBuffer file = this.files[fileIndex];
+                int currentFileIndex = fileIndex;
+                SharkBondLog.readRecords(file, (type, payloadPosition, payloadLength) -> {
+                    if (type == SharkBondLog.CLEAR_RECORD) {
+                        this.count = 0;
+                    } else if (type == SharkBondLog.PUT_RECORD || type == SharkBondLog.DELETE_RECORD) {
+                        this.addRecord(type, currentFileIndex, payloadPosition, payloadLength);
+                    }
+                });
+            }
+
+            // sort by (bond id hash, record number) - the last record of each bond wins
+            long[] keys = Arrays.copyOf(this.bondIDHashes, this.count);
+            int[] recordNumbers = new int[this.count];
+            for (int i = 0; i < this.count; i++) recordNumbers[i] = i;
+            sort(keys, recordNumbers, 0, this.count - 1);
+
+            int[] latest = new int[this.count];
+            int size = 0;
+            for (int start = 0; start < this.count; ) {
+                int end = start + 1;
+                while (end < this.count && keys[end] == keys[start]) end++;
+                size = end - start == 1
+                        ? this.keepIfPut(recordNumbers[start], latest, size)
+                        : this.keepLatest(recordNumbers, start, end, latest, size);
+                start = end;
+            }
+
+            long[] slotHashes = new long[size];
+            int[] slotFiles = new int[size];
+            int[] slotPositions = new int[size];
+            int[] slotLengths = new int[size];
+            long[] slotCreditors = new long[size];
+            long[] slotDebtors = new long[size];
+            long[] slotExpirationDates = new long[size];
+            for (int slot = 0; slot < size; slot++) {
+                int record = latest[slot];
+                slotHashes[slot] = this.bondIDHashes[record];
+                slotFiles[slot] = this.fileIndexes[record];
+                slotPositions[slot] = this.positions[record];
+                slotLengths[slot] = this.lengths[record];
+                slotCreditors[slot] = this.creditorHashes[record];
+                slotDebtors[slot] = this.debtorHashes[record];
+                slotExpirationDates[slot] = this.expirationDates[record];
+            }
+
+            return new SharkBondArchive(this.files, size, slotHashes, slotFiles, slotPositions, slotLengths,
+                    slotCreditors, slotDebtors, slotExpirationDates);
+        }
+
+        private int keepIfPut(int record, int[] latest, int size) {
+            if (this.types[record] == SharkBondLog.PUT_RECORD) {
+                latest[size++] = record;
+            }
+
+            return size;
+        }
+
+        // records with the same hash - usually versions of one bond, rarely different bonds
+        private int keepLatest(int[] recordNumbers, int start, int end, int[] latest, int size) throws IOException {
+            List<String> bondIDs = new ArrayList<>();
+            List<Integer> latestRecords = new ArrayList<>();
+            for (int i = start; i < end; i++) {
+                int record = recordNumbers[i];
+                String bondID = this.readBondID(record);
+                int index = bondIDs.indexOf(bondID);
+                if (index == -1) {
+                    bondIDs.add(bondID);
+                    latestRecords.add(record);
+                } else {
+                    // records are sorted by record number within a hash
+                    latestRecords.set(index, record);
+                }
+            }
+
+            for (int record : latestRecords) {
+                size = this.keepIfPut(record, latest, size);
+            }
+
+            return size;
+        }
+
+        private String readBondID(int record) throws IOException {
+            byte[] payload = new byte[this.lengths[record]];
+            ByteBuffer file = this.files[this.fileIndexes[record]].duplicate();
+            file.position(this.positions[record]);
+            file.get(payload);
+            if (this.types[record] == SharkBondLog.DELETE_RECORD) {
+                return new String(payload, StandardCharsets.UTF_8);
+            }
+
+            return SharkBondSerializer.byteArrayToSharkBond(payload).getBondID().toString();
+        }
+
+        private void addRecord(byte type, int fileIndex, int position, int length) throws IOException {
+            if (this.count == this.types.length) {
+                int capacity = this.count * 2;
+                this.bondIDHashes = Arrays.copyOf(this.bondIDHashes, capacity);
+                this.types = Arrays.copyOf(this.types, capacity);
+                this.fileIndexes = Arrays.copyOf(this.fileIndexes, capacity);
+                this.positions = Arrays.copyOf(this.positions, capacity);
+                this.lengths = Arrays.copyOf(this.lengths, capacity);
+                this.creditorHashes = Arrays.copyOf(this.creditorHashes, capacity);
+                this.debtorHashes = Arrays.copyOf(this.debtorHashes, capacity);
+                this.expirationDates = Arrays.copyOf(this.expirationDates, capacity);
+            }
+
+            byte[] payload = new byte[length];
+            ByteBuffer file = this.files[fileIndex].duplicate();
+            file.position(position);
+            file.get(payload);
+
+            if (type == SharkBondLog.DELETE_RECORD) {
+                this.bondIDHashes[this.count] = hash(new String(payload, StandardCharsets.UTF_8));
+            } else {
+                SharkBond sharkBond = SharkBondSerializer.byteArrayToSharkBond(payload);
+                this.bondIDHashes[this.count] = hash(sharkBond.getBondID().toString());
+                this.creditorHashes[this.count] = hash(SharkBondIndex.toKey(sharkBond.getCreditorID()));
+                this.debtorHashes[this.count] = hash(SharkBondIndex.toKey(sharkBond.getDebtorID()));
+                this.expirationDates[this.count] = sharkBond.getExpirationDate();
+            }
+            this.types[this.count] = type;
+            this.fileIndexes[this.count] = fileIndex;
+            this.positions[this.count] = position;
+            this.lengths[this.count] = length;
+            this.count++;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package net.sharksystem.creditmoney;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Persistent bond storage for large bond archives. Works like {@link SharkBondLogStorageImpl} but does not load
+ * the whole log into memory: The snapshot and all closed log segments are mapped read-only (see
+ * {@link SharkBondArchive}). Only bonds of the active segment are kept on the heap.
+ * <br/>
+ * Maintenance (checkpoint, compaction) replaces and removes closed segments. The archive is mapped again after each
+ * maintenance and whenever the active segment was closed - bonds written since move from the heap to the archive.
+ * Without background maintenance this happens with {@link #checkpoint()} and {@link #compact()} only. Files are
+ * replaced by rename and removed, never changed in place: Streams still reading a former mapping are not affected.
+ * <br/>
+ * Archived bonds are decoded on each access. Each call returns a new instance - changing it has no effect unless
+ * it is written back with {@link #updateSharkBond(SharkBond)} or {@link #addOrUpdateSharkBond(SharkBond)}. A bond
+ * written back moves from the archive to the heap.
+ * <br/>
+ * Positions: Bonds on the heap come first, archived bonds follow in archive order.
+ */
+public class SharkBondArchiveStorageImpl extends SharkBondLogStorageImpl {
+    // set during replay - which is called by the super constructor. No field initializer!
+    private SharkBondArchive archive;
+    private Set<String> replayedDeletes;
+    private boolean replayedClear;
+    // segments before are part of the archive
+    private long mappedSegmentNumber;
+
+    public SharkBondArchiveStorageImpl(File folder) throws SharkCreditMoneyException {
+        super(folder);
+    }
+
+    public SharkBondArchiveStorageImpl(File folder, SyncPolicy syncPolicy, int syncBatchSize, long syncIntervalMillis,
+                                       long maintenanceIntervalMillis, int maxSegmentSize)
+            throws SharkCreditMoneyException {
+        super(folder, syncPolicy, syncBatchSize, syncIntervalMillis, maintenanceIntervalMillis, maxSegmentSize);
+    }
+
+    @Override
+    void replayLog(SharkBondLog bondLog, SharkBondLog.RecordHandler handler) throws IOException {
+        this.archive = null;
+        this.replayedDeletes = new HashSet<>();
+        this.replayedClear = false;
+
+        List<File> closedFiles = new ArrayList<>();
+        bondLog.replay(handler, closedFiles);
+        this.mappedSegmentNumber = bondLog.getActiveSegmentNumber();
+
+        if (!this.replayedClear && !closedFiles.isEmpty()) {
+            this.archive = SharkBondArchive.open(closedFiles);
+            // records of the active segment replace archived versions
+            for (String bondID : this.replayedDeletes) {
+                this.removeFromArchive(bondID);
+            }
+            for (SharkBond sharkBond : super.getAllSharkBonds()) {
+                this.removeFromArchive(sharkBond.getBondID());
+            }
+        }
+        this.replayedDeletes = null;
+    }
+
+    @Override
+    void replayDelete(String bondID) throws SharkCreditMoneyException {
+        this.replayedDeletes.add(bondID);
+        super.replayDelete(bondID);
+    }
+
+    @Override
+    void replayClear() {
+        // all records before are void - including the archived ones
+        this.replayedClear = true;
+        this.replayedDeletes.clear();
+        super.replayClear();
+    }
+
+    /**
+     * Writes a snapshot and maps it - all bonds move from the heap to the archive.
+     */
+    @Override
+    public void checkpoint() throws SharkCreditMoneyException {
+        super.checkpoint();
+        this.remap();
+    }
+
+    /**
+     * Compacts closed segments and maps them again - bonds of closed segments move from the heap to the archive.
+     */
+    @Override
+    public void compact() throws SharkCreditMoneyException {
+        super.compact();
+        this.remap();
+    }
+
+    @Override
+    void maintain() {
+        super.maintain();
+        try {
+            // active segment was closed since - its bonds are still on the heap
+            if (this.getBondLog().getActiveSegmentNumber() != this.mappedSegmentNumber) {
+                this.remap();
+            }
+        } catch (SharkCreditMoneyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Maps snapshot and closed segments again. Only records of the active segment are read into the heap.
+     */
+    private synchronized void remap() throws SharkCreditMoneyException {
+        this.replay();
+    }
+
+    @Override
+    public synchronized void addSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (this.getArchiveSlot(sharkBond.getBondID()) != -1) {
+            throw new SharkCreditMoneyException("The provided bond already exist in the sharkBondStorage. Use updateSharkBond to edit an existing bond");
+        }
+        super.addSharkBond(sharkBond);
+    }
+
+    @Override
+    public synchronized void updateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (this.getArchiveSlot(sharkBond.getBondID()) != -1) {
+            this.addOrUpdateSharkBond(sharkBond);
+        } else {
+            super.updateSharkBond(sharkBond);
+        }
+    }
+
+    @Override
+    public synchronized void addOrUpdateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        int slot = this.getArchiveSlot(sharkBond.getBondID());
+        super.addOrUpdateSharkBond(sharkBond);
+        if (slot != -1) {
+            this.archive.remove(slot);
+        }
+    }
+
+    @Override
+    public synchronized void deleteSharkBondById(CharSequence bondId) throws SharkCreditMoneyException {
+        int slot = this.getArchiveSlot(bondId);
+        if (slot == -1) {
+            super.deleteSharkBondById(bondId);
+        } else {
+            this.logDelete(bondId);
+            this.archive.remove(slot);
+        }
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        super.deleteAll();
+        this.archive = null;
+    }
+
+    @Override
+    public synchronized int getStorageSize() {
+        return super.getStorageSize() + (this.archive == null ? 0 : this.archive.getSize());
+    }
+
+    @Override
+    public synchronized int getIndexOfSharkBond(CharSequence bondId) {
+        int index = super.getIndexOfSharkBond(bondId);
+        if (index == -1) {
+            int slot = this.getArchiveSlot(bondId);
+            if (slot != -1) {
+                index = super.getStorageSize() + this.archive.getRank(slot);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * @return immutable snapshot of all bonds - archived bonds are decoded while iterating
+     */
+    @Override
+    public synchronized Collection<SharkBond> getAllSharkBonds() {
+        Collection<SharkBond> heapBonds = super.getAllSharkBonds();
+        if (this.archive == null) return heapBonds;
+
+        Collection<SharkBond> archivedBonds = this.archive.snapshot();
+        return new AbstractCollection<SharkBond>() {
+            @Override
+            public Iterator<SharkBond> iterator() {
+                Iterator<SharkBond> heapIterator = heapBonds.iterator();
+                Iterator<SharkBond> archiveIterator = archivedBonds.iterator();
+                return new Iterator<SharkBond>() {
+                    @Override
+                    public boolean hasNext() {
+                        return heapIterator.hasNext() || archiveIterator.hasNext();
+                    }
+
+                    @Override
+                    public SharkBond next() {
+                        return heapIterator.hasNext() ? heapIterator.next() : archiveIterator.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return heapBonds.size() + archivedBonds.size();
+            }
+        };
+    }
+
+    @Override
+    public synchronized SharkBond getSharkBondAtIndex(int index) {
+        int heapSize = super.getStorageSize();
+        if (index < heapSize || this.archive == null) {
+            return super.getSharkBondAtIndex(index);
+        }
+        if (index >= heapSize + this.archive.getSize()) {
+            throw new InvalidParameterException("The provided index is out of the bounds. Make sure that the index match the condition below: 0 <= index < getStorageSize()");
+        }
+
+        return this.archive.decode(this.archive.getSlotByRank(index - heapSize));
+    }
+
+    @Override
+    public synchronized SharkBond getSharkBondByBondId(CharSequence bondId) {
+        int slot = this.getArchiveSlot(bondId);
+        return slot == -1 ? super.getSharkBondByBondId(bondId) : this.archive.decode(slot);
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getSharkBondsByCreditor(CharSequence creditorId) {
+        Collection<SharkBond> sharkBonds = super.getSharkBondsByCreditor(creditorId);
+        if (this.archive != null) this.archive.streamSharkBondsByCreditor(creditorId).forEach(sharkBonds::add);
+        return sharkBonds;
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getSharkBondsByDebtor(CharSequence debtorId) {
+        Collection<SharkBond> sharkBonds = super.getSharkBondsByDebtor(debtorId);
+        if (this.archive != null) this.archive.streamSharkBondsByDebtor(debtorId).forEach(sharkBonds::add);
+        return sharkBonds;
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getSharkBondsByCreditorAndDebtor(CharSequence creditorId,
+                                                                              CharSequence debtorId) {
+        Collection<SharkBond> sharkBonds = super.getSharkBondsByCreditorAndDebtor(creditorId, debtorId);
+        if (this.archive != null) {
+            this.archive.streamSharkBondsByCreditorAndDebtor(creditorId, debtorId).forEach(sharkBonds::add);
+        }
+        return sharkBonds;
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamAllSharkBonds() {
+        return this.getAllSharkBonds().stream();
+    }
+
+    /**
+     * @return bonds on the heap followed by archived bonds - archived bonds are decoded while the stream is consumed
+     */
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBondsByCreditor(CharSequence creditorId) {
+        Stream<SharkBond> sharkBonds = super.streamSharkBondsByCreditor(creditorId);
+        return this.archive == null ? sharkBonds
+                : Stream.concat(sharkBonds, this.archive.streamSharkBondsByCreditor(creditorId));
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBondsByDebtor(CharSequence debtorId) {
+        Stream<SharkBond> sharkBonds = super.streamSharkBondsByDebtor(debtorId);
+        return this.archive == null ? sharkBonds
+                : Stream.concat(sharkBonds, this.archive.streamSharkBondsByDebtor(debtorId));
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBondsByCreditorAndDebtor(CharSequence creditorId,
+                                                                            CharSequence debtorId) {
+        Stream<SharkBond> sharkBonds = super.streamSharkBondsByCreditorAndDebtor(creditorId, debtorId);
+        return this.archive == null ? sharkBonds
+                : Stream.concat(sharkBonds, this.archive.streamSharkBondsByCreditorAndDebtor(creditorId, debtorId));
+    }
+
+    /**
+     * Archived bonds are read by creditor and debtor, creditor, debtor or expiration date - all others are scanned.
+     */
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBonds(SharkBondQuery query) {
+        Stream<SharkBond> sharkBonds = super.streamSharkBonds(query);
+        if (this.archive == null) return sharkBonds;
+
+        Stream<SharkBond> archivedBonds;
+        if (query.getCreditorID() != null && query.getDebtorID() != null) {
+            archivedBonds = this.archive.streamSharkBondsByCreditorAndDebtor(query.getCreditorID(), query.getDebtorID());
+        } else if (query.getCreditorID() != null) {
+            archivedBonds = this.archive.streamSharkBondsByCreditor(query.getCreditorID());
+        } else if (query.getDebtorID() != null) {
+            archivedBonds = this.archive.streamSharkBondsByDebtor(query.getDebtorID());
+        } else if (query.hasExpirationRange()) {
+            archivedBonds = this.archive.streamSharkBondsExpiringBetween(query.getExpiresFrom(),
+                    query.getExpiresUntil());
+        } else {
+            archivedBonds = this.archive.snapshot().stream();
+        }
+
+        return Stream.concat(sharkBonds, archivedBonds.filter(query::matches));
+    }
+
+    private int getArchiveSlot(CharSequence bondId) {
+        return this.archive == null ? -1 : this.archive.getSlot(bondId);
+    }
+
+    private void removeFromArchive(CharSequence bondId) {
+        int slot = this.archive.getSlot(bondId);
+        if (slot != -1) {
+            this.archive.remove(slot);
+        }
+    }
+}
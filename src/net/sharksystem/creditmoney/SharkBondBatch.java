@@ -0,0 +1,83 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bonds received in one batch message, see {@link SharkBondSerializer#serializeCreditBonds}.
+ */
+class SharkBondBatch {
+    private final List<SharkBond> sharkBonds;
+    private final List<byte[]> encodedBonds;
+    private final SharkBondBatchHeader header;
+    private final byte[] signature;
+    private boolean verified = false;
+    // Merkle tree over all bonds - built once, proofs of all bonds read it
+    private volatile List<List<byte[]>> levels;
+
+    SharkBondBatch(List<SharkBond> sharkBonds, List<byte[]> encodedBonds, SharkBondBatchHeader header,
+                   byte[] signature) {
+        this.sharkBonds = sharkBonds;
+        this.encodedBonds = encodedBonds;
+        this.header = header;
+        this.signature = signature;
+    }
+
+    List<SharkBond> getSharkBonds() {
+        return Collections.unmodifiableList(this.sharkBonds);
+    }
+
+    CharSequence getSender() {
+        return this.header.getSender();
+    }
+
+    /**
+     * @return true if signed by sender, the signed Merkle root matches the bonds and the sender is a party of each
+     * bond
+     */
+    boolean isVerified() {
+        return this.verified;
+    }
+
+    /**
+     * @return proof that bond number index was part of this batch - can be kept and checked without the other
+     * bonds
+     */
+    SharkBondInclusionProof getInclusionProof(int index) {
+        return new SharkBondInclusionProof(this.header, this.signature, index, this.encodedBonds.size(),
+                SharkBondMerkleTree.proofOf(this.getLevels(), index));
+    }
+
+    void verify(ASAPKeyStore asapKeyStore) {
+        this.verified = false;
+        if (this.signature == null || this.encodedBonds.isEmpty()) return;
+        List<List<byte[]>> levels = this.getLevels();
+        if (!Arrays.equals(this.header.getMerkleRoot(), levels.get(levels.size() - 1).get(0))) return;
+        // a signed batch proves who sent it - not that the sender has got anything to do with a bond
+        for (SharkBond sharkBond : this.sharkBonds) {
+            if (!this.header.isSentByPartyOf(sharkBond)) return;
+        }
+
+        try {
+            this.verified = SharkBondHelper.isSignatureCorrect(this.header.getSerializedHeader(), this.signature,
+                    this.header.getSender().toString(), asapKeyStore);
+        } catch (ASAPSecurityException e) {
+            // verified definitely false
+            this.verified = false;
+        }
+    }
+
+    private List<List<byte[]>> getLevels() {
+        List<List<byte[]>> levels = this.levels;
+        if (levels == null) {
+            levels = SharkBondMerkleTree.levels(SharkBondMerkleTree.leafHashes(this.encodedBonds));
+            this.levels = levels;
+        }
+
+        return levels;
+    }
+}
@@ -0,0 +1,53 @@
+package net.sharksystem.creditmoney;
+
+import java.util.Set;
+
+/**
+ * Signed part of a bond batch: Merkle root over all bonds, sender and recipients.
+ */
+class SharkBondBatchHeader {
+    private final byte[] serializedHeader;
+    private final byte[] merkleRoot;
+    private final CharSequence sender;
+    private final Set<CharSequence> recipients;
+
+    SharkBondBatchHeader(byte[] serializedHeader, byte[] merkleRoot, CharSequence sender,
+                         Set<CharSequence> recipients) {
+        this.serializedHeader = serializedHeader;
+        this.merkleRoot = merkleRoot;
+        this.sender = sender;
+        this.recipients = recipients;
+    }
+
+    /**
+     * @return signed bytes - do not change
+     */
+    byte[] getSerializedHeader() {
+        return this.serializedHeader;
+    }
+
+    byte[] getMerkleRoot() {
+        return this.merkleRoot;
+    }
+
+    CharSequence getSender() {
+        return this.sender;
+    }
+
+    Set<CharSequence> getRecipients() {
+        return this.recipients;
+    }
+
+    /**
+     * @return true if the sender is creditor or debtor of this bond - or the peer a transfer goes to
+     */
+    boolean isSentByPartyOf(SharkBond sharkBond) {
+        String sender = this.sender.toString();
+        return isPeer(sender, sharkBond.getCreditorID()) || isPeer(sender, sharkBond.getDebtorID())
+                || isPeer(sender, sharkBond.getTempCreditorID()) || isPeer(sender, sharkBond.getTempDebtorID());
+    }
+
+    private static boolean isPeer(String peerID, CharSequence otherPeerID) {
+        return otherPeerID != null && peerID.equals(otherPeerID.toString());
+    }
+}
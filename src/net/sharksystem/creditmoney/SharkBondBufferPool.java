@@ -0,0 +1,67 @@
+package net.sharksystem.creditmoney;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable heap buffers for bond messages. A message is written into one buffer - no stream copies it around.
+ * Buffers are handed back after the message left the buffer. Few and small buffers are kept, larger ones are
+ * left to the garbage collector.
+ */
+class SharkBondBufferPool {
+    static final int MIN_CAPACITY = 1024;
+    static final int MAX_POOLED_CAPACITY = 64 * 1024;
+    static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledBuffers = new AtomicInteger();
+
+    /**
+     * @return cleared buffer with at least this capacity
+     */
+    static ByteBuffer acquire(int capacity) {
+        if (capacity <= MAX_POOLED_CAPACITY) {
+            Iterator<ByteBuffer> iterator = buffers.iterator();
+            while (iterator.hasNext()) {
+                ByteBuffer buffer = iterator.next();
+                if (buffer.capacity() >= capacity && buffers.remove(buffer)) {
+                    pooledBuffers.decrementAndGet();
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+
+        return ByteBuffer.allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(capacity - 1) << 1));
+    }
+
+    /**
+     * @return buffer with at least this capacity holding the content of buffer up to its position - buffer is
+     * released if a new one was needed
+     */
+    static ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) return buffer;
+
+        ByteBuffer largerBuffer = acquire(capacity);
+        buffer.flip();
+        largerBuffer.put(buffer);
+        release(buffer);
+
+        return largerBuffer;
+    }
+
+    /**
+     * Buffer must not be used afterwards.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > MAX_POOLED_CAPACITY) return;
+
+        if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            buffers.offer(buffer);
+        } else {
+            pooledBuffers.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package net.sharksystem.creditmoney;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bytes signed by creditor and debtor: the encoded bond without signatures. Signatures are left out - a bond
+ * signed by one party has the same canonical form as before, the other party signs and verifies the same bytes.
+ * <br/>
+ * {@link InMemoSharkBond} keeps its canonical form until the bond changes. Signing and verifying a bond during a
+ * transfer encodes it once.
+ */
+class SharkBondCanonicalForm {
+    static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    // state of the bond this form was computed from
+    private final int bondVersion;
+    private final byte[] encodedBond;
+    private volatile byte[] contentHash;
+    // signed message content per sender and recipient
+    private final ConcurrentHashMap<List<String>, byte[]> signedContents = new ConcurrentHashMap<>(4);
+
+    SharkBondCanonicalForm(SharkBond sharkBond, int bondVersion) {
+        this.bondVersion = bondVersion;
+        this.encodedBond = SharkBondCodec.encode(sharkBond, true);
+    }
+
+    /**
+     * @return cached form of an {@link InMemoSharkBond}, a new one otherwise
+     */
+    static SharkBondCanonicalForm of(SharkBond sharkBond) {
+        if (sharkBond instanceof InMemoSharkBond) {
+            return ((InMemoSharkBond) sharkBond).getCanonicalForm();
+        }
+
+        return new SharkBondCanonicalForm(sharkBond, 0);
+    }
+
+    int getBondVersion() {
+        return this.bondVersion;
+    }
+
+    /**
+     * @return SHA-256 of the encoded bond - same bond state, same hash - do not change. Key of verified signatures,
+     * see {@link SharkBondVerificationCache#bondKey}
+     */
+    byte[] getContentHash() {
+        byte[] contentHash = this.contentHash;
+        if (contentHash == null) {
+            try {
+                contentHash = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM).digest(this.encodedBond);
+            } catch (NoSuchAlgorithmException e) {
+                // each java platform supports SHA-256
+                throw new IllegalStateException(e);
+            }
+            this.contentHash = contentHash;
+        }
+
+        return contentHash;
+    }
+
+    /**
+     * @return message content signed by sender for recipient (see
+     * {@link SharkBondSerializer#serializeCreditBond}) - do not change
+     */
+    byte[] getSignedContent(CharSequence sender, CharSequence recipient) {
+        List<String> key = Arrays.asList(
+                sender == null ? null : sender.toString(), recipient == null ? null : recipient.toString());
+        return this.signedContents.computeIfAbsent(key,
+                k -> SharkBondSerializer.serializeContent(this.encodedBond, sender, recipient));
+    }
+}
@@ -0,0 +1,9 @@
+package net.sharksystem.creditmoney;
+
+/**
+ * Informed whenever a bond changes a value a storage is indexing, e.g. when a transfer sets a new creditor or
+ * debtor on a bond that is already stored.
+ */
+interface SharkBondChangedListener {
+    void sharkBondChanged(SharkBond sharkBond);
+}
@@ -0,0 +1,359 @@
+package net.sharksystem.creditmoney;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of a bond. Replaces java serialization: no class descriptors, no reflection while decoding.
+ * <pre>
+ * format id (1 byte) | version (1 byte) | fields
+ * field: key (varint: field number << 3 | wire type) | value
+ * </pre>
+ * Wire type 0 is a varint (numbers zigzag encoded), wire type 2 a varint length followed by that many bytes
+ * (UTF-8 strings, signatures). Fields which are null are not written. Decoders skip fields they do not know -
+ * newer versions can add fields without breaking older peers.
+ * <br/>
+ * Encoding is deterministic - same bond, same bytes. Signatures rely on that.
+ */
+class SharkBondCodec {
+    static final byte FORMAT_ID = (byte) 0xB5;
+    static final byte VERSION = 1;
+
+    private static final int VARINT = 0;
+    private static final int LENGTH_DELIMITED = 2;
+
+    private static final int BOND_ID = 1;
+    private static final int CREDITOR_ID = 2;
+    private static final int DEBTOR_ID = 3;
+    private static final int UNIT_DESCRIPTION = 4;
+    private static final int AMOUNT = 5;
+    private static final int EXPIRATION_DATE = 6;
+    private static final int CREDITOR_SIGNATURE = 7;
+    private static final int DEBTOR_SIGNATURE = 8;
+    private static final int TEMP_CREDITOR_ID = 9;
+    private static final int TEMP_DEBTOR_ID = 10;
+    private static final int STATE = 11;
+
+    // bits of field STATE
+    private static final int ALLOWED_TO_CHANGE_CREDITOR = 0x1;
+    private static final int ALLOWED_TO_CHANGE_DEBTOR = 0x2;
+    private static final int ANNULLED_BY_CREDITOR = 0x4;
+    private static final int ANNULLED_BY_DEBTOR = 0x8;
+
+    static byte[] encode(SharkBond sharkBond) {
+        return encode(sharkBond, false);
+    }
+
+    /**
+     * @param excludeSignatures encode bond as if it had no creditor and debtor signature
+     * @return encoded bond - the only array allocated
+     */
+    static byte[] encode(SharkBond sharkBond, boolean excludeSignatures) {
+        byte[] encodedBond = new byte[encodedLength(sharkBond, excludeSignatures)];
+        encode(sharkBond, excludeSignatures, encodedBond, 0);
+
+        return encodedBond;
+    }
+
+    static int encodedLength(SharkBond sharkBond, boolean excludeSignatures) {
+        Writer writer = new Writer(null, 0);
+        write(sharkBond, excludeSignatures, writer);
+
+        return writer.position;
+    }
+
+    /**
+     * Writes the bond into target - target must have space for {@link #encodedLength(SharkBond, boolean)} bytes.
+     *
+     * @return offset behind the encoded bond
+     */
+    static int encode(SharkBond sharkBond, boolean excludeSignatures, byte[] target, int offset) {
+        Writer writer = new Writer(target, offset);
+        write(sharkBond, excludeSignatures, writer);
+
+        return writer.position;
+    }
+
+    /**
+     * @throws IOException data is no encoded bond, is truncated or corrupt
+     */
+    static SharkBond decode(byte[] data) throws IOException {
+        return decode(data, 0, data.length);
+    }
+
+    static SharkBond decode(byte[] data, int offset, int length) throws IOException {
+        Reader reader = new Reader(data, offset, length);
+        if (length < 2 || data[offset] != FORMAT_ID) {
+            throw new IOException("no encoded bond");
+        }
+        int version = data[offset + 1];
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unsupported bond format version: " + version);
+        }
+        reader.position += 2;
+
+        String bondID = null, creditorID = null, debtorID = null, unitDescription = null;
+        String tempCreditorID = null, tempDebtorID = null;
+        byte[] creditorSignature = null, debtorSignature = null;
+        int amount = 0;
+        long expirationDate = 0;
+        int state = 0;
+
+        while (reader.hasRemaining()) {
+            long key = reader.readVarint();
+            int wireType = (int) (key & 0x7);
+            long field = key >>> 3;
+            if (wireType != VARINT && wireType != LENGTH_DELIMITED) {
+                throw new IOException("unknown wire type " + wireType + " of field " + field);
+            }
+
+            if (wireType == VARINT) {
+                long value = reader.readVarint();
+                if (field == AMOUNT) amount = (int) unzigzag(value);
+                else if (field == EXPIRATION_DATE) expirationDate = unzigzag(value);
+                else if (field == STATE) state = (int) value;
+                // else: unknown field - skipped
+            } else {
+                int valueLength = reader.readLength();
+                if (field == BOND_ID) bondID = reader.readString(valueLength);
+                else if (field == CREDITOR_ID) creditorID = reader.readString(valueLength);
+                else if (field == DEBTOR_ID) debtorID = reader.readString(valueLength);
+                else if (field == UNIT_DESCRIPTION) unitDescription = reader.readString(valueLength);
+                else if (field == TEMP_CREDITOR_ID) tempCreditorID = reader.readString(valueLength);
+                else if (field == TEMP_DEBTOR_ID) tempDebtorID = reader.readString(valueLength);
+                else if (field == CREDITOR_SIGNATURE) creditorSignature = reader.readBytes(valueLength);
+                else if (field == DEBTOR_SIGNATURE) debtorSignature = reader.readBytes(valueLength);
+                else reader.position += valueLength;
+            }
+        }
+
+        if (bondID == null) throw new IOException("encoded bond has no id");
+
+        return new InMemoSharkBond(bondID, creditorID, debtorID, unitDescription, amount, expirationDate,
+                debtorSignature, creditorSignature,
+                (state & ALLOWED_TO_CHANGE_CREDITOR) != 0, (state & ALLOWED_TO_CHANGE_DEBTOR) != 0,
+                (state & ANNULLED_BY_CREDITOR) != 0, (state & ANNULLED_BY_DEBTOR) != 0,
+                tempCreditorID, tempDebtorID);
+    }
+
+    /**
+     * @return id of the encoded bond - nothing else is decoded
+     * @throws IOException data is no encoded bond, is truncated or corrupt
+     */
+    static String readBondID(byte[] data, int offset, int length) throws IOException {
+        Reader reader = new Reader(data, offset, length);
+        if (length < 2 || data[offset] != FORMAT_ID) {
+            throw new IOException("no encoded bond");
+        }
+        reader.position += 2;
+
+        // id is written first
+        while (reader.hasRemaining()) {
+            long key = reader.readVarint();
+            int wireType = (int) (key & 0x7);
+            if (wireType == VARINT) {
+                reader.readVarint();
+            } else if (wireType == LENGTH_DELIMITED) {
+                int valueLength = reader.readLength();
+                if (key >>> 3 == BOND_ID) return reader.readString(valueLength);
+                reader.position += valueLength;
+            } else {
+                throw new IOException("unknown wire type " + wireType);
+            }
+        }
+
+        throw new IOException("encoded bond has no id");
+    }
+
+    /**
+     * @return true if data starts like an encoded bond
+     */
+    static boolean isEncodedBond(byte[] data) {
+        return data != null && data.length >= 2 && data[0] == FORMAT_ID;
+    }
+
+    private static void write(SharkBond sharkBond, boolean excludeSignatures, Writer writer) {
+        writer.writeByte(FORMAT_ID);
+        writer.writeByte(VERSION);
+        writer.writeString(BOND_ID, sharkBond.getBondID());
+        writer.writeString(CREDITOR_ID, sharkBond.getCreditorID());
+        writer.writeString(DEBTOR_ID, sharkBond.getDebtorID());
+        writer.writeString(UNIT_DESCRIPTION, sharkBond.unitDescription());
+        writer.writeNumber(AMOUNT, sharkBond.getAmount());
+        writer.writeNumber(EXPIRATION_DATE, sharkBond.getExpirationDate());
+        if (!excludeSignatures) {
+            writer.writeBytes(CREDITOR_SIGNATURE, sharkBond.getCreditorSignature());
+            writer.writeBytes(DEBTOR_SIGNATURE, sharkBond.getDebtorSignature());
+        }
+        writer.writeString(TEMP_CREDITOR_ID, sharkBond.getTempCreditorID());
+        writer.writeString(TEMP_DEBTOR_ID, sharkBond.getTempDebtorID());
+
+        int state = 0;
+        if (sharkBond.allowedToChangeCreditor()) state |= ALLOWED_TO_CHANGE_CREDITOR;
+        if (sharkBond.allowedToChangeDebtor()) state |= ALLOWED_TO_CHANGE_DEBTOR;
+        if (sharkBond.getBondIsAnnulledByCreditor()) state |= ANNULLED_BY_CREDITOR;
+        if (sharkBond.getBondIsAnnulledByDebtor()) state |= ANNULLED_BY_DEBTOR;
+        writer.writeKey(STATE, VARINT);
+        writer.writeVarint(state);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes into buffer or - buffer is null - only counts bytes. Both runs must see the same bond.
+     */
+    private static class Writer {
+        private final byte[] buffer;
+        private int position;
+
+        Writer(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        void writeByte(int value) {
+            if (this.buffer != null) this.buffer[this.position] = (byte) value;
+            this.position++;
+        }
+
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                this.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            this.writeByte((int) value);
+        }
+
+        void writeKey(int field, int wireType) {
+            this.writeVarint(((long) field << 3) | wireType);
+        }
+
+        void writeNumber(int field, long value) {
+            this.writeKey(field, VARINT);
+            this.writeVarint(zigzag(value));
+        }
+
+        void writeBytes(int field, byte[] value) {
+            if (value == null) return;
+
+            this.writeKey(field, LENGTH_DELIMITED);
+            this.writeVarint(value.length);
+            if (this.buffer != null) System.arraycopy(value, 0, this.buffer, this.position, value.length);
+            this.position += value.length;
+        }
+
+        void writeString(int field, CharSequence value) {
+            if (value == null) return;
+
+            this.writeKey(field, LENGTH_DELIMITED);
+            this.writeVarint(utf8Length(value));
+            // same encoding as String.getBytes(UTF_8) - without the temporary array
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    this.writeByte(c);
+                } else if (c < 0x800) {
+                    this.writeByte(0xC0 | (c >> 6));
+                    this.writeByte(0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    this.writeByte(0xF0 | (codePoint >> 18));
+                    this.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                    this.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                    this.writeByte(0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate
+                    this.writeByte('?');
+                } else {
+                    this.writeByte(0xE0 | (c >> 12));
+                    this.writeByte(0x80 | ((c >> 6) & 0x3F));
+                    this.writeByte(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static int utf8Length(CharSequence value) {
+            int utf8Length = 0;
+            int length = value.length();
+            for (int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    utf8Length += 1;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) {
+                    utf8Length += 1;
+                } else {
+                    utf8Length += 3;
+                }
+            }
+
+            return utf8Length;
+        }
+    }
+
+    /**
+     * Reads untrusted data - each length is checked against the bytes left.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        boolean hasRemaining() {
+            return this.position < this.end;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.position >= this.end) throw new IOException("truncated bond");
+                byte b = this.data[this.position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+
+            throw new IOException("malformed varint in bond");
+        }
+
+        int readLength() throws IOException {
+            long length = this.readVarint();
+            if (length < 0 || length > this.end - this.position) {
+                throw new IOException("field length exceeds bond: " + length);
+            }
+
+            return (int) length;
+        }
+
+        String readString(int length) {
+            String value = new String(this.data, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+
+        byte[] readBytes(int length) {
+            byte[] value = new byte[length];
+            System.arraycopy(this.data, this.position, value, 0, length);
+            this.position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package net.sharksystem.creditmoney;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bonds of a {@link SharkBondStorageImpl} as columns for reports over all bonds. Amount, expiration date, creditor,
+ * debtor, unit and annulment of the bond at storage position i are kept at index i of primitive arrays - peers and
+ * units as symbols (see {@link SharkBondSymbolTable}). Scans run over the arrays and allocate nothing per bond.
+ * <br/>
+ * Created by {@link SharkBondStorageImpl#getColumns()} and kept up to date by the storage. Covers bonds the storage
+ * holds in memory. An annulment is seen after the bond is updated in the storage - bonds do not report it.
+ * Not thread-safe - like the storage.
+ */
+public class SharkBondColumns {
+    private static final byte ANNULLED_BY_CREDITOR = 0x1;
+    private static final byte ANNULLED_BY_DEBTOR = 0x2;
+    private static final byte ANNULLED = ANNULLED_BY_CREDITOR | ANNULLED_BY_DEBTOR;
+    // null parameter - any peer or unit
+    private static final int ANY = Integer.MIN_VALUE;
+
+    private int size = 0;
+    private int[] amounts = new int[16];
+    private long[] expirationDates = new long[16];
+    private int[] creditorIDs = new int[16];
+    private int[] debtorIDs = new int[16];
+    private int[] unitDescriptions = new int[16];
+    private byte[] status = new byte[16];
+
+    SharkBondColumns() {
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @param creditorID null: any creditor
+     * @param debtorID null: any debtor
+     * @param unitDescription null: any unit - amounts of different units are added up
+     * @return sum of amounts of bonds neither annulled nor expired at this time
+     */
+    public long getExposure(CharSequence creditorID, CharSequence debtorID, CharSequence unitDescription, long at) {
+        int creditor = toSymbol(SharkBondSymbolTable.PEER_IDS, creditorID);
+        int debtor = toSymbol(SharkBondSymbolTable.PEER_IDS, debtorID);
+        int unit = toSymbol(SharkBondSymbolTable.UNITS, unitDescription);
+        if (creditor == SharkBondSymbolTable.UNKNOWN_SYMBOL || debtor == SharkBondSymbolTable.UNKNOWN_SYMBOL
+                || unit == SharkBondSymbolTable.UNKNOWN_SYMBOL) {
+            return 0;
+        }
+
+        long exposure = 0;
+        for (int i = 0; i < this.size; i++) {
+            if ((creditor == ANY || this.creditorIDs[i] == creditor) && (debtor == ANY || this.debtorIDs[i] == debtor)
+                    && (unit == ANY || this.unitDescriptions[i] == unit) && this.isLive(i, at)) {
+                exposure += this.amounts[i];
+            }
+        }
+
+        return exposure;
+    }
+
+    /**
+     * @return amounts owed to this peer minus amounts owed by this peer - bonds neither annulled nor expired at this
+     * time
+     */
+    public long getBalance(CharSequence peerID, CharSequence unitDescription, long at) {
+        int peer = SharkBondSymbolTable.PEER_IDS.lookup(peerID);
+        int unit = toSymbol(SharkBondSymbolTable.UNITS, unitDescription);
+        if (peer == SharkBondSymbolTable.UNKNOWN_SYMBOL || unit == SharkBondSymbolTable.UNKNOWN_SYMBOL) return 0;
+
+        long balance = 0;
+        for (int i = 0; i < this.size; i++) {
+            if ((unit == ANY || this.unitDescriptions[i] == unit) && this.isLive(i, at)) {
+                if (this.creditorIDs[i] == peer) balance += this.amounts[i];
+                if (this.debtorIDs[i] == peer) balance -= this.amounts[i];
+            }
+        }
+
+        return balance;
+    }
+
+    /**
+     * @return balance (see {@link #getBalance}) of each peer named in a bond - one scan over all bonds
+     */
+    public Map<String, Long> getBalances(CharSequence unitDescription, long at) {
+        Map<String, Long> balances = new HashMap<>();
+        int unit = toSymbol(SharkBondSymbolTable.UNITS, unitDescription);
+        if (unit == SharkBondSymbolTable.UNKNOWN_SYMBOL) return balances;
+
+        // indexed by symbol - all symbols in the columns were interned before
+        int symbolCount = SharkBondSymbolTable.PEER_IDS.size() + 1;
+        long[] balanceBySymbol = new long[symbolCount];
+        boolean[] named = new boolean[symbolCount];
+        for (int i = 0; i < this.size; i++) {
+            if ((unit == ANY || this.unitDescriptions[i] == unit) && this.isLive(i, at)) {
+                balanceBySymbol[this.creditorIDs[i]] += this.amounts[i];
+                balanceBySymbol[this.debtorIDs[i]] -= this.amounts[i];
+                named[this.creditorIDs[i]] = true;
+                named[this.debtorIDs[i]] = true;
+            }
+        }
+
+        for (int symbol = 1; symbol < symbolCount; symbol++) {
+            if (named[symbol]) {
+                balances.put(SharkBondSymbolTable.PEER_IDS.get(symbol), balanceBySymbol[symbol]);
+            }
+        }
+
+        return balances;
+    }
+
+    /**
+     * @return number of bonds not annulled which expire from (including) until (excluding)
+     */
+    public int countExpiring(long from, long until) {
+        int count = 0;
+        for (int i = 0; i < this.size; i++) {
+            if (this.expirationDates[i] >= from && this.expirationDates[i] < until
+                    && (this.status[i] & ANNULLED) != ANNULLED) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private boolean isLive(int i, long at) {
+        return (this.status[i] & ANNULLED) != ANNULLED && this.expirationDates[i] > at;
+    }
+
+    private static int toSymbol(SharkBondSymbolTable symbolTable, CharSequence string) {
+        return string == null ? ANY : symbolTable.lookup(string);
+    }
+
+    void add(SharkBond sharkBond) {
+        if (this.size == this.amounts.length) {
+            int capacity = this.size * 2;
+            this.amounts = Arrays.copyOf(this.amounts, capacity);
+            this.expirationDates = Arrays.copyOf(this.expirationDates, capacity);
+            this.creditorIDs = Arrays.copyOf(this.creditorIDs, capacity);
+            this.debtorIDs = Arrays.copyOf(this.debtorIDs, capacity);
+            this.unitDescriptions = Arrays.copyOf(this.unitDescriptions, capacity);
+            this.status = Arrays.copyOf(this.status, capacity);
+        }
+        this.size++;
+        this.set(this.size - 1, sharkBond);
+    }
+
+    void set(int index, SharkBond sharkBond) {
+        this.amounts[index] = sharkBond.getAmount();
+        this.expirationDates[index] = sharkBond.getExpirationDate();
+        this.creditorIDs[index] = SharkBondSymbolTable.PEER_IDS.intern(sharkBond.getCreditorID());
+        this.debtorIDs[index] = SharkBondSymbolTable.PEER_IDS.intern(sharkBond.getDebtorID());
+        this.unitDescriptions[index] = SharkBondSymbolTable.UNITS.intern(sharkBond.unitDescription());
+        this.status[index] = (byte) ((sharkBond.getBondIsAnnulledByCreditor() ? ANNULLED_BY_CREDITOR : 0)
+                | (sharkBond.getBondIsAnnulledByDebtor() ? ANNULLED_BY_DEBTOR : 0));
+    }
+
+    /**
+     * Removes like the storage does: the last bond takes the position of the removed one.
+     */
+    void remove(int index) {
+        int last = this.size - 1;
+        this.amounts[index] = this.amounts[last];
+        this.expirationDates[index] = this.expirationDates[last];
+        this.creditorIDs[index] = this.creditorIDs[last];
+        this.debtorIDs[index] = this.debtorIDs[last];
+        this.unitDescriptions[index] = this.unitDescriptions[last];
+        this.status[index] = this.status[last];
+        this.size = last;
+    }
+
+    void clear() {
+        this.size = 0;
+    }
+}
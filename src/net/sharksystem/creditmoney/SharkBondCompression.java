@@ -0,0 +1,154 @@
+package net.sharksystem.creditmoney;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression stage of bond messages (flag {@link SharkBond#COMPRESSED_MASK}). Applied to the message body after
+ * signing and before encryption - encrypted data does not compress.
+ * <pre>
+ * dictionary id (1 byte) | uncompressed length (4 bytes) | raw deflate data
+ * </pre>
+ * Bodies below COMPRESSION_THRESHOLD - most single bond messages - and bodies which do not shrink are sent as they
+ * are. Batches and large messages look alike: deflate starts with a preset dictionary taken from encoded bond
+ * messages.
+ */
+class SharkBondCompression {
+    static final int COMPRESSION_THRESHOLD = 1024;
+    // larger bodies are refused - no message inflates to gigabytes
+    static final int MAX_UNCOMPRESSED_LENGTH = 64 * 1024 * 1024;
+
+    // peers must use the same dictionary - any change needs a new id
+    static final byte DICTIONARY_ID = 2;
+    /**
+     * Bodies of signed bond messages (units hour, USD, EUR) without bond ids, peer ids and signature bytes: lengths,
+     * codec header, field keys, expiration date, state, recipient count - most common unit last, deflate finds
+     * matches best close to the data. Do not change - see DICTIONARY_ID.
+     */
+    static final byte[] DICTIONARY = {
+            0x00, 0x00, 0x02, 0x48, 0x00, 0x00, 0x02, 0x40, (byte) 0xb5, 0x01,
+            0x0a, 0x24, 0x22, 0x04, 0x68, 0x6f, 0x75, 0x72, 0x28, (byte) 0xc8,
+            0x01, 0x30, (byte) 0x80, (byte) 0xa0, (byte) 0xd5, (byte) 0xed, (byte) 0xee, 0x66, 0x3a, (byte) 0x80,
+            0x02, 0x42, (byte) 0x80, 0x02, 0x58, 0x00, 0x00, 0x00, 0x00, 0x01,
+            0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x02, 0x47, 0x00, 0x00,
+            0x02, 0x3f, (byte) 0xb5, 0x01, 0x0a, 0x24, 0x22, 0x03, 0x55, 0x53,
+            0x44, 0x28, (byte) 0xc8, 0x01, 0x30, (byte) 0x80, (byte) 0xa0, (byte) 0xd5, (byte) 0xed, (byte) 0xee,
+            0x66, 0x3a, (byte) 0x80, 0x02, 0x42, (byte) 0x80, 0x02, 0x58, 0x00, 0x00,
+            0x00, 0x00, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x02,
+            0x47, 0x00, 0x00, 0x02, 0x3f, (byte) 0xb5, 0x01, 0x0a, 0x24, 0x22,
+            0x03, 0x45, 0x55, 0x52, 0x28, (byte) 0xc8, 0x01, 0x30, (byte) 0x80, (byte) 0xa0,
+            (byte) 0xd5, (byte) 0xed, (byte) 0xee, 0x66, 0x3a, (byte) 0x80, 0x02, 0x42, (byte) 0x80, 0x02,
+            0x58, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x00, 0x01, 0x00
+    };
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    /**
+     * @return compressed data or null if below threshold or compression does not pay
+     */
+    static byte[] compress(byte[] data, int offset, int length) {
+        if (length < COMPRESSION_THRESHOLD) return null;
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+
+        // not smaller than the input - not worth it
+        byte[] compressed = new byte[length];
+        compressed[0] = DICTIONARY_ID;
+        compressed[1] = (byte) (length >>> 24);
+        compressed[2] = (byte) (length >>> 16);
+        compressed[3] = (byte) (length >>> 8);
+        compressed[4] = (byte) length;
+        int compressedLength = 5;
+        while (!deflater.finished() && compressedLength < compressed.length) {
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        if (!deflater.finished()) return null;
+
+        byte[] result = new byte[compressedLength];
+        System.arraycopy(compressed, 0, result, 0, compressedLength);
+        return result;
+    }
+
+    /**
+     * @return stream of the uncompressed body - ends with the body
+     */
+    static InputStream decompress(InputStream compressed) throws IOException {
+        DataInputStream is = new DataInputStream(compressed);
+        Inflater inflater = newInflater(is.readByte());
+        int length = readUncompressedLength(is);
+
+        return new SharkBondSerializer.LimitedInputStream(new InflaterInputStream(is, inflater), length);
+    }
+
+    static byte[] decompress(byte[] data, int offset, int length) throws IOException {
+        return decompress(data, offset, length, MAX_UNCOMPRESSED_LENGTH);
+    }
+
+    /**
+     * @return first maxLength bytes of the uncompressed body at most - nothing behind is inflated
+     */
+    static byte[] decompress(byte[] data, int offset, int length, int maxLength) throws IOException {
+        int uncompressedLength = Math.min(uncompressedLength(data, offset, length), maxLength);
+
+        Inflater inflater = newInflater(data[offset]);
+        try {
+            byte[] uncompressed = new byte[uncompressedLength];
+            inflater.setInput(data, offset + 5, length - 5);
+            int inflated = 0;
+            while (inflated < uncompressedLength && !inflater.finished()) {
+                int n = inflater.inflate(uncompressed, inflated, uncompressedLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += n;
+            }
+            if (inflated != uncompressedLength) throw new IOException("truncated compressed bond message");
+
+            return uncompressed;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed bond message", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return length of the body compressed in data - as claimed by the sender
+     */
+    static int uncompressedLength(byte[] data, int offset, int length) throws IOException {
+        if (length < 5) throw new IOException("truncated compressed bond message");
+
+        return checkUncompressedLength(((data[offset + 1] & 0xFF) << 24) | ((data[offset + 2] & 0xFF) << 16)
+                | ((data[offset + 3] & 0xFF) << 8) | (data[offset + 4] & 0xFF));
+    }
+
+    private static Inflater newInflater(byte dictionaryID) throws IOException {
+        if (dictionaryID != DICTIONARY_ID) {
+            throw new IOException("unknown compression dictionary: " + dictionaryID);
+        }
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+
+        return inflater;
+    }
+
+    private static int readUncompressedLength(DataInputStream is) throws IOException {
+        return checkUncompressedLength(is.readInt());
+    }
+
+    private static int checkUncompressedLength(int length) throws IOException {
+        if (length < 0 || length > MAX_UNCOMPRESSED_LENGTH) {
+            throw new IOException("invalid uncompressed length: " + length);
+        }
+
+        return length;
+    }
+}
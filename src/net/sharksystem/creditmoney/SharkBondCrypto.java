@@ -0,0 +1,170 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Crypto of bond messages without repeated setup: public keys are looked up once per key store and peer, Signature
+ * and Cipher objects are created once per thread and algorithm. Works like ASAPCryptoAlgorithms.
+ * <br/>
+ * Key stores tell nobody about changed certificates. A public key is looked up again after
+ * PUBLIC_KEY_TIMEOUT_MILLIS or after {@link #forgetPublicKey}.
+ */
+class SharkBondCrypto {
+    static final long PUBLIC_KEY_TIMEOUT_MILLIS = 60 * 1000;
+
+    // key store -> peer id -> key - forgotten with the key store
+    private static final Map<ASAPKeyStore, Map<String, CachedPublicKey>> publicKeys =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    // not thread-safe - one per thread and algorithm
+    private static final ThreadLocal<Map<String, Signature>> signatures = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String, Cipher>> ciphers = ThreadLocal.withInitial(HashMap::new);
+
+    private static class CachedPublicKey {
+        private final PublicKey publicKey;
+        private final long lookedUp;
+
+        CachedPublicKey(PublicKey publicKey, long lookedUp) {
+            this.publicKey = publicKey;
+            this.lookedUp = lookedUp;
+        }
+    }
+
+    /**
+     * @return public key of this peer - null if unknown (unknown peers are not cached)
+     */
+    static PublicKey getPublicKey(ASAPKeyStore asapKeyStore, CharSequence peerID) throws ASAPSecurityException {
+        Map<String, CachedPublicKey> keys = publicKeys.computeIfAbsent(asapKeyStore, k -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        CachedPublicKey cachedPublicKey = keys.get(peerID.toString());
+        if (cachedPublicKey != null && now - cachedPublicKey.lookedUp < PUBLIC_KEY_TIMEOUT_MILLIS) {
+            return cachedPublicKey.publicKey;
+        }
+
+        PublicKey publicKey = asapKeyStore.getPublicKey(peerID);
+        if (publicKey != null) {
+            keys.put(peerID.toString(), new CachedPublicKey(publicKey, now));
+        }
+
+        return publicKey;
+    }
+
+    /**
+     * Look up the key of this peer again - e.g. its certificate was replaced or withdrawn.
+     */
+    static void forgetPublicKey(CharSequence peerID) {
+        synchronized (publicKeys) {
+            for (Map<String, CachedPublicKey> keys : publicKeys.values()) {
+                keys.remove(peerID.toString());
+            }
+        }
+    }
+
+    static byte[] sign(byte[] data, int offset, int length, ASAPKeyStore asapKeyStore) throws ASAPSecurityException {
+        String algorithm = asapKeyStore.getAsymmetricSigningAlgorithm();
+        try {
+            Signature signature = getSignature(algorithm);
+            signature.initSign(asapKeyStore.getPrivateKey());
+            signature.update(data, offset, length);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("cannot sign with " + algorithm, e);
+        }
+    }
+
+    /**
+     * @return one signature per data item, same order - signer is initialized once for all of them
+     */
+    static List<byte[]> signAll(List<byte[]> data, ASAPKeyStore asapKeyStore) throws ASAPSecurityException {
+        String algorithm = asapKeyStore.getAsymmetricSigningAlgorithm();
+        List<byte[]> signed = new ArrayList<>(data.size());
+        try {
+            Signature signature = getSignature(algorithm);
+            signature.initSign(asapKeyStore.getPrivateKey());
+            // sign() resets the signer to its initialized state
+            for (byte[] item : data) {
+                signature.update(item);
+                signed.add(signature.sign());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("cannot sign with " + algorithm, e);
+        }
+
+        return signed;
+    }
+
+    static boolean verify(byte[] data, byte[] signature, PublicKey publicKey, String algorithm)
+            throws ASAPSecurityException {
+        try {
+            Signature verifier = getSignature(algorithm);
+            verifier.initVerify(publicKey);
+            verifier.update(data);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("verifying failed: " + algorithm, e);
+        }
+    }
+
+    /**
+     * @return data encrypted in one go - use a Cipher of its own for streams
+     */
+    static byte[] encrypt(byte[] data, int offset, int length, Key key, String algorithm)
+            throws ASAPSecurityException {
+        try {
+            Cipher cipher = getCipher(algorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            return cipher.doFinal(data, offset, length);
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("cannot encrypt with " + algorithm, e);
+        }
+    }
+
+    static byte[] decrypt(byte[] data, Key key, String algorithm) throws ASAPSecurityException {
+        try {
+            Cipher cipher = getCipher(algorithm);
+            cipher.init(Cipher.DECRYPT_MODE, key);
+            return cipher.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("cannot decrypt with " + algorithm, e);
+        }
+    }
+
+    // init resets the state - each call starts from scratch
+    private static Signature getSignature(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, Signature> threadSignatures = signatures.get();
+        Signature signature = threadSignatures.get(algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm);
+            threadSignatures.put(algorithm, signature);
+        }
+
+        return signature;
+    }
+
+    private static Cipher getCipher(String algorithm) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Cipher> threadCiphers = ciphers.get();
+        Cipher cipher = threadCiphers.get(algorithm);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(algorithm);
+            threadCiphers.put(algorithm, cipher);
+        }
+
+        return cipher;
+    }
+}
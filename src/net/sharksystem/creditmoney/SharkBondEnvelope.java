@@ -0,0 +1,171 @@
+package net.sharksystem.creditmoney;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Header of a bond message (see {@link SharkBondSerializer#serializeCreditBond}) read without decrypting,
+ * verifying or decoding the bond. Good enough to decide whether a message is worth the full deserialization.
+ * <br/>
+ * Encrypted messages reveal their recipient only - sender and bond are part of the encrypted content. Compressed
+ * messages are inflated as far as the header fields reach, up to MAX_INFLATED_HEADER_LENGTH bytes.
+ */
+class SharkBondEnvelope {
+    // inflated from compressed messages - header fields only, not the whole body
+    static final int INFLATED_HEADER_LENGTH = 4 * 1024;
+    static final int MAX_INFLATED_HEADER_LENGTH = 64 * 1024;
+
+    private final byte flags;
+    private final Set<CharSequence> recipients;
+    private final CharSequence sender;
+    private final CharSequence bondID;
+
+    private SharkBondEnvelope(byte flags, Set<CharSequence> recipients, CharSequence sender, CharSequence bondID) {
+        this.flags = flags;
+        this.recipients = recipients;
+        this.sender = sender;
+        this.bondID = bondID;
+    }
+
+    /**
+     * @throws IOException message is truncated or no bond message
+     */
+    static SharkBondEnvelope parse(byte[] message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        try {
+            byte flags = buffer.get();
+            int length = readLength(buffer);
+            buffer.limit(buffer.position() + length);
+
+            if ((flags & SharkBond.ENCRYPTED_MASK) != 0) {
+                // encrypted package starts with its recipient
+                return new SharkBondEnvelope(flags, Collections.singleton(readString(buffer)), null, null);
+            }
+
+            if ((flags & SharkBond.COMPRESSED_MASK) != 0) {
+                return parseCompressed(flags, message, buffer.position(), length);
+            }
+
+            return parseBody(flags, message, buffer);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("malformed bond message", e);
+        }
+    }
+
+    /**
+     * Inflates no more than needed for the header fields - a start of INFLATED_HEADER_LENGTH bytes, more up to
+     * MAX_INFLATED_HEADER_LENGTH if the fields reach further.
+     */
+    private static SharkBondEnvelope parseCompressed(byte flags, byte[] message, int offset, int length)
+            throws IOException {
+        int uncompressedLength = SharkBondCompression.uncompressedLength(message, offset, length);
+        for (int inflatedLength = INFLATED_HEADER_LENGTH; ; inflatedLength *= 2) {
+            byte[] body = SharkBondCompression.decompress(message, offset, length, inflatedLength);
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            try {
+                SharkBondEnvelope envelope = parseBody(flags, body, buffer);
+                // recipients may go on behind the inflated part
+                if (body.length == uncompressedLength || buffer.position() < body.length) return envelope;
+            } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+                // whole body inflated - it is malformed
+                if (body.length == uncompressedLength) throw new IOException("malformed bond message", e);
+            }
+            if (inflatedLength >= MAX_INFLATED_HEADER_LENGTH) {
+                throw new IOException("bond message header exceeds " + MAX_INFLATED_HEADER_LENGTH + " bytes");
+            }
+        }
+    }
+
+    private static SharkBondEnvelope parseBody(byte flags, byte[] body, ByteBuffer buffer) throws IOException {
+        if ((flags & SharkBond.BATCH_MASK) != 0) {
+            // header comes first: root, sender, recipients
+            readLength(buffer);
+            int rootLength = readLength(buffer);
+            buffer.position(buffer.position() + rootLength);
+            CharSequence sender = readString(buffer);
+            return new SharkBondEnvelope(flags, readRecipients(buffer), sender, null);
+        }
+
+        if ((flags & SharkBond.SIGNED_MASK) != 0) {
+            int contentLength = readLength(buffer);
+            buffer.limit(buffer.position() + contentLength);
+        }
+
+        int bondLength = readLength(buffer);
+        CharSequence bondID = SharkBondCodec.readBondID(body, buffer.position(), bondLength);
+        buffer.position(buffer.position() + bondLength);
+        CharSequence sender = readString(buffer);
+
+        return new SharkBondEnvelope(flags, readRecipients(buffer), sender, bondID);
+    }
+
+    boolean isSigned() {
+        return (this.flags & SharkBond.SIGNED_MASK) != 0;
+    }
+
+    boolean isBatch() {
+        return (this.flags & SharkBond.BATCH_MASK) != 0;
+    }
+
+    boolean isEncrypted() {
+        return (this.flags & SharkBond.ENCRYPTED_MASK) != 0;
+    }
+
+    Set<CharSequence> getRecipients() {
+        return this.recipients;
+    }
+
+    boolean isFor(CharSequence peerID) {
+        for (CharSequence recipient : this.recipients) {
+            if (recipient != null && recipient.toString().equals(peerID.toString())) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return sender or null if encrypted
+     */
+    CharSequence getSender() {
+        return this.sender;
+    }
+
+    /**
+     * @return id of the bond or null if encrypted or a batch
+     */
+    CharSequence getBondID() {
+        return this.bondID;
+    }
+
+    private static Set<CharSequence> readRecipients(ByteBuffer buffer) throws IOException {
+        int recipientCount = readLength(buffer);
+        Set<CharSequence> recipients = new HashSet<>();
+        for (int i = 0; i < recipientCount && buffer.hasRemaining(); i++) {
+            recipients.add(readString(buffer));
+        }
+
+        return recipients;
+    }
+
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("length exceeds bond message: " + length);
+        }
+
+        return length;
+    }
+
+    // like ASAPSerialization.readCharSequenceParameter
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = readLength(buffer);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        buffer.position(buffer.position() + length);
+
+        return value;
+    }
+}
@@ -0,0 +1,195 @@
+package net.sharksystem.creditmoney;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of a bond storage ordered by expiration date. Bonds expiring within a time range are found by a
+ * range scan.
+ * <br/>
+ * Bonds added with an expiration date before {@link #setSweptUntil} - a range already swept by the
+ * {@link SharkBondExpirationSweeper} - are kept until taken with {@link #takeLateBondIDs()}.
+ */
+class SharkBondExpirationIndex {
+    private final boolean concurrent;
+    private final NavigableMap<Long, NavigableSet<String>> index;
+    private volatile long sweptUntil = Long.MIN_VALUE;
+    private volatile boolean replaying;
+    private final Queue<String> lateBondIDs = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param concurrent index can be changed and read by several threads at the same time
+     */
+    SharkBondExpirationIndex(boolean concurrent) {
+        this.concurrent = concurrent;
+        this.index = concurrent ? new ConcurrentSkipListMap<>() : new TreeMap<>();
+    }
+
+    void add(long expirationDate, String bondID) {
+        this.index.compute(expirationDate, (k, bondIDs) -> {
+            if (bondIDs == null) {
+                bondIDs = this.concurrent ? new ConcurrentSkipListSet<>() : new TreeSet<>();
+            }
+            bondIDs.add(bondID);
+            return bondIDs;
+        });
+    }
+
+    /**
+     * @param newExpirationDate bond was not indexed before or with another expiration date - it may be late
+     */
+    void add(long expirationDate, String bondID, boolean newExpirationDate) {
+        this.add(expirationDate, bondID);
+        if (newExpirationDate && !this.replaying && expirationDate < this.sweptUntil) {
+            this.lateBondIDs.add(bondID);
+        }
+    }
+
+    void setSweptUntil(long sweptUntil) {
+        this.sweptUntil = sweptUntil;
+    }
+
+    /**
+     * @param replaying bonds added from now on are read back from disk - they are not late
+     */
+    void setReplaying(boolean replaying) {
+        this.replaying = replaying;
+    }
+
+    /**
+     * @return ids of bonds added behind the swept range since the last call - bonds can be deleted meanwhile
+     */
+    List<String> takeLateBondIDs() {
+        List<String> bondIDs = new ArrayList<>();
+        for (String bondID = this.lateBondIDs.poll(); bondID != null; bondID = this.lateBondIDs.poll()) {
+            bondIDs.add(bondID);
+        }
+
+        return bondIDs;
+    }
+
+    void remove(long expirationDate, String bondID) {
+        this.index.computeIfPresent(expirationDate, (k, bondIDs) -> {
+            bondIDs.remove(bondID);
+            return bondIDs.isEmpty() ? null : bondIDs;
+        });
+    }
+
+    /**
+     * @param from inclusive
+     * @param until exclusive
+     * @return ids of bonds expiring in this range, earliest first - read while iterating like
+     * {@link SharkBondIndex#get(String)}
+     */
+    Collection<String> get(long from, long until) {
+        if (from >= until) return Collections.emptySet();
+
+        Collection<NavigableSet<String>> range = this.index.subMap(from, true, until, false).values();
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                if (!concurrent) return keysetIterator(from, until);
+
+                Iterator<NavigableSet<String>> rangeIterator = range.iterator();
+                return new Iterator<String>() {
+                    private Iterator<String> bondIDs = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!this.bondIDs.hasNext() && rangeIterator.hasNext()) {
+                            this.bondIDs = rangeIterator.next().iterator();
+                        }
+                        return this.bondIDs.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!this.hasNext()) throw new NoSuchElementException();
+                        return this.bondIDs.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count(from, until, Integer.MAX_VALUE);
+            }
+        };
+    }
+
+    // looks up the bond after the last one with each step - the index can be changed between two steps
+    private Iterator<String> keysetIterator(long from, long until) {
+        return new Iterator<String>() {
+            private long lastExpirationDate;
+            private String lastBondID;
+            private String nextBondID;
+            private long nextExpirationDate;
+
+            @Override
+            public boolean hasNext() {
+                if (this.nextBondID != null) return true;
+
+                if (this.lastBondID != null) {
+                    NavigableSet<String> bondIDs = index.get(this.lastExpirationDate);
+                    this.nextBondID = bondIDs == null ? null : bondIDs.higher(this.lastBondID);
+                    this.nextExpirationDate = this.lastExpirationDate;
+                }
+                if (this.nextBondID == null) {
+                    Map.Entry<Long, NavigableSet<String>> entry = this.lastBondID == null
+                            ? index.ceilingEntry(from) : index.higherEntry(this.lastExpirationDate);
+                    // empty sets are removed - no need to look further
+                    if (entry != null && entry.getKey() < until && !entry.getValue().isEmpty()) {
+                        this.nextBondID = entry.getValue().first();
+                        this.nextExpirationDate = entry.getKey();
+                    }
+                }
+                return this.nextBondID != null;
+            }
+
+            @Override
+            public String next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                this.lastBondID = this.nextBondID;
+                this.lastExpirationDate = this.nextExpirationDate;
+                this.nextBondID = null;
+                return this.lastBondID;
+            }
+        };
+    }
+
+    /**
+     * @return number of bonds expiring in this range - counting stops at limit
+     */
+    int count(long from, long until, int limit) {
+        if (from >= until) return 0;
+
+        int count = 0;
+        for (Set<String> bondIDs : this.index.subMap(from, true, until, false).values()) {
+            // sets are small - bonds rarely share an expiration date
+            count += bondIDs.size();
+            if (count >= limit) return limit;
+        }
+
+        return count;
+    }
+
+    void clear() {
+        // late bonds stay - the sweeper skips ids of bonds no longer stored
+        this.index.clear();
+    }
+}
@@ -0,0 +1,17 @@
+package net.sharksystem.creditmoney;
+
+/**
+ * Informed about stored bonds reaching their expiration date, see
+ * {@link SharkCreditMoneyComponent#addSharkBondExpirationListener(SharkBondExpirationListener)}.
+ */
+public interface SharkBondExpirationListener {
+    /**
+     * Bond expires within the warning period - e.g. time to ask the debtor for payment or to extend it.
+     */
+    void sharkBondExpiresSoon(SharkBond bond);
+
+    /**
+     * Bond has reached its expiration date.
+     */
+    void sharkBondExpired(SharkBond bond);
+}
@@ -0,0 +1,41 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.listenermanager.GenericListenerImplementation;
+import net.sharksystem.asap.listenermanager.GenericNotifier;
+
+public class SharkBondExpirationListenerManager extends GenericListenerImplementation<SharkBondExpirationListener> {
+    public void addSharkBondExpirationListener(SharkBondExpirationListener listener) {
+        this.addListener(listener);
+    }
+
+    public void removeSharkBondExpirationListener(SharkBondExpirationListener listener) {
+        this.removeListener(listener);
+    }
+
+    protected void notifySharkBondExpiresSoon(SharkBond bond) {
+        this.notifyAll(new SharkBondExpirationNotifier(bond, false), false);
+    }
+
+    protected void notifySharkBondExpired(SharkBond bond) {
+        this.notifyAll(new SharkBondExpirationNotifier(bond, true), false);
+    }
+
+    private class SharkBondExpirationNotifier implements GenericNotifier<SharkBondExpirationListener> {
+        private final SharkBond bond;
+        private final boolean expired;
+
+        public SharkBondExpirationNotifier(SharkBond bond, boolean expired) {
+            this.bond = bond;
+            this.expired = expired;
+        }
+
+        @Override
+        public void doNotify(SharkBondExpirationListener listener) {
+            if (this.expired) {
+                listener.sharkBondExpired(this.bond);
+            } else {
+                listener.sharkBondExpiresSoon(this.bond);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package net.sharksystem.creditmoney;
+
+import java.security.InvalidParameterException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Looks for stored bonds reaching their expiration date and tells listeners. Each sweep reads the time range
+ * passed since the last sweep from the expiration index of the storage - it does not scan all bonds.
+ * <br/>
+ * Each bond is reported once when it enters the warning period and once when it expires. Annulled bonds are not
+ * reported. The first sweep of a storage reports all bonds already expired - e.g. while the peer was offline. The
+ * sweeper keeps no record: after a restart these bonds are reported again.
+ * <br/>
+ * Bonds added or given a new expiration date inside a range already swept are reported with the next sweep - see
+ * {@link SharkBondExpirationIndex#takeLateBondIDs()}. Storages other than {@link SharkBondStorageImpl} and
+ * {@link ConcurrentSharkBondStorageImpl} do not tell about such bonds.
+ */
+class SharkBondExpirationSweeper {
+    static final long DEFAULT_SWEEP_INTERVAL_MILLIS = 60 * 1000;
+    static final long DEFAULT_EXPIRATION_WARNING_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    private final Supplier<SharkBondStorage> storage;
+    private final SharkBondExpirationListenerManager listenerManager;
+    private final long warningMillis;
+    // end of the time ranges already reported for this storage
+    private SharkBondStorage sweptStorage;
+    private long expiredUntil;
+    private long warnedUntil;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param storage storage to sweep - can be replaced while the sweeper runs
+     * @param warningMillis bonds are reported this time before they expire
+     */
+    SharkBondExpirationSweeper(Supplier<SharkBondStorage> storage,
+                               SharkBondExpirationListenerManager listenerManager, long warningMillis) {
+        this.storage = storage;
+        this.listenerManager = listenerManager;
+        this.warningMillis = warningMillis;
+    }
+
+    synchronized void start(long sweepIntervalMillis) {
+        if (this.executor != null) return;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SharkBond-expiration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(() -> {
+            try {
+                this.sweep(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (this.executor != null) {
+            this.executor.shutdown();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Reports bonds expired or entered the warning period since the last sweep.
+     */
+    synchronized void sweep(long now) {
+        SharkBondStorage storage = this.storage.get();
+        if (storage == null) return;
+
+        if (storage != this.sweptStorage) {
+            // first sweep of this storage - from the beginning of time
+            this.sweptStorage = storage;
+            this.expiredUntil = this.warnedUntil = Long.MIN_VALUE;
+        }
+        long warnUntil = now + this.warningMillis;
+        SharkBondExpirationIndex expirationIndex = getExpirationIndex(storage);
+        if (expirationIndex != null) {
+            // bonds added from now on behind warnUntil are late
+            expirationIndex.setSweptUntil(Math.max(warnUntil, this.warnedUntil));
+        }
+
+        // bonds can be found in range and as late bonds - report once
+        Set<String> expiresSoon = new HashSet<>();
+        Set<String> expired = new HashSet<>();
+        if (warnUntil > this.warnedUntil) {
+            storage.streamSharkBonds(new SharkBondQuery()
+                    .expiresBetween(Math.max(this.warnedUntil, now), warnUntil)
+                    .annulled(false))
+                    .forEach(sharkBond -> this.report(sharkBond, false, expiresSoon));
+            this.warnedUntil = warnUntil;
+        }
+
+        if (now > this.expiredUntil) {
+            storage.streamSharkBonds(new SharkBondQuery()
+                    .expiresBetween(this.expiredUntil, now)
+                    .annulled(false))
+                    .forEach(sharkBond -> this.report(sharkBond, true, expired));
+            this.expiredUntil = now;
+        }
+
+        if (expirationIndex != null) {
+            for (String bondID : expirationIndex.takeLateBondIDs()) {
+                SharkBond sharkBond;
+                try {
+                    sharkBond = storage.getSharkBondByBondId(bondID);
+                } catch (InvalidParameterException e) {
+                    // deleted since - the other late bonds are still reported
+                    continue;
+                }
+                if (sharkBond.isAnnulled()) continue;
+
+                long expirationDate = sharkBond.getExpirationDate();
+                if (expirationDate < this.expiredUntil) {
+                    this.report(sharkBond, true, expired);
+                } else if (expirationDate < this.warnedUntil) {
+                    this.report(sharkBond, false, expiresSoon);
+                }
+            }
+        }
+    }
+
+    private void report(SharkBond sharkBond, boolean expired, Set<String> reported) {
+        if (!reported.add(sharkBond.getBondID().toString())) return;
+
+        if (expired) {
+            this.listenerManager.notifySharkBondExpired(sharkBond);
+        } else {
+            this.listenerManager.notifySharkBondExpiresSoon(sharkBond);
+        }
+    }
+
+    private static SharkBondExpirationIndex getExpirationIndex(SharkBondStorage storage) {
+        if (storage instanceof SharkBondStorageImpl) {
+            return ((SharkBondStorageImpl) storage).getExpirationIndex();
+        }
+        if (storage instanceof ConcurrentSharkBondStorageImpl) {
+            return ((ConcurrentSharkBondStorageImpl) storage).getExpirationIndex();
+        }
+
+        return null;
+    }
+}
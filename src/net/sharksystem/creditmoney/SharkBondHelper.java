@@ -5,10 +5,24 @@ import net.sharksystem.asap.crypto.ASAPCryptoAlgorithms;
 import net.sharksystem.asap.crypto.ASAPKeyStore;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 class SharkBondHelper {
+    // shared by all key stores - entries are bound to the public key of the signer
+    private static final SharkBondVerificationCache verifications = new SharkBondVerificationCache();
+
     /**
      * Sign this bond as debtor
      * @param bond
@@ -184,11 +198,11 @@ class SharkBondHelper {
     }
 
     static boolean isSignedAsCreditor(SharkBond creditBond, String signer, ASAPKeyStore asapKeyStore) throws ASAPSecurityException, IOException {
-        Set<CharSequence> receiver = new HashSet<>();
-        receiver.add(creditBond.getDebtorID());
         byte[] signature = creditBond.getCreditorSignature();
-        byte[] creditBondBytes = SharkBondSerializer.serializeCreditBond(creditBond, creditBond.getCreditorID(), receiver, true, true, asapKeyStore, true, 2);
-        return signature != null && isSignatureCorrect(creditBondBytes, signature, signer, asapKeyStore);
+        if (signature == null) return false;
+
+        return isSignedBond(creditBond, creditBond.getCreditorID(), creditBond.getDebtorID(), signature, signer,
+                SharkBondCrypto.getPublicKey(asapKeyStore, signer), asapKeyStore.getAsymmetricSigningAlgorithm());
     }
 
     static boolean isSignedAsDebtor(SharkBond creditBond, ASAPKeyStore asapKeyStore) throws ASAPSecurityException, IOException {
@@ -197,27 +211,255 @@ class SharkBondHelper {
     }
 
     static boolean isSignedAsDebtor(SharkBond creditBond, String signer, ASAPKeyStore asapKeyStore) throws ASAPSecurityException, IOException {
-        Set<CharSequence> receiver = new HashSet<>();
-        receiver.add(creditBond.getCreditorID());
         byte[] signature = creditBond.getDebtorSignature();
-        byte[] creditBondBytes = SharkBondSerializer.serializeCreditBond(creditBond, creditBond.getDebtorID(), receiver, true, true, asapKeyStore, true, 2);
-        return signature != null && isSignatureCorrect(creditBondBytes, signature, signer, asapKeyStore);
+        if (signature == null) return false;
+
+        return isSignedBond(creditBond, creditBond.getDebtorID(), creditBond.getCreditorID(), signature, signer,
+                SharkBondCrypto.getPublicKey(asapKeyStore, signer), asapKeyStore.getAsymmetricSigningAlgorithm());
+    }
+
+    /**
+     * Verifies creditor and debtor signature of each bond in parallel on the common ForkJoinPool.
+     * @return one result per bond, same order
+     */
+    static List<SharkBondVerification> verifyAll(List<? extends SharkBond> sharkBonds, ASAPKeyStore asapKeyStore)
+            throws InterruptedException {
+        return verifyAll(sharkBonds, asapKeyStore, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Verifies creditor and debtor signature of each bond in parallel - e.g. bonds received after a long time
+     * offline. A signature which cannot be checked (e.g. no key of the signer) counts as not signed.
+     * @param executor runs one verification per bond - a ForkJoinPool, a virtual thread executor etc.
+     * @return one result per bond, same order
+     */
+    static List<SharkBondVerification> verifyAll(List<? extends SharkBond> sharkBonds, ASAPKeyStore asapKeyStore,
+                                                 ExecutorService executor) throws InterruptedException {
+        // keys are looked up on this thread - key stores (e.g. SharkPKIComponent) are not thread-safe
+        Map<String, PublicKey> publicKeys = new HashMap<>();
+        for (SharkBond sharkBond : sharkBonds) {
+            putPublicKey(publicKeys, sharkBond.getCreditorID(), asapKeyStore);
+            putPublicKey(publicKeys, sharkBond.getDebtorID(), asapKeyStore);
+        }
+        String signingAlgorithm = asapKeyStore.getAsymmetricSigningAlgorithm();
+
+        List<Callable<SharkBondVerification>> verifications = new ArrayList<>(sharkBonds.size());
+        for (SharkBond sharkBond : sharkBonds) {
+            verifications.add(() -> new SharkBondVerification(sharkBond,
+                    isSigned(sharkBond, sharkBond.getCreditorID(), sharkBond.getDebtorID(),
+                            sharkBond.getCreditorSignature(), publicKeys, signingAlgorithm),
+                    isSigned(sharkBond, sharkBond.getDebtorID(), sharkBond.getCreditorID(),
+                            sharkBond.getDebtorSignature(), publicKeys, signingAlgorithm)));
+        }
+
+        return invokeAll(executor, verifications, "bond verification failed");
+    }
+
+    // tasks catch checked exceptions - anything else is a bug
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks, String failure)
+            throws InterruptedException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> result : executor.invokeAll(tasks)) {
+            try {
+                results.add(result.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(failure, e.getCause());
+            }
+        }
+
+        return results;
+    }
+
+    private static void putPublicKey(Map<String, PublicKey> publicKeys, CharSequence peerID, ASAPKeyStore asapKeyStore) {
+        if (peerID == null || publicKeys.containsKey(peerID.toString())) return;
+        try {
+            publicKeys.put(peerID.toString(), SharkBondCrypto.getPublicKey(asapKeyStore, peerID));
+        } catch (ASAPSecurityException e) {
+            // unknown peer - its signatures can't be verified
+            publicKeys.put(peerID.toString(), null);
+        }
+    }
+
+    private static boolean isSigned(SharkBond sharkBond, CharSequence signer, CharSequence recipient,
+                                    byte[] signature, Map<String, PublicKey> publicKeys, String signingAlgorithm) {
+        if (signer == null || signature == null) return false;
+
+        try {
+            return isSignedBond(sharkBond, signer, recipient, signature, signer.toString(),
+                    publicKeys.get(signer.toString()), signingAlgorithm);
+        } catch (ASAPSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Signature of the bond content sent from sender to recipient. Cache key is taken from the content hash of the
+     * bond - the signed content is encoded and hashed once per bond state, not on each lookup.
+     */
+    private static boolean isSignedBond(SharkBond sharkBond, CharSequence sender, CharSequence recipient,
+                                        byte[] signature, String signer, PublicKey publicKey, String signingAlgorithm)
+            throws ASAPSecurityException {
+        if (publicKey == null) return false;
+
+        SharkBondCanonicalForm canonicalForm = SharkBondCanonicalForm.of(sharkBond);
+        ByteBuffer key = SharkBondVerificationCache.bondKey(canonicalForm.getContentHash(), sender, recipient,
+                signature, signer, publicKey);
+        if (verifications.contains(key)) return true;
+
+        return verify(key, canonicalForm.getSignedContent(sender, recipient), signature, signer, publicKey,
+                signingAlgorithm);
     }
 
     static boolean isSignatureCorrect(byte[] creditBond, byte[] signature, String signer, ASAPKeyStore asapKeyStore) throws ASAPSecurityException {
-        return ASAPCryptoAlgorithms.verify(creditBond, signature, signer, asapKeyStore);
+        return isSignatureCorrect(creditBond, signature, signer, SharkBondCrypto.getPublicKey(asapKeyStore, signer),
+                asapKeyStore.getAsymmetricSigningAlgorithm());
+    }
+
+    /**
+     * Like {@link ASAPCryptoAlgorithms#verify} without key store - can run on any thread. Signatures verified
+     * before are found in a cache - see {@link SharkBondVerificationCache}.
+     */
+    private static boolean isSignatureCorrect(byte[] creditBond, byte[] signature, String signer,
+                                              PublicKey publicKey, String signingAlgorithm) throws ASAPSecurityException {
+        if (publicKey == null) return false;
+
+        ByteBuffer key = SharkBondVerificationCache.key(creditBond, signature, signer, publicKey);
+        if (verifications.contains(key)) return true;
+
+        return verify(key, creditBond, signature, signer, publicKey, signingAlgorithm);
+    }
+
+    private static boolean verify(ByteBuffer key, byte[] data, byte[] signature, String signer, PublicKey publicKey,
+                                  String signingAlgorithm) throws ASAPSecurityException {
+        boolean verified = SharkBondCrypto.verify(data, signature, publicKey, signingAlgorithm);
+        if (verified) verifications.add(key, signer);
+        return verified;
+    }
+
+    /**
+     * Signatures of this signer are verified again from now on, with its key looked up again. Messages to this peer
+     * start a new session. Call when its certificate is withdrawn or replaced.
+     */
+    static void forgetVerifications(CharSequence signer) {
+        SharkBondCrypto.forgetPublicKey(signer);
+        SharkBondSessionKeys.forgetSessions(signer);
+        verifications.remove(signer);
+    }
+
+    /**
+     * Signs each bond as creditor (or debtor) on the common ForkJoinPool - see {@link #signAll(ASAPKeyStore, List,
+     * boolean, ExecutorService)}.
+     */
+    static void signAll(ASAPKeyStore asapKeyStore, List<? extends SharkBond> sharkBonds, boolean signAsCreditor)
+            throws SharkCreditMoneyException, ASAPSecurityException, InterruptedException {
+        signAll(asapKeyStore, sharkBonds, signAsCreditor, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Signs each bond as creditor (or debtor) - e.g. many bonds issued in one go. Bonds are encoded in parallel and
+     * signed one after another by one signer, initialized once. Nothing is signed if the key store owner is not
+     * creditor (or debtor) of each bond.
+     * @param executor encodes the bonds
+     */
+    static void signAll(ASAPKeyStore asapKeyStore, List<? extends SharkBond> sharkBonds, boolean signAsCreditor,
+                        ExecutorService executor)
+            throws SharkCreditMoneyException, ASAPSecurityException, InterruptedException {
+        CharSequence owner = asapKeyStore.getOwner();
+        for (SharkBond sharkBond : sharkBonds) {
+            CharSequence signer = signAsCreditor ? sharkBond.getCreditorID() : sharkBond.getDebtorID();
+            if (!owner.equals(signer)) {
+                throw new SharkCreditMoneyException("The provided keyStore owner (" + owner + ") doesn't match the "
+                        + (signAsCreditor ? "creditor" : "debtor") + "'s id (" + signer + ")");
+            }
+        }
+
+        List<Callable<byte[]>> encodings = new ArrayList<>(sharkBonds.size());
+        for (SharkBond sharkBond : sharkBonds) {
+            encodings.add(() -> signAsCreditor
+                    ? SharkBondCanonicalForm.of(sharkBond)
+                        .getSignedContent(sharkBond.getCreditorID(), sharkBond.getDebtorID())
+                    : SharkBondCanonicalForm.of(sharkBond)
+                        .getSignedContent(sharkBond.getDebtorID(), sharkBond.getCreditorID()));
+        }
+
+        List<byte[]> signatures = SharkBondCrypto.signAll(
+                invokeAll(executor, encodings, "bond encoding failed"), asapKeyStore);
+        for (int i = 0; i < sharkBonds.size(); i++) {
+            if (signAsCreditor) {
+                sharkBonds.get(i).setCreditorSignature(signatures.get(i));
+            } else {
+                sharkBonds.get(i).setDebtorSignature(signatures.get(i));
+            }
+        }
+    }
+
+    /**
+     * Signs one Merkle root over all bonds on the common ForkJoinPool - see {@link #signAllByMerkleRoot(ASAPKeyStore,
+     * List, ExecutorService)}.
+     */
+    static List<SharkBondInclusionProof> signAllByMerkleRoot(ASAPKeyStore asapKeyStore,
+                                                             List<? extends SharkBond> sharkBonds)
+            throws SharkCreditMoneyException, ASAPSecurityException, InterruptedException {
+        return signAllByMerkleRoot(asapKeyStore, sharkBonds, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Signs one Merkle root over all bonds instead of each bond - one signature for the whole lot. Bonds are left as
+     * they are. Each proof shows that its bond was signed by the key store owner, see {@link SharkBondInclusionProof}.
+     * Key store owner must be creditor or debtor of each bond.
+     * @param executor encodes and hashes the bonds
+     * @return one proof per bond, same order
+     */
+    static List<SharkBondInclusionProof> signAllByMerkleRoot(ASAPKeyStore asapKeyStore,
+                                                             List<? extends SharkBond> sharkBonds,
+                                                             ExecutorService executor)
+            throws SharkCreditMoneyException, ASAPSecurityException, InterruptedException {
+        CharSequence owner = asapKeyStore.getOwner();
+        Set<CharSequence> recipients = new HashSet<>();
+        for (SharkBond sharkBond : sharkBonds) {
+            if (owner.equals(sharkBond.getCreditorID())) {
+                recipients.add(sharkBond.getDebtorID());
+            } else if (owner.equals(sharkBond.getDebtorID())) {
+                recipients.add(sharkBond.getCreditorID());
+            } else {
+                throw new SharkCreditMoneyException("The provided keyStore owner (" + owner + ") doesn't match the "
+                        + "creditor/debtor's id (" + sharkBond.getCreditorID() + "/" + sharkBond.getDebtorID() + ")");
+            }
+        }
+        if (sharkBonds.isEmpty()) return new ArrayList<>();
+
+        List<Callable<byte[]>> leafHashes = new ArrayList<>(sharkBonds.size());
+        for (SharkBond sharkBond : sharkBonds) {
+            leafHashes.add(() -> SharkBondMerkleTree.leafHash(SharkBondCodec.encode(sharkBond)));
+        }
+
+        List<List<byte[]>> levels = SharkBondMerkleTree.levels(
+                invokeAll(executor, leafHashes, "bond encoding failed"));
+        byte[] merkleRoot = levels.get(levels.size() - 1).get(0);
+        byte[] serializedHeader = SharkBondSerializer.serializeBatchHeader(merkleRoot, owner, recipients);
+        SharkBondBatchHeader header = new SharkBondBatchHeader(serializedHeader, merkleRoot, owner, recipients);
+        byte[] signature = SharkBondSerializer.sign(serializedHeader, asapKeyStore);
+
+        List<SharkBondInclusionProof> proofs = new ArrayList<>(sharkBonds.size());
+        for (int i = 0; i < sharkBonds.size(); i++) {
+            proofs.add(new SharkBondInclusionProof(header, signature, i, sharkBonds.size(),
+                    SharkBondMerkleTree.proofOf(levels, i)));
+        }
+
+        return proofs;
     }
 
     private static byte[] signBond(ASAPKeyStore asapKeyStore, SharkBond bond, boolean signAsCreditor, boolean isTransfer) throws ASAPSecurityException, IOException {
-        Set<CharSequence> receiver = new HashSet<>();
-        CharSequence sender;
+        CharSequence sender, receiver;
         if (signAsCreditor) {
             sender = isTransfer ? bond.getTempCreditorID() : bond.getCreditorID();
-            receiver.add(bond.getDebtorID());
+            receiver = bond.getDebtorID();
         } else {
             sender = isTransfer ? bond.getTempDebtorID() : bond.getDebtorID();
-            receiver.add(bond.getCreditorID());
+            receiver = bond.getCreditorID();
         }
-        return SharkBondSerializer.serializeCreditBond(bond, sender, receiver, true, true, asapKeyStore, true, 1);
+        // signed bytes are encoded once per bond state - not again for each signature and verification
+        byte[] signedContent = SharkBondCanonicalForm.of(bond).getSignedContent(sender, receiver);
+        return SharkBondSerializer.sign(signedContent, asapKeyStore);
     }
 }
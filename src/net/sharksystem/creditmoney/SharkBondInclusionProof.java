@@ -0,0 +1,57 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+
+import java.util.List;
+
+/**
+ * Proves that a bond was part of a signed batch: signed batch header plus the Merkle path from the bond to the
+ * signed root. One signature check per bond - the other bonds of the batch are not needed.
+ */
+class SharkBondInclusionProof {
+    private final SharkBondBatchHeader header;
+    private final byte[] signature;
+    private final int index;
+    private final int bondCount;
+    private final List<byte[]> siblingHashes;
+
+    SharkBondInclusionProof(SharkBondBatchHeader header, byte[] signature, int index, int bondCount,
+                            List<byte[]> siblingHashes) {
+        this.header = header;
+        this.signature = signature;
+        this.index = index;
+        this.bondCount = bondCount;
+        this.siblingHashes = siblingHashes;
+    }
+
+    CharSequence getSender() {
+        return this.header.getSender();
+    }
+
+    /**
+     * @param sharkBond bond as received - a bond changed afterwards is no longer covered
+     * @return true if the bond was part of a batch signed by its sender and the sender is creditor or debtor of
+     * the bond (or the peer a transfer goes to)
+     */
+    boolean verify(SharkBond sharkBond, ASAPKeyStore asapKeyStore) {
+        if (!this.header.isSentByPartyOf(sharkBond)) return false;
+        return this.verify(SharkBondCodec.encode(sharkBond), asapKeyStore);
+    }
+
+    private boolean verify(byte[] encodedBond, ASAPKeyStore asapKeyStore) {
+        if (this.signature == null) return false;
+        if (!SharkBondMerkleTree.verify(SharkBondMerkleTree.leafHash(encodedBond), this.index, this.bondCount,
+                this.siblingHashes, this.header.getMerkleRoot())) {
+            return false;
+        }
+
+        try {
+            // same header for all bonds of a batch - verified once
+            return SharkBondHelper.isSignatureCorrect(this.header.getSerializedHeader(), this.signature,
+                    this.header.getSender().toString(), asapKeyStore);
+        } catch (ASAPSecurityException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.sharksystem.creditmoney;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of a bond storage. Maps a key, e.g. a creditor id, to the ids of all bonds stored with this key.
+ */
+class SharkBondIndex {
+    private final boolean concurrent;
+    private final Map<String, NavigableSet<String>> index;
+
+    SharkBondIndex() {
+        this(false);
+    }
+
+    /**
+     * @param concurrent index can be changed and read by several threads at the same time
+     */
+    SharkBondIndex(boolean concurrent) {
+        this.concurrent = concurrent;
+        this.index = concurrent ? new ConcurrentHashMap<>() : new HashMap<>();
+    }
+
+    void add(String key, String bondID) {
+        if (key == null) return;
+
+        // compute is atomic per key in a concurrent index
+        this.index.compute(key, (k, bondIDs) -> {
+            if (bondIDs == null) {
+                // sorted by bond id - stable order for paging while bonds come and go
+                bondIDs = this.concurrent ? new ConcurrentSkipListSet<>() : new TreeSet<>();
+            }
+            bondIDs.add(bondID);
+            return bondIDs;
+        });
+    }
+
+    void remove(String key, String bondID) {
+        if (key == null) return;
+
+        this.index.computeIfPresent(key, (k, bondIDs) -> {
+            bondIDs.remove(bondID);
+            // remove empty entries - keys of former peers would pile up otherwise
+            return bondIDs.isEmpty() ? null : bondIDs;
+        });
+    }
+
+    /**
+     * @return ids of bonds stored with this key - an empty set if there is none. Read while iterating: Iterators of
+     * a concurrent index are weakly consistent. Iterators of other indexes look up the id after the last one with
+     * each step - the index can be changed between two steps.
+     */
+    Set<String> get(String key) {
+        if (key == null) return Collections.emptySet();
+        if (this.concurrent) {
+            Set<String> bondIDs = this.index.get(key);
+            return bondIDs == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(bondIDs);
+        }
+
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private String lastBondID;
+                    private String nextBondID;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (this.nextBondID == null) {
+                            // set is gone when its last bond was removed
+                            NavigableSet<String> bondIDs = index.get(key);
+                            if (bondIDs != null && !bondIDs.isEmpty()) {
+                                this.nextBondID = this.lastBondID == null
+                                        ? bondIDs.first() : bondIDs.higher(this.lastBondID);
+                            }
+                        }
+                        return this.nextBondID != null;
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!this.hasNext()) throw new NoSuchElementException();
+                        this.lastBondID = this.nextBondID;
+                        this.nextBondID = null;
+                        return this.lastBondID;
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object bondID) {
+                Set<String> bondIDs = index.get(key);
+                return bondIDs != null && bondIDs.contains(bondID);
+            }
+
+            @Override
+            public int size() {
+                Set<String> bondIDs = index.get(key);
+                return bondIDs == null ? 0 : bondIDs.size();
+            }
+        };
+    }
+
+    /**
+     * @return number of bonds stored with this key - counting stops at limit
+     */
+    int count(String key, int limit) {
+        Set<String> bondIDs = key == null ? null : this.index.get(key);
+        if (bondIDs == null) return 0;
+        if (!this.concurrent) return bondIDs.size();
+
+        // size() of a concurrent set walks all its elements
+        int count = 0;
+        Iterator<String> iterator = bondIDs.iterator();
+        while (count < limit && iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+
+        return count;
+    }
+
+    void clear() {
+        this.index.clear();
+    }
+
+    static String toKey(CharSequence value) {
+        return value == null ? null : value.toString();
+    }
+
+    static String toKey(CharSequence creditorID, CharSequence debtorID) {
+        if (creditorID == null || debtorID == null) return null;
+        // \u0000 cannot be part of a peer id
+        return creditorID.toString() + '\u0000' + debtorID.toString();
+    }
+}
@@ -0,0 +1,626 @@
+package net.sharksystem.creditmoney;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of bond changes. The log is split into segment files which are only written sequentially.
+ * Each record is protected by a checksum. A record that was not written completely (e.g. crash during a write) is
+ * detected during replay and cut off.
+ * <br/>
+ * A checkpoint writes all live bonds into a snapshot file and removes all segments the snapshot covers. Replay
+ * loads the newest snapshot and the segments written after it. Compaction merges closed segments written after
+ * the last snapshot and keeps only the latest record of each bond.
+ *
+ * <pre>
+ * segment:  SEGMENT_MAGIC record*
+ * snapshot: SNAPSHOT_MAGIC record* END_RECORD
+ * record:   payloadLength (int) | crc32 of type and payload (int) | type (byte) | payload
+ * </pre>
+ */
+class SharkBondLog {
+    static final byte PUT_RECORD = 1;
+    static final byte DELETE_RECORD = 2;
+    static final byte CLEAR_RECORD = 3;
+    static final byte END_RECORD = 4;
+
+    static final int DEFAULT_MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int SEGMENT_MAGIC = 0x53424C31; // "SBL1"
+    private static final int SNAPSHOT_MAGIC = 0x53425331; // "SBS1"
+    private static final int MAGIC_LENGTH = 4;
+    private static final int RECORD_HEADER_LENGTH = 9;
+    private static final String SEGMENT_PREFIX = "bonds-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    interface RecordHandler {
+        void put(byte[] serializedBond) throws IOException;
+        void delete(String bondID) throws IOException;
+        void clear() throws IOException;
+    }
+
+    /**
+     * Tells compaction which bond a serialized bond belongs to.
+     */
+    interface BondIDReader {
+        String getBondID(byte[] serializedBond) throws IOException;
+    }
+
+    private interface RecordVisitor {
+        void record(byte type, byte[] payload) throws IOException;
+    }
+
+    /**
+     * Visits records of a mapped log file without copying their payload.
+     */
+    interface MappedRecordVisitor {
+        void record(byte type, int payloadPosition, int payloadLength) throws IOException;
+    }
+
+    private final File folder;
+    private final SharkBondLogStorageImpl.SyncPolicy syncPolicy;
+    private final int syncBatchSize;
+    private final int maxSegmentSize;
+    // checkpoints and compactions must not run at the same time
+    private final Object maintenanceLock = new Object();
+
+    private FileChannel activeSegment;
+    private long activeSegmentNumber;
+    private int unsyncedRecords = 0;
+    private long recordsSinceCheckpoint = 0;
+    private ScheduledExecutorService syncExecutor;
+
+    /**
+     * @param syncBatchSize records written before syncing - only used with {@link SharkBondLogStorageImpl.SyncPolicy#BATCH}
+     * @param syncIntervalMillis sync interval - only used with {@link SharkBondLogStorageImpl.SyncPolicy#INTERVAL}
+     */
+    SharkBondLog(File folder, SharkBondLogStorageImpl.SyncPolicy syncPolicy, int syncBatchSize,
+                 long syncIntervalMillis, int maxSegmentSize) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("cannot create bond log folder: " + folder.getAbsolutePath());
+        }
+
+        this.folder = folder;
+        this.syncPolicy = syncPolicy;
+        this.syncBatchSize = Math.max(1, syncBatchSize);
+        this.maxSegmentSize = maxSegmentSize;
+
+        if (syncPolicy == SharkBondLogStorageImpl.SyncPolicy.INTERVAL) {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SharkBondLog-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    this.sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Loads the newest snapshot and replays all segments written after it. A torn record at the end of the last
+     * segment is removed, the log continues after the last complete record. New records are appended to the last
+     * segment.
+     */
+    void replay(RecordHandler handler) throws IOException {
+        this.replay(handler, null);
+    }
+
+    /**
+     * Like {@link #replay(RecordHandler)} but the snapshot and all closed segments are not read. They are added to
+     * closedFiles in replay order instead. Only the records of the active segment are passed to the handler.
+     */
+    void replay(RecordHandler handler, List<File> closedFiles) throws IOException {
+        synchronized (this.maintenanceLock) {
+            synchronized (this) {
+                this.closeActiveSegment();
+                this.deleteFiles(TMP_SUFFIX);
+
+                RecordVisitor visitor = (type, payload) -> dispatch(type, payload, handler);
+
+                long firstSegmentNumber = 0;
+                List<Long> snapshotNumbers = this.getFileNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+                if (!snapshotNumbers.isEmpty()) {
+                    firstSegmentNumber = snapshotNumbers.get(snapshotNumbers.size() - 1);
+                    File snapshotFile = this.getSnapshotFile(firstSegmentNumber);
+                    if (closedFiles != null) closedFiles.add(snapshotFile);
+                    else try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+                        long validLength = readRecords(channel, SNAPSHOT_MAGIC, visitor);
+                        if (validLength < channel.size()) {
+                            throw new IOException("corrupted bond snapshot: " + snapshotFile.getAbsolutePath());
+                        }
+                    }
+                }
+
+                this.recordsSinceCheckpoint = 0;
+                RecordVisitor countingVisitor = (type, payload) -> {
+                    this.recordsSinceCheckpoint++;
+                    visitor.record(type, payload);
+                };
+
+                List<Long> segmentNumbers = this.getFileNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+                long lastSegmentNumber = firstSegmentNumber;
+                for (int i = 0; i < segmentNumbers.size(); i++) {
+                    long segmentNumber = segmentNumbers.get(i);
+                    if (segmentNumber < firstSegmentNumber) {
+                        // covered by snapshot - left over by an interrupted checkpoint
+                        Files.deleteIfExists(this.getSegmentFile(segmentNumber).toPath());
+                        continue;
+                    }
+
+                    lastSegmentNumber = segmentNumber;
+                    boolean lastSegment = i == segmentNumbers.size() - 1;
+                    File segmentFile = this.getSegmentFile(segmentNumber);
+                    if (closedFiles != null && !lastSegment) {
+                        closedFiles.add(segmentFile);
+                        continue;
+                    }
+
+                    try (FileChannel channel = FileChannel.open(segmentFile.toPath(),
+                            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+                        long validLength = readRecords(channel, SEGMENT_MAGIC, countingVisitor);
+                        if (validLength < channel.size()) {
+                            if (!lastSegment) {
+                                throw new IOException("corrupted bond log segment: " + segmentFile.getAbsolutePath());
+                            }
+                            // incomplete write of a crashed peer - cut it off
+                            channel.truncate(validLength);
+                            channel.force(true);
+                        }
+                    }
+                }
+
+                this.activeSegmentNumber = lastSegmentNumber;
+                this.openActiveSegment();
+            }
+        }
+    }
+
+    synchronized void appendPut(byte[] serializedBond) throws IOException {
+        this.append(PUT_RECORD, serializedBond);
+    }
+
+    synchronized void appendDelete(CharSequence bondID) throws IOException {
+        this.append(DELETE_RECORD, bondID.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    synchronized void appendClear() throws IOException {
+        this.append(CLEAR_RECORD, new byte[0]);
+    }
+
+    /**
+     * @return records written since the last checkpoint - that is what a replay has to read beside the snapshot
+     */
+    synchronized long getRecordsSinceCheckpoint() {
+        return this.recordsSinceCheckpoint;
+    }
+
+    /**
+     * First step of a checkpoint: Starts a new segment. The snapshot has to contain all changes made before this
+     * call and no change made after it.
+     *
+     * @return number of the first segment not covered by the snapshot
+     */
+    synchronized long startCheckpoint() throws IOException {
+        this.rollSegment();
+        this.recordsSinceCheckpoint = 0;
+        return this.activeSegmentNumber;
+    }
+
+    /**
+     * Second step of a checkpoint: Writes the snapshot and removes all segments (and older snapshots) it replaces.
+     */
+    void writeCheckpoint(long firstSegmentNumber, Collection<byte[]> serializedBonds) throws IOException {
+        synchronized (this.maintenanceLock) {
+            File snapshotFile = this.getSnapshotFile(firstSegmentNumber);
+            File tmpFile = new File(snapshotFile.getPath() + TMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+                writeMagic(channel, SNAPSHOT_MAGIC);
+                for (byte[] serializedBond : serializedBonds) {
+                    writeRecord(channel, PUT_RECORD, serializedBond);
+                }
+                writeRecord(channel, END_RECORD, new byte[0]);
+                channel.force(true);
+            }
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            // snapshot is durable - older files are no longer needed
+            for (long snapshotNumber : this.getFileNumbers(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (snapshotNumber < firstSegmentNumber) {
+                    Files.deleteIfExists(this.getSnapshotFile(snapshotNumber).toPath());
+                }
+            }
+            for (long segmentNumber : this.getFileNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                if (segmentNumber < firstSegmentNumber) {
+                    Files.deleteIfExists(this.getSegmentFile(segmentNumber).toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges all closed segments written after the last snapshot into one segment. Only the latest record of each
+     * bond is kept. The active segment is not touched, writers are not blocked.
+     *
+     * @return number of removed records
+     */
+    long compact(BondIDReader bondIDReader) throws IOException {
+        synchronized (this.maintenanceLock) {
+            List<Long> closedSegmentNumbers = new ArrayList<>();
+            synchronized (this) {
+                for (long segmentNumber : this.getFileNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                    if (segmentNumber < this.activeSegmentNumber) {
+                        closedSegmentNumbers.add(segmentNumber);
+                    }
+                }
+            }
+            if (closedSegmentNumbers.isEmpty()) {
+                return 0;
+            }
+
+            // latest record of each bond - a clear record wipes all records before it
+            Map<String, byte[]> latestRecords = new LinkedHashMap<>();
+            boolean[] cleared = {false};
+            long[] readRecords = {0};
+            for (long segmentNumber : closedSegmentNumbers) {
+                try (FileChannel channel = FileChannel.open(
+                        this.getSegmentFile(segmentNumber).toPath(), StandardOpenOption.READ)) {
+
+                    readRecords(channel, SEGMENT_MAGIC, (type, payload) -> {
+                        readRecords[0]++;
+                        switch (type) {
+                            case PUT_RECORD:
+                                String bondID = bondIDReader.getBondID(payload);
+                                latestRecords.remove(bondID);
+                                latestRecords.put(bondID, payload);
+                                break;
+                            case DELETE_RECORD:
+                                String deletedBondID = new String(payload, StandardCharsets.UTF_8);
+                                latestRecords.remove(deletedBondID);
+                                // still required - bond can be part of snapshot
+                                latestRecords.put(deletedBondID, null);
+                                break;
+                            case CLEAR_RECORD:
+                                latestRecords.clear();
+                                cleared[0] = true;
+                                break;
+                        }
+                    });
+                }
+            }
+
+            long lastClosedSegmentNumber = closedSegmentNumbers.get(closedSegmentNumbers.size() - 1);
+            File compactedFile = this.getSegmentFile(lastClosedSegmentNumber);
+            File tmpFile = new File(compactedFile.getPath() + TMP_SUFFIX);
+            long writtenRecords = 0;
+            try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+                writeMagic(channel, SEGMENT_MAGIC);
+                if (cleared[0]) {
+                    writeRecord(channel, CLEAR_RECORD, new byte[0]);
+                    writtenRecords++;
+                }
+                for (Map.Entry<String, byte[]> record : latestRecords.entrySet()) {
+                    if (record.getValue() != null) {
+                        writeRecord(channel, PUT_RECORD, record.getValue());
+                    } else {
+                        writeRecord(channel, DELETE_RECORD, record.getKey().getBytes(StandardCharsets.UTF_8));
+                    }
+                    writtenRecords++;
+                }
+                channel.force(true);
+            }
+
+            // The compacted segment replaces the last closed segment. A crash before the older segments are removed
+            // is harmless: replay reads old records first and the latest versions afterwards.
+            Files.move(tmpFile.toPath(), compactedFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            for (long segmentNumber : closedSegmentNumbers) {
+                if (segmentNumber != lastClosedSegmentNumber) {
+                    Files.deleteIfExists(this.getSegmentFile(segmentNumber).toPath());
+                }
+            }
+
+            synchronized (this) {
+                this.recordsSinceCheckpoint -= readRecords[0] - writtenRecords;
+            }
+
+            return readRecords[0] - writtenRecords;
+        }
+    }
+
+    /**
+     * @return number of the segment new records are appended to - all segments before are closed
+     */
+    synchronized long getActiveSegmentNumber() {
+        return this.activeSegmentNumber;
+    }
+
+    /**
+     * @return number of closed segments - segments that can be compacted
+     */
+    synchronized int getNumberOfClosedSegments() {
+        int closedSegments = 0;
+        for (long segmentNumber : this.getFileNumbers(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (segmentNumber < this.activeSegmentNumber) closedSegments++;
+        }
+
+        return closedSegments;
+    }
+
+    /**
+     * Forces all written records to disk.
+     */
+    synchronized void sync() throws IOException {
+        if (this.activeSegment != null && this.unsyncedRecords > 0) {
+            this.activeSegment.force(false);
+            this.unsyncedRecords = 0;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        if (this.syncExecutor != null) {
+            this.syncExecutor.shutdown();
+            this.syncExecutor = null;
+        }
+        this.closeActiveSegment();
+    }
+
+    private void append(byte type, byte[] payload) throws IOException {
+        if (this.activeSegment == null) {
+            throw new IOException("bond log is closed or was not replayed yet");
+        }
+
+        if (this.activeSegment.size() + RECORD_HEADER_LENGTH + payload.length > this.maxSegmentSize
+                && this.activeSegment.size() > MAGIC_LENGTH) {
+            this.rollSegment();
+        }
+
+        writeRecord(this.activeSegment, type, payload);
+        this.recordsSinceCheckpoint++;
+
+        this.unsyncedRecords++;
+        switch (this.syncPolicy) {
+            case EVERY_WRITE:
+                this.sync();
+                break;
+            case BATCH:
+                if (this.unsyncedRecords >= this.syncBatchSize) this.sync();
+                break;
+            case INTERVAL:
+                // synced by sync thread
+                break;
+        }
+    }
+
+    private static void dispatch(byte type, byte[] payload, RecordHandler handler) throws IOException {
+        switch (type) {
+            case PUT_RECORD: handler.put(payload); break;
+            case DELETE_RECORD: handler.delete(new String(payload, StandardCharsets.UTF_8)); break;
+            case CLEAR_RECORD: handler.clear(); break;
+            default: throw new IOException("unknown bond log record type: " + type);
+        }
+    }
+
+    /**
+     * @return position after the last valid record - after the end record in snapshots
+     */
+    private static long readRecords(FileChannel channel, int expectedMagic, RecordVisitor visitor)
+            throws IOException {
+
+        long size = channel.size();
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC_LENGTH);
+        if (size < MAGIC_LENGTH || readFully(channel, magic, 0) < MAGIC_LENGTH || magic.getInt(0) != expectedMagic) {
+            return 0;
+        }
+
+        long position = MAGIC_LENGTH;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        CRC32 crc32 = new CRC32();
+        while (position + RECORD_HEADER_LENGTH <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int payloadLength = header.getInt(0);
+            int checksum = header.getInt(4);
+            byte type = header.get(8);
+            if (payloadLength < 0 || position + RECORD_HEADER_LENGTH + payloadLength > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            readFully(channel, payload, position + RECORD_HEADER_LENGTH);
+            if (checksum(crc32, type, payload.array()) != checksum) {
+                break;
+            }
+
+            position += RECORD_HEADER_LENGTH + payloadLength;
+            if (type == END_RECORD) {
+                return position;
+            }
+            visitor.record(type, payload.array());
+        }
+
+        // snapshots are only valid with end record
+        return expectedMagic == SNAPSHOT_MAGIC ? 0 : position;
+    }
+
+    /**
+     * Visits all records of a mapped snapshot or segment file.
+     *
+     * @throws IOException file is not a complete snapshot or segment
+     */
+    static void readRecords(ByteBuffer file, MappedRecordVisitor visitor) throws IOException {
+        int size = file.limit();
+        boolean snapshot;
+        if (size >= MAGIC_LENGTH && file.getInt(0) == SNAPSHOT_MAGIC) snapshot = true;
+        else if (size >= MAGIC_LENGTH && file.getInt(0) == SEGMENT_MAGIC) snapshot = false;
+        else throw new IOException("neither bond log segment nor snapshot");
+
+        int position = MAGIC_LENGTH;
+        CRC32 crc32 = new CRC32();
+        while (position + RECORD_HEADER_LENGTH <= size) {
+            int payloadLength = file.getInt(position);
+            int checksum = file.getInt(position + 4);
+            byte type = file.get(position + 8);
+            int payloadPosition = position + RECORD_HEADER_LENGTH;
+            if (payloadLength < 0 || payloadPosition + payloadLength > size) {
+                break;
+            }
+
+            ByteBuffer payload = file.duplicate();
+            payload.position(payloadPosition);
+            payload.limit(payloadPosition + payloadLength);
+            crc32.reset();
+            crc32.update(type);
+            crc32.update(payload);
+            if ((int) crc32.getValue() != checksum) {
+                break;
+            }
+
+            position = payloadPosition + payloadLength;
+            if (type == END_RECORD) {
+                return;
+            }
+            visitor.record(type, payloadPosition, payloadLength);
+        }
+
+        if (snapshot || position != size) {
+            throw new IOException("incomplete or corrupted bond log file");
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        this.sync();
+        this.closeActiveSegment();
+        this.activeSegmentNumber++;
+        this.openActiveSegment();
+    }
+
+    private void openActiveSegment() throws IOException {
+        File segmentFile = this.getSegmentFile(this.activeSegmentNumber);
+        this.activeSegment = FileChannel.open(segmentFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+
+        if (this.activeSegment.size() < MAGIC_LENGTH) {
+            this.activeSegment.truncate(0);
+            writeMagic(this.activeSegment, SEGMENT_MAGIC);
+            this.activeSegment.force(true);
+        }
+        this.activeSegment.position(this.activeSegment.size());
+    }
+
+    private void closeActiveSegment() throws IOException {
+        if (this.activeSegment != null) {
+            this.sync();
+            this.activeSegment.close();
+            this.activeSegment = null;
+        }
+    }
+
+    private List<Long> getFileNumbers(String prefix, String suffix) {
+        List<Long> fileNumbers = new ArrayList<>();
+        String[] fileNames = this.folder.list();
+        if (fileNames != null) {
+            for (String fileName : fileNames) {
+                if (fileName.startsWith(prefix) && fileName.endsWith(suffix)) {
+                    try {
+                        fileNumbers.add(Long.parseLong(fileName.substring(
+                                prefix.length(), fileName.length() - suffix.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(fileNumbers);
+
+        return fileNumbers;
+    }
+
+    private void deleteFiles(String suffix) throws IOException {
+        File[] files = this.folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(suffix)) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+    }
+
+    private File getSegmentFile(long segmentNumber) {
+        return new File(this.folder, String.format("%s%016d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    private File getSnapshotFile(long firstSegmentNumber) {
+        return new File(this.folder, String.format("%s%016d%s", SNAPSHOT_PREFIX, firstSegmentNumber, SNAPSHOT_SUFFIX));
+    }
+
+    private static void writeMagic(FileChannel channel, int magic) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAGIC_LENGTH);
+        buffer.putInt(magic);
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+
+    private static void writeRecord(FileChannel channel, byte type, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.length);
+        record.putInt(payload.length);
+        record.putInt(checksum(new CRC32(), type, payload));
+        record.put(type);
+        record.put(payload);
+        record.flip();
+        writeFully(channel, record);
+    }
+
+    private static int checksum(CRC32 crc32, byte type, byte[] payload) {
+        crc32.reset();
+        crc32.update(type);
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + read);
+            if (n < 0) break;
+            read += n;
+        }
+
+        return read;
+    }
+}
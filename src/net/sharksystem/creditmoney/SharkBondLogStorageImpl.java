@@ -0,0 +1,410 @@
+package net.sharksystem.creditmoney;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Bond storage that survives restarts. Bonds are kept and indexed in memory like in {@link SharkBondStorageImpl}.
+ * Each change is appended to a checksummed log (see {@link SharkBondLog}) before it becomes visible. The log is
+ * replayed when the storage is created or {@link #loadBondsFromStorage()} is called. Replayed bonds are kept as
+ * {@link CompactSharkBond}.
+ * <br/>
+ * A bond is written again with each protocol step. A maintenance thread keeps the log small: It takes a checkpoint
+ * (snapshot of all live bonds) when the log has grown larger than the live bonds and compacts closed segments in
+ * between. Replay reads the snapshot and the log tail only.
+ * <br/>
+ * Storage is thread-safe: Each call runs under the storage lock. Changes made to a stored bond in place (e.g.
+ * {@link SharkBond#setCreditorID}) are written to the log as well.
+ */
+public class SharkBondLogStorageImpl extends SharkBondStorageImpl {
+    /**
+     * Defines when written bonds are forced to disk.
+     */
+    public enum SyncPolicy {
+        /** sync after each write - no signed bond gets lost, slowest option */
+        EVERY_WRITE,
+        /** sync after a number of writes or when {@link #sync()} is called */
+        BATCH,
+        /** sync in a fixed interval - bonds written within the last interval can get lost on a crash */
+        INTERVAL
+    }
+
+    public static final int DEFAULT_SYNC_BATCH_SIZE = 64;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+    public static final long DEFAULT_MAINTENANCE_INTERVAL_MILLIS = 60 * 1000;
+    /** no checkpoint before the log tail has got at least this number of records */
+    public static final int MIN_CHECKPOINT_RECORDS = 1024;
+    /** compact if at least this number of closed segments exists */
+    public static final int MIN_COMPACTION_SEGMENTS = 2;
+
+    private final SharkBondLog bondLog;
+    private ScheduledExecutorService maintenanceExecutor;
+
+    public SharkBondLogStorageImpl(File folder) throws SharkCreditMoneyException {
+        this(folder, SyncPolicy.EVERY_WRITE, DEFAULT_SYNC_BATCH_SIZE, DEFAULT_SYNC_INTERVAL_MILLIS);
+    }
+
+    public SharkBondLogStorageImpl(File folder, SyncPolicy syncPolicy, int syncBatchSize, long syncIntervalMillis)
+            throws SharkCreditMoneyException {
+        this(folder, syncPolicy, syncBatchSize, syncIntervalMillis, DEFAULT_MAINTENANCE_INTERVAL_MILLIS,
+                SharkBondLog.DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maintenanceIntervalMillis interval of checkpoints and compactions - no background maintenance if <= 0
+     * @param maxSegmentSize a new segment is started if the active segment would exceed this size (bytes)
+     */
+    public SharkBondLogStorageImpl(File folder, SyncPolicy syncPolicy, int syncBatchSize, long syncIntervalMillis,
+                                   long maintenanceIntervalMillis, int maxSegmentSize)
+            throws SharkCreditMoneyException {
+        try {
+            this.bondLog = new SharkBondLog(folder, syncPolicy, syncBatchSize, syncIntervalMillis, maxSegmentSize);
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot open bond log", e);
+        }
+        this.replay();
+
+        if (maintenanceIntervalMillis > 0) {
+            this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SharkBondLog-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.maintenanceExecutor.scheduleWithFixedDelay(this::maintain,
+                    maintenanceIntervalMillis, maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void loadBondsFromStorage() {
+        // called by super constructor before the log is opened
+        if (this.bondLog == null) {
+            super.loadBondsFromStorage();
+            return;
+        }
+
+        try {
+            this.replay();
+        } catch (SharkCreditMoneyException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void addSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (sharkBond.getBondID() != null && this.getIndexOfSharkBond(sharkBond.getBondID()) != -1) {
+            // let super complain
+            super.addSharkBond(sharkBond);
+        }
+        this.logPut(sharkBond);
+        super.addSharkBond(sharkBond);
+    }
+
+    @Override
+    public synchronized void updateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (this.getIndexOfSharkBond(sharkBond.getBondID()) == -1) {
+            // let super complain
+            super.updateSharkBond(sharkBond);
+        }
+        this.logPut(sharkBond);
+        super.updateSharkBond(sharkBond);
+    }
+
+    @Override
+    public synchronized void addOrUpdateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
+        this.logPut(sharkBond);
+        super.addOrUpdateSharkBond(sharkBond);
+    }
+
+    @Override
+    public synchronized void deleteSharkBondById(CharSequence bondId) throws SharkCreditMoneyException {
+        if (this.getIndexOfSharkBond(bondId) == -1) {
+            // let super complain
+            super.deleteSharkBondById(bondId);
+        }
+        this.logDelete(bondId);
+        super.deleteSharkBondById(bondId);
+    }
+
+    @Override
+    public synchronized void deleteAll() {
+        try {
+            this.bondLog.appendClear();
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot write to bond log", e);
+        }
+        super.deleteAll();
+    }
+
+    // reads of the in-memory store and its indexes - not thread-safe on their own
+
+    @Override
+    public synchronized int getStorageSize() {
+        return super.getStorageSize();
+    }
+
+    @Override
+    public synchronized int getIndexOfSharkBond(CharSequence bondId) {
+        return super.getIndexOfSharkBond(bondId);
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getAllSharkBonds() {
+        return super.getAllSharkBonds();
+    }
+
+    @Override
+    public synchronized SharkBond getSharkBondAtIndex(int index) {
+        return super.getSharkBondAtIndex(index);
+    }
+
+    @Override
+    public synchronized SharkBond getSharkBondByBondId(CharSequence bondId) {
+        return super.getSharkBondByBondId(bondId);
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getSharkBondsByCreditor(CharSequence creditorId) {
+        return super.getSharkBondsByCreditor(creditorId);
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getSharkBondsByDebtor(CharSequence debtorId) {
+        return super.getSharkBondsByDebtor(debtorId);
+    }
+
+    @Override
+    public synchronized Collection<SharkBond> getSharkBondsByCreditorAndDebtor(CharSequence creditorId,
+                                                                              CharSequence debtorId) {
+        return super.getSharkBondsByCreditorAndDebtor(creditorId, debtorId);
+    }
+
+    @Override
+    public synchronized SharkBondColumns getColumns() {
+        return super.getColumns();
+    }
+
+    /**
+     * A stored bond was changed in place - the change is written to the log and the bond is indexed again.
+     */
+    @Override
+    public synchronized void sharkBondChanged(SharkBond sharkBond) {
+        int index = super.getIndexOfSharkBond(sharkBond.getBondID());
+        // ignore bonds with same id which are not (or no longer) stored here
+        if (index == -1 || super.getSharkBondAtIndex(index) != sharkBond) return;
+
+        try {
+            this.logPut(sharkBond);
+        } catch (SharkCreditMoneyException e) {
+            throw new IllegalStateException(e);
+        }
+        super.sharkBondChanged(sharkBond);
+    }
+
+    // streams are created under the storage lock - each step reads the next id and bond under it (nextSharkBond)
+
+    @Override
+    public synchronized Stream<SharkBond> streamAllSharkBonds() {
+        return super.streamAllSharkBonds();
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBondsByCreditor(CharSequence creditorId) {
+        return super.streamSharkBondsByCreditor(creditorId);
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBondsByDebtor(CharSequence debtorId) {
+        return super.streamSharkBondsByDebtor(debtorId);
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBondsByCreditorAndDebtor(CharSequence creditorId,
+                                                                            CharSequence debtorId) {
+        return super.streamSharkBondsByCreditorAndDebtor(creditorId, debtorId);
+    }
+
+    @Override
+    public synchronized Stream<SharkBond> streamSharkBonds(SharkBondQuery query) {
+        return super.streamSharkBonds(query);
+    }
+
+    @Override
+    synchronized SharkBond nextSharkBond(Iterator<String> bondIDs) {
+        return super.nextSharkBond(bondIDs);
+    }
+
+    /**
+     * Forces all bonds written so far to disk - required with {@link SyncPolicy#BATCH} when a batch is complete.
+     */
+    public void sync() throws SharkCreditMoneyException {
+        try {
+            this.bondLog.sync();
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot sync bond log", e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of all live bonds and removes all log segments written before. Replay starts with this
+     * snapshot.
+     */
+    public void checkpoint() throws SharkCreditMoneyException {
+        long firstSegmentNumber;
+        Collection<SharkBond> sharkBonds;
+        try {
+            // snapshot must match the log position exactly - no changes in between
+            synchronized (this) {
+                firstSegmentNumber = this.bondLog.startCheckpoint();
+                sharkBonds = this.getAllSharkBonds();
+            }
+            // writers are not blocked while serializing - a bond changed in between is written again by the log tail
+            Collection<byte[]> serializedBonds = new ArrayList<>(sharkBonds.size());
+            for (SharkBond sharkBond : sharkBonds) {
+                serializedBonds.add(SharkBondSerializer.sharkBondToByteArray(sharkBond));
+            }
+            this.bondLog.writeCheckpoint(firstSegmentNumber, serializedBonds);
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot write bond snapshot", e);
+        }
+    }
+
+    /**
+     * Merges closed log segments and keeps only the latest version of each bond. Writers are not blocked.
+     */
+    public void compact() throws SharkCreditMoneyException {
+        try {
+            this.bondLog.compact(serializedBond -> {
+                SharkBond sharkBond = SharkBondSerializer.byteArrayToSharkBond(serializedBond);
+                return sharkBond.getBondID().toString();
+            });
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot compact bond log", e);
+        }
+    }
+
+    /**
+     * Stops maintenance, syncs and closes the log. The storage can't be changed afterwards.
+     */
+    public void close() throws SharkCreditMoneyException {
+        if (this.maintenanceExecutor != null) {
+            this.maintenanceExecutor.shutdown();
+            try {
+                this.maintenanceExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.maintenanceExecutor = null;
+        }
+
+        try {
+            this.bondLog.close();
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot close bond log", e);
+        }
+    }
+
+    void maintain() {
+        try {
+            // a checkpoint pays off if replaying the log tail takes longer than reading the live bonds
+            long tailRecords = this.bondLog.getRecordsSinceCheckpoint();
+            if (tailRecords >= MIN_CHECKPOINT_RECORDS && tailRecords > this.getStorageSize()) {
+                this.checkpoint();
+            } else if (this.bondLog.getNumberOfClosedSegments() >= MIN_COMPACTION_SEGMENTS) {
+                this.compact();
+            }
+        } catch (SharkCreditMoneyException e) {
+            e.printStackTrace();
+        }
+    }
+
+    SharkBondLog getBondLog() {
+        return this.bondLog;
+    }
+
+    void logPut(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (sharkBond.getBondID() == null) {
+            throw new SharkCreditMoneyException("The provided bond has no bondId and can't be stored in the sharkBondStorage");
+        }
+
+        try {
+            this.bondLog.appendPut(SharkBondSerializer.sharkBondToByteArray(sharkBond));
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot write bond to log", e);
+        }
+    }
+
+    void logDelete(CharSequence bondId) throws SharkCreditMoneyException {
+        try {
+            this.bondLog.appendDelete(bondId);
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot write bond deletion to log", e);
+        }
+    }
+
+    /**
+     * Reads the log into memory. Subclasses can read parts of the log differently.
+     */
+    void replayLog(SharkBondLog bondLog, SharkBondLog.RecordHandler handler) throws IOException {
+        bondLog.replay(handler);
+    }
+
+    void replayPut(SharkBond sharkBond) throws SharkCreditMoneyException {
+        super.addOrUpdateSharkBond(sharkBond);
+    }
+
+    void replayDelete(String bondID) throws SharkCreditMoneyException {
+        if (super.getIndexOfSharkBond(bondID) != -1) {
+            super.deleteSharkBondById(bondID);
+        }
+    }
+
+    void replayClear() {
+        super.deleteAll();
+    }
+
+    void replay() throws SharkCreditMoneyException {
+        super.loadBondsFromStorage();
+        // replayed bonds were stored before - the expiration sweeper has seen them
+        this.getExpirationIndex().setReplaying(true);
+        try {
+            this.replayLog(this.bondLog, new SharkBondLog.RecordHandler() {
+                @Override
+                public void put(byte[] serializedBond) throws IOException {
+                    // nobody else holds replayed bonds - keep them compact
+                    SharkBond sharkBond = CompactSharkBond.of(SharkBondSerializer.byteArrayToSharkBond(serializedBond));
+                    try {
+                        replayPut(sharkBond);
+                    } catch (SharkCreditMoneyException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                public void delete(String bondID) throws IOException {
+                    try {
+                        replayDelete(bondID);
+                    } catch (SharkCreditMoneyException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                public void clear() {
+                    replayClear();
+                }
+            });
+        } catch (IOException e) {
+            throw new SharkCreditMoneyException("cannot replay bond log", e);
+        } finally {
+            this.getExpirationIndex().setReplaying(false);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.sharksystem.creditmoney;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merkle tree over encoded bonds (SHA-256). Leaves and inner nodes are hashed with different prefixes - a leaf
+ * cannot pass as inner node. A node without sibling moves up a level unchanged.
+ */
+class SharkBondMerkleTree {
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    static byte[] leafHash(byte[] encodedBond) {
+        MessageDigest digest = newDigest();
+        digest.update(LEAF);
+        return digest.digest(encodedBond);
+    }
+
+    static byte[] root(List<byte[]> encodedBonds) {
+        List<byte[]> level = leafHashes(encodedBonds);
+        while (level.size() > 1) {
+            level = nextLevel(level);
+        }
+
+        return level.get(0);
+    }
+
+    /**
+     * @return all levels of the tree, leaf hashes first, root last - built once for proofs of many bonds
+     */
+    static List<List<byte[]>> levels(List<byte[]> leafHashes) {
+        List<List<byte[]>> levels = new ArrayList<>();
+        List<byte[]> level = leafHashes;
+        levels.add(level);
+        while (level.size() > 1) {
+            level = nextLevel(level);
+            levels.add(level);
+        }
+
+        return levels;
+    }
+
+    /**
+     * @return sibling hashes from leaf to root - see {@link #levels}
+     */
+    static List<byte[]> proofOf(List<List<byte[]>> levels, int index) {
+        List<byte[]> proof = new ArrayList<>();
+        for (List<byte[]> level : levels.subList(0, levels.size() - 1)) {
+            int sibling = index ^ 1;
+            if (sibling < level.size()) proof.add(level.get(sibling));
+            index >>= 1;
+        }
+
+        return proof;
+    }
+
+    /**
+     * @return true if proof leads from this leaf to root
+     */
+    static boolean verify(byte[] leafHash, int index, int leafCount, List<byte[]> proof, byte[] root) {
+        if (index < 0 || index >= leafCount) return false;
+
+        byte[] hash = leafHash;
+        int proofIndex = 0;
+        for (int levelSize = leafCount; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            if ((index ^ 1) < levelSize) {
+                if (proofIndex == proof.size()) return false;
+                byte[] sibling = proof.get(proofIndex++);
+                hash = (index & 1) == 0 ? nodeHash(hash, sibling) : nodeHash(sibling, hash);
+            }
+            index >>= 1;
+        }
+
+        return proofIndex == proof.size() && Arrays.equals(hash, root);
+    }
+
+    static List<byte[]> leafHashes(List<byte[]> encodedBonds) {
+        List<byte[]> leafHashes = new ArrayList<>(encodedBonds.size());
+        for (byte[] encodedBond : encodedBonds) {
+            leafHashes.add(leafHash(encodedBond));
+        }
+
+        return leafHashes;
+    }
+
+    private static List<byte[]> nextLevel(List<byte[]> level) {
+        List<byte[]> nextLevel = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            nextLevel.add(i + 1 < level.size() ? nodeHash(level.get(i), level.get(i + 1)) : level.get(i));
+        }
+
+        return nextLevel;
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest digest = newDigest();
+        digest.update(NODE);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(SharkBondCanonicalForm.CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // each java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
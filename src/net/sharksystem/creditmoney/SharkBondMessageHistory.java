@@ -0,0 +1,68 @@
+package net.sharksystem.creditmoney;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Digests of the latest received messages. Encounters deliver messages again - a message already seen is not
+ * worth decrypting twice. Oldest digests are forgotten first.
+ */
+class SharkBondMessageHistory {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<ByteBuffer, Boolean> digests;
+
+    SharkBondMessageHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    SharkBondMessageHistory(int capacity) {
+        this.digests = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                return this.size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if this message was received on this uri before - see {@link #add}
+     */
+    boolean contains(ByteBuffer digest) {
+        synchronized (this.digests) {
+            return this.digests.get(digest) != null;
+        }
+    }
+
+    /**
+     * Add messages after they are handled - a message which failed is read again on next delivery.
+     */
+    void add(Collection<ByteBuffer> digests) {
+        synchronized (this.digests) {
+            for (ByteBuffer digest : digests) {
+                this.digests.put(digest, Boolean.TRUE);
+            }
+        }
+    }
+
+    static ByteBuffer digest(CharSequence uri, byte[] message) {
+        return ByteBuffer.wrap(digestBytes(uri, message));
+    }
+
+    private static byte[] digestBytes(CharSequence uri, byte[] message) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance(SharkBondCanonicalForm.CONTENT_HASH_ALGORITHM);
+            messageDigest.update(uri.toString().getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            return messageDigest.digest(message);
+        } catch (NoSuchAlgorithmException e) {
+            // each java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.sharksystem.creditmoney;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Filter on stored bonds, see {@link SharkBondStorage#streamSharkBonds(SharkBondQuery)}. All criteria must match.
+ * Criteria not set are ignored - an empty query matches all bonds.
+ * <pre>
+ * storage.streamSharkBonds(new SharkBondQuery()
+ *         .creditor(aliceID)
+ *         .unit("EUR")
+ *         .amountBetween(10, 100)
+ *         .annulled(false));
+ * </pre>
+ * The storage reads bonds from its most selective index (creditor and debtor, creditor, debtor, unit or
+ * expiration date) and checks all other criteria while scanning.
+ */
+public class SharkBondQuery {
+    private String creditorID;
+    private String debtorID;
+    private String unitDescription;
+    private int minAmount = Integer.MIN_VALUE;
+    private int maxAmount = Integer.MAX_VALUE;
+    private long expiresFrom = Long.MIN_VALUE;
+    private long expiresUntil = Long.MAX_VALUE;
+    private Boolean annulled;
+    private Boolean signed;
+    private final List<Predicate<SharkBond>> predicates = new ArrayList<>();
+
+    public SharkBondQuery creditor(CharSequence creditorID) {
+        this.creditorID = SharkBondIndex.toKey(creditorID);
+        return this;
+    }
+
+    public SharkBondQuery debtor(CharSequence debtorID) {
+        this.debtorID = SharkBondIndex.toKey(debtorID);
+        return this;
+    }
+
+    public SharkBondQuery unit(CharSequence unitDescription) {
+        this.unitDescription = SharkBondIndex.toKey(unitDescription);
+        return this;
+    }
+
+    /**
+     * @param min inclusive
+     * @param max inclusive
+     */
+    public SharkBondQuery amountBetween(int min, int max) {
+        this.minAmount = min;
+        this.maxAmount = max;
+        return this;
+    }
+
+    /**
+     * @param from inclusive (ms since epoch)
+     * @param until exclusive (ms since epoch)
+     */
+    public SharkBondQuery expiresBetween(long from, long until) {
+        this.expiresFrom = from;
+        this.expiresUntil = until;
+        return this;
+    }
+
+    /**
+     * @param annulled true: annulled by creditor and debtor (see {@link SharkBond#isAnnulled()}), false: not annulled
+     */
+    public SharkBondQuery annulled(boolean annulled) {
+        this.annulled = annulled;
+        return this;
+    }
+
+    /**
+     * @param signed true: signed by creditor and debtor, false: at least one signature is missing
+     */
+    public SharkBondQuery signed(boolean signed) {
+        this.signed = signed;
+        return this;
+    }
+
+    /**
+     * Adds any other criterion. It is checked after the built-in ones.
+     */
+    public SharkBondQuery where(Predicate<SharkBond> predicate) {
+        this.predicates.add(predicate);
+        return this;
+    }
+
+    public boolean matches(SharkBond sharkBond) {
+        if (this.creditorID != null && !equals(this.creditorID, sharkBond.getCreditorID())) return false;
+        if (this.debtorID != null && !equals(this.debtorID, sharkBond.getDebtorID())) return false;
+        if (this.unitDescription != null && !equals(this.unitDescription, sharkBond.unitDescription())) return false;
+
+        int amount = sharkBond.getAmount();
+        if (amount < this.minAmount || amount > this.maxAmount) return false;
+
+        long expirationDate = sharkBond.getExpirationDate();
+        if (expirationDate < this.expiresFrom || expirationDate >= this.expiresUntil) return false;
+
+        if (this.annulled != null && this.annulled != sharkBond.isAnnulled()) return false;
+        if (this.signed != null && this.signed != isSigned(sharkBond)) return false;
+
+        for (Predicate<SharkBond> predicate : this.predicates) {
+            if (!predicate.test(sharkBond)) return false;
+        }
+
+        return true;
+    }
+
+    String getCreditorID() {
+        return this.creditorID;
+    }
+
+    String getDebtorID() {
+        return this.debtorID;
+    }
+
+    long getExpiresFrom() {
+        return this.expiresFrom;
+    }
+
+    long getExpiresUntil() {
+        return this.expiresUntil;
+    }
+
+    boolean hasExpirationRange() {
+        return this.expiresFrom != Long.MIN_VALUE || this.expiresUntil != Long.MAX_VALUE;
+    }
+
+    /**
+     * Picks the index with the fewest bonds for this query. Index sizes are counted up to the smallest size found
+     * so far - a huge index is not counted completely.
+     *
+     * @return ids of bonds which can match the query or null if no index can be used (full scan)
+     */
+    Collection<String> selectBondIDs(SharkBondIndex creditorIndex, SharkBondIndex debtorIndex,
+                                     SharkBondIndex creditorAndDebtorIndex, SharkBondIndex unitIndex,
+                                     SharkBondExpirationIndex expirationIndex) {
+        String[] keys = {
+                SharkBondIndex.toKey(this.creditorID, this.debtorID), this.creditorID, this.debtorID,
+                this.unitDescription};
+        SharkBondIndex[] indexes = {creditorAndDebtorIndex, creditorIndex, debtorIndex, unitIndex};
+
+        Collection<String> selectedBondIDs = null;
+        int selectedSize = Integer.MAX_VALUE;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) continue;
+
+            int size = indexes[i].count(keys[i], selectedSize);
+            if (size < selectedSize) {
+                selectedBondIDs = indexes[i].get(keys[i]);
+                selectedSize = size;
+            }
+            // nothing can be more selective than an empty index
+            if (selectedSize == 0) return selectedBondIDs;
+        }
+
+        if (this.hasExpirationRange()
+                && expirationIndex.count(this.expiresFrom, this.expiresUntil, selectedSize) < selectedSize) {
+            selectedBondIDs = expirationIndex.get(this.expiresFrom, this.expiresUntil);
+        }
+
+        return selectedBondIDs;
+    }
+
+    static boolean isSigned(SharkBond sharkBond) {
+        return sharkBond.getCreditorSignature() != null && sharkBond.getDebtorSignature() != null;
+    }
+
+    private static boolean equals(String key, CharSequence value) {
+        return value != null && key.equals(value.toString());
+    }
+}
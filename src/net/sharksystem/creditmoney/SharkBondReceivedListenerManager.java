@@ -15,17 +15,23 @@ public class SharkBondReceivedListenerManager extends GenericListenerImplementat
         this.removeListener(listener);
     }
 
-    protected void notifySharkBondReceivedListener(
+    /**
+     * Listeners are called on this thread.
+     * @return false if a listener failed
+     */
+    protected boolean notifySharkBondReceivedListener(
             CharSequence uri) {
 
         SharkBondsReceivedNotifier sharkBondsReceivedNotifier =
                 new SharkBondsReceivedNotifier(uri);
 
         this.notifyAll(sharkBondsReceivedNotifier, false);
+        return !sharkBondsReceivedNotifier.failed;
     }
 
     private class SharkBondsReceivedNotifier implements GenericNotifier<SharkBondsReceivedListener> {
         private final CharSequence uri;
+        private boolean failed = false;
 
         public SharkBondsReceivedNotifier(CharSequence uri) {
             this.uri = uri;
@@ -37,6 +43,7 @@ public class SharkBondReceivedListenerManager extends GenericListenerImplementat
                 sharkMessagesReceivedListener.sharkBondReceived(this.uri);
             } catch (ASAPException | IOException | SharkCreditMoneyException e) {
                 e.printStackTrace();
+                this.failed = true;
             }
         }
     }
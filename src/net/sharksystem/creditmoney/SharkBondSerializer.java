@@ -4,12 +4,27 @@ import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.ASAPSecurityException;
 import net.sharksystem.asap.crypto.ASAPCryptoAlgorithms;
 import net.sharksystem.asap.crypto.ASAPKeyStore;
-import net.sharksystem.asap.utils.ASAPSerialization;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 class SharkBondSerializer {
+    // bond, sender, recipient or signature - more is no bond message
+    static final int MAX_SECTION_LENGTH = 1024 * 1024;
 
     static byte [] serializeCreditBond(SharkBond creditBond, CharSequence sender, Set<CharSequence> receiver,
                                        boolean sign, boolean encrypt, ASAPKeyStore asapKeyStore, boolean excludeSignature) throws ASAPSecurityException, IOException {
@@ -20,6 +35,163 @@ class SharkBondSerializer {
     static byte [] serializeCreditBond(SharkBond creditBond, CharSequence sender, Set<CharSequence> receiver,
                                        boolean sign, boolean encrypt, ASAPKeyStore asapKeyStore, boolean excludeSignature, int usedFor) throws ASAPSecurityException, IOException {
 
+        ByteBuffer message = null;
+        try {
+            // usedFor == 1 function is used for signature purpose
+            if (usedFor == 1 && sign) {
+                message = writeContent(creditBond, sender, receiver, encrypt, excludeSignature, 0);
+                return sign(message.array(), 0, message.position(), asapKeyStore);
+            }
+            // usedFor == 2 function is used for verification purpose
+            if (usedFor == 2 && sign) {
+                message = writeContent(creditBond, sender, receiver, encrypt, excludeSignature, 0);
+                return Arrays.copyOf(message.array(), message.position());
+            }
+
+            message = writeMessage(creditBond, sender, receiver, sign, encrypt, asapKeyStore, excludeSignature);
+            // the only copy of the message
+            return Arrays.copyOf(message.array(), message.position());
+        } finally {
+            SharkBondBufferPool.release(message);
+        }
+    }
+
+    /**
+     * Writes the bond message to channel - same bytes as the array variant, without creating the array.
+     *
+     * @return number of bytes written
+     */
+    static int serializeCreditBond(SharkBond creditBond, CharSequence sender, Set<CharSequence> receiver,
+                                   boolean sign, boolean encrypt, ASAPKeyStore asapKeyStore,
+                                   WritableByteChannel channel) throws ASAPSecurityException, IOException {
+        ByteBuffer message = writeMessage(creditBond, sender, receiver, sign, encrypt, asapKeyStore, false);
+        try {
+            message.flip();
+            int length = message.remaining();
+            while (message.hasRemaining()) {
+                channel.write(message);
+            }
+
+            return length;
+        } finally {
+            SharkBondBufferPool.release(message);
+        }
+    }
+
+    /**
+     * Message layout (ASAPSerialization compatible):
+     * <pre>
+     * flags | length | content                                           (plain)
+     * flags | length | content length | content | signature length | signature       (signed)
+     * flags | length | recipient | key length | encrypted key | length | encrypted        (encrypted: part behind
+     *                                                                     flags and length, ASAP package)
+     * flags | length | recipient | session key length | session key | nonce length | nonce | length | encrypted
+     *                                                                     (encrypted with session key, see
+     *                                                                     {@link SharkBondSessionKeys})
+     * </pre>
+     * Sections are written in place in a pooled buffer. Lengths unknown before writing are filled in afterwards.
+     *
+     * @return pooled buffer holding the message from 0 to its position - caller releases it
+     */
+    private static ByteBuffer writeMessage(SharkBond creditBond, CharSequence sender, Set<CharSequence> receiver,
+                                           boolean sign, boolean encrypt, ASAPKeyStore asapKeyStore,
+                                           boolean excludeSignature) throws ASAPSecurityException, IOException {
+        // flags and message length - signed: length of content in front of the content
+        int contentOffset = sign ? 9 : 5;
+        ByteBuffer message = writeContent(creditBond, sender, receiver, encrypt, excludeSignature, contentOffset);
+        int contentLength = message.position() - contentOffset;
+
+        byte flags = 0;
+        // Sign SC Bond Message
+        if (sign) {
+            byte[] signature = sign(message.array(), contentOffset, contentLength, asapKeyStore);
+            message = SharkBondBufferPool.ensureCapacity(message, message.position() + 4 + signature.length);
+            message.putInt(5, contentLength);
+            message.putInt(signature.length);
+            message.put(signature);
+            flags += SharkBond.SIGNED_MASK;
+        }
+
+        // already checked if one and only one is recipient
+        return finishMessage(message, flags, encrypt, encrypt ? receiver.iterator().next() : null, asapKeyStore);
+    }
+
+    /**
+     * Puts flags and length in front of the message body (from 5 to position). Compresses and encrypts the body
+     * before - compression only if it pays, encryption if asked to.
+     */
+    private static ByteBuffer finishMessage(ByteBuffer message, byte flags, boolean encrypt, CharSequence recipient,
+                                            ASAPKeyStore asapKeyStore) throws ASAPSecurityException {
+        byte[] compressedBody = SharkBondCompression.compress(message.array(), 5, message.position() - 5);
+        if (compressedBody != null) {
+            message.position(5);
+            message.put(compressedBody);
+            flags += SharkBond.COMPRESSED_MASK;
+        }
+
+        if (encrypt && !SharkBondSessionKeys.isUsedFor(asapKeyStore, recipient)) {
+            // same package as ASAPCryptoAlgorithms.produceEncryptedMessagePackage: recipient | key | content
+            PublicKey publicKey = SharkBondCrypto.getPublicKey(asapKeyStore, recipient);
+            if (publicKey == null) throw new ASAPSecurityException("recipients' public key cannot be found");
+            SecretKey symmetricKey = asapKeyStore.generateSymmetricKey();
+            byte[] encodedKey = symmetricKey.getEncoded();
+            byte[] encryptedKey = SharkBondCrypto.encrypt(encodedKey, 0, encodedKey.length, publicKey,
+                    asapKeyStore.getAsymmetricEncryptionAlgorithm());
+            byte[] encryptedContent = SharkBondCrypto.encrypt(message.array(), 5, message.position() - 5,
+                    symmetricKey, asapKeyStore.getSymmetricEncryptionAlgorithm());
+
+            byte[] recipientBytes = toBytes(recipient);
+            message.clear();
+            message = SharkBondBufferPool.ensureCapacity(message,
+                    5 + stringLength(recipientBytes) + 8 + encryptedKey.length + encryptedContent.length);
+            message.position(5);
+            putString(recipientBytes, message);
+            message.putInt(encryptedKey.length);
+            message.put(encryptedKey);
+            message.putInt(encryptedContent.length);
+            message.put(encryptedContent);
+            flags += SharkBond.ENCRYPTED_MASK;
+        } else if (encrypt) {
+            // recipient | encrypted session key | nonce | content - see SharkBondSessionKeys
+            PublicKey publicKey = SharkBondCrypto.getPublicKey(asapKeyStore, recipient);
+            if (publicKey == null) throw new ASAPSecurityException("recipients' public key cannot be found");
+            SharkBondSessionKeys.SessionKey sessionKey =
+                    SharkBondSessionKeys.getSessionKey(asapKeyStore, recipient, publicKey);
+            byte[] encryptedKey = sessionKey.getEncryptedKey();
+            byte[] nonce = SharkBondSessionKeys.newNonce();
+            byte[] encryptedContent = SharkBondCrypto.encrypt(message.array(), 5, message.position() - 5,
+                    SharkBondSessionKeys.messageKey(sessionKey.getSecretKey(), nonce, asapKeyStore),
+                    asapKeyStore.getSymmetricEncryptionAlgorithm());
+
+            byte[] recipientBytes = toBytes(recipient);
+            message.clear();
+            message = SharkBondBufferPool.ensureCapacity(message, 5 + stringLength(recipientBytes)
+                    + 12 + encryptedKey.length + nonce.length + encryptedContent.length);
+            message.position(5);
+            putString(recipientBytes, message);
+            message.putInt(encryptedKey.length);
+            message.put(encryptedKey);
+            message.putInt(nonce.length);
+            message.put(nonce);
+            message.putInt(encryptedContent.length);
+            message.put(encryptedContent);
+            flags += SharkBond.ENCRYPTED_MASK + SharkBond.SESSION_KEY_MASK;
+        }
+
+        // serialize SN message
+        message.put(0, flags);
+        message.putInt(1, message.position() - 5);
+
+        return message;
+    }
+
+    /**
+     * Writes bond, sender and recipients into a pooled buffer starting at offset.
+     */
+    private static ByteBuffer writeContent(SharkBond creditBond, CharSequence sender, Set<CharSequence> receiver,
+                                           boolean encrypt, boolean excludeSignature, int offset)
+            throws ASAPSecurityException {
+
         if( (receiver != null && receiver.size() > 1) && encrypt) {
             throw new ASAPSecurityException("cannot (yet) encrypt one message for more than one recipient - split it into more messages");
         }
@@ -27,126 +199,134 @@ class SharkBondSerializer {
         if(receiver == null || receiver.isEmpty()) {
             if(encrypt) throw new ASAPSecurityException("impossible to encrypt a message without a receiver");
             // else
-            receiver = new HashSet<>();
-            receiver.add(creditBond.getDebtorID());
+            receiver = Collections.singleton(creditBond.getDebtorID());
         }
 
         if(sender == null) {
             sender = creditBond.getCreditorID();
         }
 
-        // Convert bond to byteArray
+        // strings are written like ASAPSerialization does: platform charset, nothing at all if empty
+        byte[] senderBytes = toBytes(sender);
+        byte[][] receiverBytes = new byte[receiver.size()][];
+        int receiverLength = 0;
+        int i = 0;
+        for (CharSequence recipient : receiver) {
+            receiverBytes[i] = toBytes(recipient);
+            receiverLength += stringLength(receiverBytes[i++]);
+        }
         // use excludeSignature to exclude or include previous signatures (that can be helpful for a late verification of the the bond signatures)
-        byte[] content = sharkBondToByteArray(creditBond, excludeSignature);
-        /////////// produce serialized structure
+        int bondLength = SharkBondCodec.encodedLength(creditBond, excludeSignature);
 
-        // merge content, sender and recipient
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ByteBuffer message = SharkBondBufferPool.acquire(
+                offset + 4 + bondLength + stringLength(senderBytes) + 4 + receiverLength);
+        message.position(offset);
         ///// content
-        ASAPSerialization.writeByteArray(content, baos);
+        message.putInt(bondLength);
+        int bondEnd = SharkBondCodec.encode(creditBond, excludeSignature, message.array(), message.position());
+        message.position(bondEnd);
         ///// sender is the creditor
-        ASAPSerialization.writeCharSequenceParameter(sender, baos);
+        putString(senderBytes, message);
         ///// recipients
-        ASAPSerialization.writeCharSequenceSetParameter(receiver, baos);
-
-        ///// timestamp
-        // Timestamp creationTime = new Timestamp(System.currentTimeMillis());
-        // String timestampString = creationTime.toString();
-        // ASAPSerialization.writeCharSequenceParameter(timestampString, baos);
+        message.putInt(receiverBytes.length);
+        for (byte[] recipient : receiverBytes) {
+            putString(recipient, message);
+        }
 
-        content = baos.toByteArray();
+        return message;
+    }
 
-        byte flags = 0;
-        // Sign SC Bond Message
-        if(sign) {
-            byte[] signature = ASAPCryptoAlgorithms.sign(content, asapKeyStore);
-            // usedFor == 1 function is used for signature purpose
-            if (usedFor == 1) {
-                return signature;
-            }
+    /**
+     * @return message content of an already encoded bond for one recipient - same bytes as written into messages
+     */
+    static byte[] serializeContent(byte[] encodedBond, CharSequence sender, CharSequence recipient) {
+        byte[] senderBytes = toBytes(sender);
+        byte[] recipientBytes = toBytes(recipient);
+        ByteBuffer content = ByteBuffer.allocate(
+                4 + encodedBond.length + stringLength(senderBytes) + 4 + stringLength(recipientBytes));
+        content.putInt(encodedBond.length);
+        content.put(encodedBond);
+        putString(senderBytes, content);
+        content.putInt(1);
+        putString(recipientBytes, content);
+
+        return content.array();
+    }
 
-            baos = new ByteArrayOutputStream();
-            ASAPSerialization.writeByteArray(content, baos); // message has three parts: content, sender, receiver
+    static byte[] sign(byte[] data, ASAPKeyStore asapKeyStore) throws ASAPSecurityException {
+        return sign(data, 0, data.length, asapKeyStore);
+    }
 
-            // usedFor == 2 function is used for verification purpose
-            if (usedFor == 2) {
-                return content;
-            }
+    private static byte[] sign(byte[] data, int offset, int length, ASAPKeyStore asapKeyStore)
+            throws ASAPSecurityException {
+        // like ASAPCryptoAlgorithms.sign - without copying the data first
+        return SharkBondCrypto.sign(data, offset, length, asapKeyStore);
+    }
 
-            // append signature
-            ASAPSerialization.writeByteArray(signature, baos);
-            // attach signature to message
-            content = baos.toByteArray();
-            flags += SharkBond.SIGNED_MASK;
-        }
+    private static byte[] toBytes(CharSequence value) {
+        return value == null || value.length() < 1 ? null : value.toString().getBytes();
+    }
 
-        if(encrypt) {
-            // Encrypt SN Message
-            content = ASAPCryptoAlgorithms.produceEncryptedMessagePackage(
-                    content,
-                    receiver.iterator().next(), // already checked if one and only one is recipient
-                    asapKeyStore);
-            flags += SharkBond.ENCRYPTED_MASK;
-        }
+    private static int stringLength(byte[] value) {
+        return value == null ? 0 : 4 + value.length;
+    }
 
-        // serialize SN message
-        baos = new ByteArrayOutputStream();
-        ASAPSerialization.writeByteParameter(flags, baos);
-        ASAPSerialization.writeByteArray(content, baos);
+    private static void putString(byte[] value, ByteBuffer message) {
+        if (value == null) return;
 
-        return baos.toByteArray();
+        message.putInt(value.length);
+        message.put(value);
     }
 
     static SharkBond deserializeCreditBond(byte[] serializedCreditBond, ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(serializedCreditBond);
-        byte flags = ASAPSerialization.readByte(bais);
-        byte[] tmpMessage = ASAPSerialization.readByteArray(bais);
-
-        boolean signed = (flags & SharkBond.SIGNED_MASK) != 0;
-        boolean encrypted = (flags & SharkBond.ENCRYPTED_MASK) != 0;
+        return deserializeCreditBond(new ByteArrayInputStream(serializedCreditBond), asapKeyStore);
+    }
 
-        if (encrypted) {
-            // decrypt
-            bais = new ByteArrayInputStream(tmpMessage);
-            ASAPCryptoAlgorithms.EncryptedMessagePackage
-                    encryptedMessagePackage = ASAPCryptoAlgorithms.parseEncryptedMessagePackage(bais);
+    static SharkBond deserializeCreditBond(ReadableByteChannel channel, ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
+        return deserializeCreditBond(Channels.newInputStream(channel), asapKeyStore);
+    }
 
-            // for me?
-            if (!asapKeyStore.isOwner(encryptedMessagePackage.getRecipient())) {
-                throw new ASAPException("SharkBond Message: message not for me. Current user: " + asapKeyStore.getOwner() + ", recipient: " + encryptedMessagePackage.getRecipient());
-            }
-            // replace message with decrypted message
-            tmpMessage = ASAPCryptoAlgorithms.decryptPackage(
-                    encryptedMessagePackage, asapKeyStore);
+    /**
+     * Reads one bond message from the stream. The message is decrypted while it is read - it is never held as a
+     * whole. Only bond, sender and recipients (a few KB at most) are buffered, signatures are checked on them.
+     * Reads no byte behind the message.
+     */
+    static SharkBond deserializeCreditBond(InputStream is, ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
+        DataInputStream message = new DataInputStream(is);
+        byte flags = message.readByte();
+        if ((flags & SharkBond.BATCH_MASK) != 0) {
+            throw new IOException("bond batch - read it with deserializeCreditBonds");
         }
+        LimitedInputStream messageBody = new LimitedInputStream(message, readMessageLength(message));
+        DataInputStream body = openMessageBody(flags, messageBody, asapKeyStore);
+
+        boolean signed = (flags & SharkBond.SIGNED_MASK) != 0;
 
         byte[] signature = null;
         byte[] signedMessage = null;
+        DataInputStream content = body;
         if (signed) {
             // split message from signature
-            bais = new ByteArrayInputStream(tmpMessage);
-            tmpMessage = ASAPSerialization.readByteArray(bais);
-            signedMessage = tmpMessage;
-            signature = ASAPSerialization.readByteArray(bais);
+            signedMessage = readBytes(body);
+            signature = readBytes(body);
+            content = new DataInputStream(new ByteArrayInputStream(signedMessage));
         }
 
-        ///////////////// produce object form serialized bytes
-        bais = new ByteArrayInputStream(tmpMessage);
-
         ////// content
-        byte[] snMessage = ASAPSerialization.readByteArray(bais);
+        byte[] snMessage = readBytes(content);
         ////// sender
-        String snSender = ASAPSerialization.readCharSequenceParameter(bais);
+        String snSender = readString(content);
         ////// recipients
-        Set<CharSequence> snReceivers = ASAPSerialization.readCharSequenceSetParameter(bais);
-        ///// timestamp
-        // String timestampString = ASAPSerialization.readCharSequenceParameter(bais);
-        // Timestamp creationTime = Timestamp.valueOf(timestampString);
+        int receiverCount = readLength(content);
+        Set<CharSequence> snReceivers = new HashSet<>();
+        for (int i = 0; i < receiverCount; i++) {
+            snReceivers.add(readString(content));
+        }
 
         boolean verified = false; // initialize
         if (signature != null) {
             try {
-                verified = ASAPCryptoAlgorithms.verify(
+                verified = SharkBondHelper.isSignatureCorrect(
                         signedMessage, signature, snSender, asapKeyStore);
             } catch (ASAPSecurityException e) {
                 // verified definitely false
@@ -154,66 +334,328 @@ class SharkBondSerializer {
             }
         }
 
-        // replace special sn symbols
-        return byteArrayToSharkBond(snMessage);
+        // next message starts behind this one - cipher padding may be left
+        messageBody.drain();
+
+        if (verified && (flags & SharkBond.SESSION_KEY_MASK) != 0) {
+            SharkBondSessionKeys.sessionKeysReceivedFrom(asapKeyStore, snSender);
+        }
+
+        // peers send the binary format only
+        return SharkBondCodec.decode(snMessage);
     }
 
-    static byte [] sharkBondToByteArray(SharkBond creditBond) {
-        byte[] byteArray = null;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream out = null;
+    private static int readMessageLength(DataInputStream message) throws IOException {
+        int length = message.readInt();
+        if (length < 0) throw new IOException("negative bond message length: " + length);
+
+        return length;
+    }
+
+    /**
+     * @return stream of the message body - decrypted while reading if the message is encrypted
+     */
+    private static DataInputStream openMessageBody(byte flags, LimitedInputStream messageBody,
+                                                   ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
+        DataInputStream body = decryptMessageBody(flags, new DataInputStream(messageBody), asapKeyStore);
+        if ((flags & SharkBond.COMPRESSED_MASK) == 0) return body;
+
+        return new DataInputStream(SharkBondCompression.decompress(body));
+    }
+
+    private static DataInputStream decryptMessageBody(byte flags, DataInputStream body,
+                                                      ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
+        if ((flags & SharkBond.ENCRYPTED_MASK) == 0) return body;
+
+        // for me? - decide before anything is decrypted
+        String recipient = readString(body);
+        if (!asapKeyStore.isOwner(recipient)) {
+            throw new ASAPException("SharkBond Message: message not for me. Current user: " + asapKeyStore.getOwner() + ", recipient: " + recipient);
+        }
+        // decrypt
+        SecretKey symmetricKey;
+        if ((flags & SharkBond.SESSION_KEY_MASK) != 0) {
+            SecretKey sessionKey = SharkBondSessionKeys.getReceivedKey(asapKeyStore, readBytes(body));
+            symmetricKey = SharkBondSessionKeys.messageKey(sessionKey, readBytes(body), asapKeyStore);
+        } else {
+            // one key per message - ASAPCryptoAlgorithms package
+            symmetricKey = ASAPCryptoAlgorithms.createSymmetricKey(SharkBondCrypto.decrypt(readBytes(body),
+                    asapKeyStore.getPrivateKey(), asapKeyStore.getAsymmetricEncryptionAlgorithm()), asapKeyStore);
+        }
+        int encryptedLength = readLength(body);
+        try {
+            Cipher cipher = Cipher.getInstance(asapKeyStore.getSymmetricEncryptionAlgorithm());
+            cipher.init(Cipher.DECRYPT_MODE, symmetricKey);
+            return new DataInputStream(
+                    new CipherInputStream(new LimitedInputStream(body, encryptedLength), cipher));
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("symmetric decryption failed: " + asapKeyStore.getSymmetricEncryptionAlgorithm(), e);
+        }
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////////////
+    //                                     bond batches                                        //
+    /////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Several bonds for the same recipients in one message with one signature. The signature covers a header with
+     * the Merkle root over all bonds (see {@link SharkBondMerkleTree}) - each bond can be verified on its own with
+     * its inclusion proof.
+     * <pre>
+     * flags (BATCH_MASK) | length | body                                  (body encrypted if ENCRYPTED_MASK)
+     * body: header length | header | signature length | signature (empty if not signed) | bond count | bonds
+     * header: root length | Merkle root | sender | recipients
+     * bond: length | encoded bond
+     * </pre>
+     */
+    static byte[] serializeCreditBonds(List<SharkBond> creditBonds, CharSequence sender, Set<CharSequence> receiver,
+                                       boolean sign, boolean encrypt, ASAPKeyStore asapKeyStore) throws ASAPSecurityException, IOException {
+        if (creditBonds.isEmpty()) throw new IOException("empty bond batch");
+
+        if( (receiver != null && receiver.size() > 1) && encrypt) {
+            throw new ASAPSecurityException("cannot (yet) encrypt one message for more than one recipient - split it into more messages");
+        }
+
+        if(receiver == null || receiver.isEmpty()) {
+            if(encrypt) throw new ASAPSecurityException("impossible to encrypt a message without a receiver");
+            // else
+            receiver = new HashSet<>();
+            for (SharkBond creditBond : creditBonds) {
+                receiver.add(creditBond.getDebtorID());
+            }
+        }
+
+        if(sender == null) {
+            sender = creditBonds.get(0).getCreditorID();
+        }
+
+        List<byte[]> encodedBonds = new ArrayList<>(creditBonds.size());
+        int bondsLength = 4;
+        for (SharkBond creditBond : creditBonds) {
+            byte[] encodedBond = SharkBondCodec.encode(creditBond);
+            encodedBonds.add(encodedBond);
+            bondsLength += 4 + encodedBond.length;
+        }
+        byte[] header = serializeBatchHeader(SharkBondMerkleTree.root(encodedBonds), sender, receiver);
+        byte[] signature = sign ? sign(header, asapKeyStore) : new byte[0];
+
+        ByteBuffer message = SharkBondBufferPool.acquire(5 + 4 + header.length + 4 + signature.length + bondsLength);
         try {
-            out = new ObjectOutputStream(bos);
-            out.writeObject(creditBond);
-            out.flush();
-            byteArray = bos.toByteArray();
-        } catch (IOException e) {
-            e.printStackTrace();
+            message.position(5);
+            message.putInt(header.length);
+            message.put(header);
+            message.putInt(signature.length);
+            message.put(signature);
+            message.putInt(encodedBonds.size());
+            for (byte[] encodedBond : encodedBonds) {
+                message.putInt(encodedBond.length);
+                message.put(encodedBond);
+            }
+
+            byte flags = SharkBond.BATCH_MASK;
+            if (sign) flags += SharkBond.SIGNED_MASK;
+            message = finishMessage(message, flags, encrypt, encrypt ? receiver.iterator().next() : null, asapKeyStore);
+
+            return Arrays.copyOf(message.array(), message.position());
         } finally {
-            try {
-                bos.close();
-            } catch (IOException ex) {
-                // ignore close exception
+            SharkBondBufferPool.release(message);
+        }
+    }
+
+    static SharkBondBatch deserializeCreditBonds(byte[] serializedCreditBonds, ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
+        return deserializeCreditBonds(new ByteArrayInputStream(serializedCreditBonds), asapKeyStore);
+    }
+
+    /**
+     * Reads a bond batch. Bonds are decoded one after the other while the message is read.
+     */
+    static SharkBondBatch deserializeCreditBonds(InputStream is, ASAPKeyStore asapKeyStore) throws IOException, ASAPException {
+        DataInputStream message = new DataInputStream(is);
+        byte flags = message.readByte();
+        if ((flags & SharkBond.BATCH_MASK) == 0) {
+            throw new IOException("no bond batch - read it with deserializeCreditBond");
+        }
+        LimitedInputStream messageBody = new LimitedInputStream(message, readMessageLength(message));
+        DataInputStream body = openMessageBody(flags, messageBody, asapKeyStore);
+
+        byte[] header = readBytes(body);
+        byte[] signature = readBytes(body);
+        int bondCount = readLength(body);
+        List<byte[]> encodedBonds = new ArrayList<>();
+        List<SharkBond> creditBonds = new ArrayList<>();
+        for (int i = 0; i < bondCount; i++) {
+            byte[] encodedBond = readBytes(body);
+            encodedBonds.add(encodedBond);
+            creditBonds.add(SharkBondCodec.decode(encodedBond));
+        }
+        messageBody.drain();
+
+        SharkBondBatch batch = new SharkBondBatch(creditBonds, encodedBonds, deserializeBatchHeader(header),
+                (flags & SharkBond.SIGNED_MASK) != 0 ? signature : null);
+        batch.verify(asapKeyStore);
+        if (batch.isVerified() && (flags & SharkBond.SESSION_KEY_MASK) != 0) {
+            SharkBondSessionKeys.sessionKeysReceivedFrom(asapKeyStore, batch.getSender());
+        }
+
+        return batch;
+    }
+
+    static byte[] serializeBatchHeader(byte[] merkleRoot, CharSequence sender, Set<CharSequence> receiver) {
+        byte[] senderBytes = toBytes(sender);
+        byte[][] receiverBytes = new byte[receiver.size()][];
+        int receiverLength = 0;
+        int i = 0;
+        for (CharSequence recipient : receiver) {
+            receiverBytes[i] = toBytes(recipient);
+            receiverLength += stringLength(receiverBytes[i++]);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(
+                4 + merkleRoot.length + stringLength(senderBytes) + 4 + receiverLength);
+        header.putInt(merkleRoot.length);
+        header.put(merkleRoot);
+        putString(senderBytes, header);
+        header.putInt(receiverBytes.length);
+        for (byte[] recipient : receiverBytes) {
+            putString(recipient, header);
+        }
+
+        return header.array();
+    }
+
+    static SharkBondBatchHeader deserializeBatchHeader(byte[] header) throws IOException {
+        DataInputStream is = new DataInputStream(new ByteArrayInputStream(header));
+        byte[] merkleRoot = readBytes(is);
+        String sender = readString(is);
+        int receiverCount = readLength(is);
+        Set<CharSequence> receiver = new HashSet<>();
+        for (int i = 0; i < receiverCount; i++) {
+            receiver.add(readString(is));
+        }
+
+        return new SharkBondBatchHeader(header, merkleRoot, sender, receiver);
+    }
+
+    private static int readLength(DataInputStream is) throws IOException {
+        int length = is.readInt();
+        if (length < 0 || length > MAX_SECTION_LENGTH) {
+            throw new IOException("invalid length in bond message: " + length);
+        }
+
+        return length;
+    }
+
+    private static byte[] readBytes(DataInputStream is) throws IOException {
+        byte[] bytes = new byte[readLength(is)];
+        is.readFully(bytes);
+        return bytes;
+    }
+
+    // like ASAPSerialization.readCharSequenceParameter
+    private static String readString(DataInputStream is) throws IOException {
+        return new String(readBytes(is));
+    }
+
+    /**
+     * Ends after limit bytes - a section cannot read into the next one.
+     */
+    static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) return -1;
+
+            int b = super.read();
+            if (b >= 0) this.remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) return -1;
+
+            int read = super.read(b, off, (int) Math.min(len, this.remaining));
+            if (read > 0) this.remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        void drain() throws IOException {
+            while (this.remaining > 0 && this.read() >= 0) {
+                this.skip(this.remaining);
             }
         }
 
-        return byteArray;
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // underlying stream belongs to the caller
+        }
+    }
+
+    static byte [] sharkBondToByteArray(SharkBond creditBond) {
+        return SharkBondCodec.encode(creditBond);
     }
 
 
     static byte [] sharkBondToByteArray(SharkBond creditBond, boolean excludeSignature) {
+        // if excludeSignature is true creditor and debtor signature are left out (signing)
+        return SharkBondCodec.encode(creditBond, excludeSignature);
+    }
+
 
-        // if excludeSignature is true set creditor and debtor signature to null before signing
-        if (excludeSignature) {
-            SharkBond creditBondCopy = new InMemoSharkBond(creditBond);
-            creditBondCopy.setCreditorSignature(null);
-            creditBondCopy.setDebtorSignature(null);
-            return sharkBondToByteArray(creditBondCopy);
+    /**
+     * Decodes a stored bond. Bonds stored by older versions (java serialization) can still be read.
+     */
+    static SharkBond byteArrayToSharkBond(byte [] byteArray) throws IOException {
+        if (SharkBondCodec.isEncodedBond(byteArray)) {
+            return SharkBondCodec.decode(byteArray);
         }
 
-        return sharkBondToByteArray(creditBond);
+        try (ObjectInputStream in = new LegacyBondInputStream(new ByteArrayInputStream(byteArray))) {
+            return (SharkBond) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("cannot deserialize legacy bond", e);
+        }
     }
 
+    /**
+     * Java serialized bonds - accepts no other classes than the bond itself.
+     */
+    private static class LegacyBondInputStream extends ObjectInputStream {
+        LegacyBondInputStream(InputStream in) throws IOException {
+            super(in);
+        }
 
-    static SharkBond byteArrayToSharkBond(byte [] byteArray) {
-        SharkBond bond = null;
-        ByteArrayInputStream bis = new ByteArrayInputStream(byteArray);
-        ObjectInput in = null;
-        try {
-            in = new ObjectInputStream(bis);
-            bond = (SharkBond) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (in != null) {
-                    in.close();
-                }
-            } catch (IOException ex) {
-                // ignore close exception
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (!name.equals(InMemoSharkBond.class.getName()) && !name.equals("[B")) {
+                throw new InvalidClassException(name, "not allowed in a serialized bond");
             }
-        }
 
-        return bond;
+            return super.resolveClass(desc);
+        }
     }
 }
@@ -0,0 +1,211 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import net.sharksystem.asap.crypto.ASAPCryptoAlgorithms;
+import net.sharksystem.asap.crypto.ASAPKeyStore;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symmetric session keys of encrypted bond messages, one per sender and recipient. A sender encrypts a new session
+ * key with the public key of its recipient once and sends this encrypted key with each message of the session. The
+ * recipient decrypts it once and finds it by the encrypted key afterwards. Peers exchange messages without round
+ * trips - the sender picks the key, a message read on its own can still be decrypted.
+ * <br/>
+ * Each message is encrypted with a key of its own: HMAC of the session key over a random nonce sent with the
+ * message. Equal content is not encrypted the same way in two messages - key stores use AES/ECB by default.
+ * <br/>
+ * Sessions expire after SESSION_TIMEOUT_MILLIS, when the public key of the recipient changes or after
+ * {@link #forgetSessions}.
+ * <br/>
+ * Peers of former releases cannot read session keyed messages. Session keys are used for a recipient if they are
+ * switched on for the key store ({@link #setEnabled}) or if this recipient has sent a verified session keyed
+ * message before. Otherwise messages are encrypted with a key of their own as before.
+ */
+class SharkBondSessionKeys {
+    static final long SESSION_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    static final int MAX_RECEIVED_SESSIONS = 256;
+    static final int NONCE_LENGTH = 16;
+    private static final String KEY_DERIVATION_ALGORITHM = "HmacSHA256";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    // key store -> recipient -> session - forgotten with the key store
+    private static final Map<ASAPKeyStore, Map<String, SessionKey>> sentSessions =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    // key store -> encrypted session key -> session
+    private static final Map<ASAPKeyStore, Map<ByteBuffer, SessionKey>> receivedSessions =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    // key stores sending session keyed messages to all peers
+    private static final Set<ASAPKeyStore> enabled = Collections.newSetFromMap(
+            Collections.synchronizedMap(new WeakHashMap<>()));
+    // key store -> peers known to read session keyed messages
+    private static final Map<ASAPKeyStore, Set<String>> sessionPeers =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    static class SessionKey {
+        private final SecretKey secretKey;
+        private final byte[] encryptedKey;
+        // key of the recipient this session key is encrypted with - null on recipient side
+        private final PublicKey publicKey;
+        private final long created;
+
+        private SessionKey(SecretKey secretKey, byte[] encryptedKey, PublicKey publicKey, long created) {
+            this.secretKey = secretKey;
+            this.encryptedKey = encryptedKey;
+            this.publicKey = publicKey;
+            this.created = created;
+        }
+
+        SecretKey getSecretKey() {
+            return this.secretKey;
+        }
+
+        /**
+         * @return session key encrypted with the public key of the recipient - do not change
+         */
+        byte[] getEncryptedKey() {
+            return this.encryptedKey;
+        }
+
+        private boolean isExpired(long now) {
+            return now - this.created >= SESSION_TIMEOUT_MILLIS;
+        }
+    }
+
+    /**
+     * @param on send session keyed messages to each recipient - peers of former releases can't read them
+     */
+    static void setEnabled(ASAPKeyStore asapKeyStore, boolean on) {
+        if (on) enabled.add(asapKeyStore);
+        else enabled.remove(asapKeyStore);
+    }
+
+    /**
+     * @return true if messages to this recipient are encrypted with a session key
+     */
+    static boolean isUsedFor(ASAPKeyStore asapKeyStore, CharSequence recipient) {
+        if (enabled.contains(asapKeyStore)) return true;
+
+        Set<String> peers = sessionPeers.get(asapKeyStore);
+        return peers != null && peers.contains(recipient.toString());
+    }
+
+    /**
+     * This peer sent a verified session keyed message - it can read them as well.
+     */
+    static void sessionKeysReceivedFrom(ASAPKeyStore asapKeyStore, CharSequence sender) {
+        sessionPeers.computeIfAbsent(asapKeyStore, k -> ConcurrentHashMap.newKeySet()).add(sender.toString());
+    }
+
+    /**
+     * @return session to this recipient - a new one if there is none or it expired
+     */
+    static SessionKey getSessionKey(ASAPKeyStore asapKeyStore, CharSequence recipient, PublicKey publicKey)
+            throws ASAPSecurityException {
+        Map<String, SessionKey> sessions = sentSessions.computeIfAbsent(asapKeyStore, k -> new ConcurrentHashMap<>());
+        long now = System.currentTimeMillis();
+        SessionKey sessionKey = sessions.get(recipient.toString());
+        if (sessionKey != null && !sessionKey.isExpired(now) && sessionKey.publicKey.equals(publicKey)) {
+            return sessionKey;
+        }
+
+        // once per session: the public key operation
+        SecretKey secretKey = asapKeyStore.generateSymmetricKey();
+        byte[] encodedKey = secretKey.getEncoded();
+        byte[] encryptedKey = SharkBondCrypto.encrypt(encodedKey, 0, encodedKey.length, publicKey,
+                asapKeyStore.getAsymmetricEncryptionAlgorithm());
+        sessionKey = new SessionKey(secretKey, encryptedKey, publicKey, now);
+        sessions.put(recipient.toString(), sessionKey);
+
+        return sessionKey;
+    }
+
+    /**
+     * @return session key sent encrypted for the owner of this key store - decrypted once per session
+     */
+    static SecretKey getReceivedKey(ASAPKeyStore asapKeyStore, byte[] encryptedKey) throws ASAPSecurityException {
+        Map<ByteBuffer, SessionKey> sessions = receivedSessions.computeIfAbsent(asapKeyStore,
+                k -> new LinkedHashMap<ByteBuffer, SessionKey>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SessionKey> eldest) {
+                        return this.size() > MAX_RECEIVED_SESSIONS;
+                    }
+                });
+        ByteBuffer key = ByteBuffer.wrap(encryptedKey);
+        long now = System.currentTimeMillis();
+        synchronized (sessions) {
+            SessionKey sessionKey = sessions.get(key);
+            if (sessionKey != null && !sessionKey.isExpired(now)) return sessionKey.secretKey;
+        }
+
+        SecretKey secretKey = ASAPCryptoAlgorithms.createSymmetricKey(SharkBondCrypto.decrypt(encryptedKey,
+                asapKeyStore.getPrivateKey(), asapKeyStore.getAsymmetricEncryptionAlgorithm()), asapKeyStore);
+        synchronized (sessions) {
+            sessions.put(key, new SessionKey(secretKey, encryptedKey, null, now));
+        }
+
+        return secretKey;
+    }
+
+    /**
+     * Next message to this peer starts a new session - e.g. its certificate was replaced. Whether the peer reads
+     * session keyed messages is learned again. Received session keys are not tied to a sender before their message
+     * is read - all of them are dropped and decrypted again with the next message.
+     */
+    static void forgetSessions(CharSequence peerID) {
+        synchronized (sentSessions) {
+            for (Map<String, SessionKey> sessions : sentSessions.values()) {
+                sessions.remove(peerID.toString());
+            }
+        }
+        synchronized (sessionPeers) {
+            for (Set<String> peers : sessionPeers.values()) {
+                peers.remove(peerID.toString());
+            }
+        }
+        synchronized (receivedSessions) {
+            for (Map<ByteBuffer, SessionKey> sessions : receivedSessions.values()) {
+                synchronized (sessions) {
+                    sessions.clear();
+                }
+            }
+        }
+    }
+
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @return key of the message with this nonce - same type and length as the session key
+     */
+    static SecretKey messageKey(SecretKey sessionKey, byte[] nonce, ASAPKeyStore asapKeyStore)
+            throws ASAPSecurityException {
+        byte[] encodedKey = sessionKey.getEncoded();
+        try {
+            Mac mac = Mac.getInstance(KEY_DERIVATION_ALGORITHM);
+            mac.init(new SecretKeySpec(encodedKey, KEY_DERIVATION_ALGORITHM));
+            // HMAC-SHA256 - 32 bytes, enough for each AES key size
+            return ASAPCryptoAlgorithms.createSymmetricKey(
+                    Arrays.copyOf(mac.doFinal(nonce), encodedKey.length), asapKeyStore);
+        } catch (GeneralSecurityException e) {
+            throw new ASAPSecurityException("cannot derive message key with " + KEY_DERIVATION_ALGORITHM, e);
+        }
+    }
+}
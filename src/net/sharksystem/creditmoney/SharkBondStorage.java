@@ -1,6 +1,7 @@
 package net.sharksystem.creditmoney;
 
 import java.util.Collection;
+import java.util.stream.Stream;
 
 public interface SharkBondStorage {
     void loadBondsFromStorage();
@@ -17,4 +18,20 @@ public interface SharkBondStorage {
     Collection<SharkBond> getSharkBondsByCreditor(CharSequence creditorId);
     Collection<SharkBond> getSharkBondsByDebtor(CharSequence debtorId);
     Collection<SharkBond> getSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId);
+
+    /*
+     * Lazy variants of the queries above: Bonds are looked up while the stream is consumed. Use skip and limit
+     * for pages - a page needs memory for its own bonds only and the first bond is found without scanning the
+     * others. Bonds come in a stable order. The storage can be changed while a stream is consumed.
+     */
+    Stream<SharkBond> streamAllSharkBonds();
+    Stream<SharkBond> streamSharkBondsByCreditor(CharSequence creditorId);
+    Stream<SharkBond> streamSharkBondsByDebtor(CharSequence debtorId);
+    Stream<SharkBond> streamSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId);
+
+    /**
+     * @return bonds matching all criteria of the query - read from the most selective index, lazy like the
+     * streams above
+     */
+    Stream<SharkBond> streamSharkBonds(SharkBondQuery query);
 }
@@ -3,25 +3,43 @@ package net.sharksystem.creditmoney;
 import java.security.InvalidParameterException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class SharkBondStorageImpl implements SharkBondStorage {
-    private ArrayList<SharkBond> sharkBondStore;
+public class SharkBondStorageImpl implements SharkBondStorage, SharkBondChangedListener {
+    private SharkBondVector sharkBondStore;
+    // bondID -> position in sharkBondStore and keys the bond is indexed with
+    private HashMap<String, IndexEntry> bondIdIndex;
+    private final SharkBondIndex creditorIndex = new SharkBondIndex();
+    private final SharkBondIndex debtorIndex = new SharkBondIndex();
+    private final SharkBondIndex creditorAndDebtorIndex = new SharkBondIndex();
+    private final SharkBondIndex unitIndex = new SharkBondIndex();
+    private final SharkBondExpirationIndex expirationIndex = new SharkBondExpirationIndex(false);
+    // null until asked for
+    private SharkBondColumns columns;
 
     public SharkBondStorageImpl() {
-        this.sharkBondStore = new ArrayList<>();
+        this.sharkBondStore = new SharkBondVector();
+        this.bondIdIndex = new HashMap<>();
         this.loadBondsFromStorage();
     }
 
     @Override
     public void loadBondsFromStorage() {
-        this.sharkBondStore = new ArrayList<>();
-        // TODO
+        // bonds are kept in memory only - nothing to load. See SharkBondLogStorageImpl for a persistent storage.
+        this.clearSharkBondStore();
     }
 
     @Override
     public void addSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
-        if (getIndexOfSharkBond(sharkBond.getBondID()) != -1) {
-            this.sharkBondStore.add(sharkBond);
+        if (this.getPosition(checkBondID(sharkBond)) == -1) {
+            this.appendSharkBond(sharkBond);
         } else {
             throw new SharkCreditMoneyException("The provided bond already exist in the sharkBondStorage. Use updateSharkBond to edit an existing bond");
         }
@@ -29,37 +47,69 @@ public class SharkBondStorageImpl implements SharkBondStorage {
 
     @Override
     public void updateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
-        int index = getIndexOfSharkBond(sharkBond.getBondID());
+        int index = this.getPosition(checkBondID(sharkBond));
         if (index == -1) {
             throw new SharkCreditMoneyException("A bond matching The provided bondId couldn't be found in the sharkBondStorage");
         } else {
-            this.sharkBondStore.set(index, sharkBond);
+            this.replaceSharkBond(index, sharkBond);
         }
     }
 
     @Override
     public void addOrUpdateSharkBond(SharkBond sharkBond) throws SharkCreditMoneyException {
-        int index = getIndexOfSharkBond(sharkBond.getBondID());
+        int index = this.getPosition(checkBondID(sharkBond));
         if (index == -1) {
-            this.sharkBondStore.add(sharkBond);
+            this.appendSharkBond(sharkBond);
         } else {
-            this.sharkBondStore.set(index, sharkBond);
+            this.replaceSharkBond(index, sharkBond);
         }
     }
 
+    /**
+     * Removes a bond in constant time. The last bond of the store takes the position of the removed one - positions
+     * of all other bonds remain unchanged.
+     */
     @Override
     public void deleteSharkBondById(CharSequence bondId) throws SharkCreditMoneyException {
-        int index = getIndexOfSharkBond(bondId);
+        int index = this.getPosition(bondId);
         if (index == -1) {
             throw new SharkCreditMoneyException("A bond matching the provided bondId couldn't be found in the sharkBondStorage");
         } else {
-            this.sharkBondStore.remove(index);
+            SharkBond sharkBond = this.sharkBondStore.get(index);
+            IndexEntry entry = this.bondIdIndex.remove(bondId.toString());
+            this.unindex(bondId.toString(), entry);
+            unobserve(sharkBond, this);
+
+            SharkBond lastSharkBond = this.sharkBondStore.removeLast();
+            if (index < this.sharkBondStore.size()) {
+                this.sharkBondStore.set(index, lastSharkBond);
+                this.bondIdIndex.get(lastSharkBond.getBondID().toString()).position = index;
+            }
+            if (this.columns != null) {
+                this.columns.remove(index);
+            }
         }
     }
 
     @Override
     public void deleteAll() {
+        this.clearSharkBondStore();
+    }
+
+    private void clearSharkBondStore() {
+        for (int i = 0; i < this.sharkBondStore.size(); i++) {
+            unobserve(this.sharkBondStore.get(i), this);
+        }
         this.sharkBondStore.clear();
+        this.bondIdIndex.clear();
+        this.creditorIndex.clear();
+        this.debtorIndex.clear();
+        this.creditorAndDebtorIndex.clear();
+        this.unitIndex.clear();
+        this.expirationIndex.clear();
+        if (this.columns != null) {
+            this.columns.clear();
+        }
     }
 
     @Override
@@ -69,22 +119,28 @@ public class SharkBondStorageImpl implements SharkBondStorage {
 
     @Override
     public int getIndexOfSharkBond(CharSequence bondId) {
+        return this.getPosition(bondId);
+    }
+
+    // not overridable - subclasses may extend the index space beyond the in-memory store
+    private int getPosition(CharSequence bondId) {
         if (bondId != null) {
-            int index = 0;
-            for (SharkBond sharkBond : this.sharkBondStore) {
-                if (sharkBond.getBondID() != null && sharkBond.getBondID().equals(bondId)) {
-                    return index;
-                }
-                index++;
+            IndexEntry entry = this.bondIdIndex.get(bondId.toString());
+            if (entry != null) {
+                return entry.position;
             }
         }
 
         return -1;
     }
 
+    /**
+     * @return immutable snapshot of all bonds - later changes of the storage are not visible in it. Taking a
+     * snapshot does not copy the bonds (see {@link SharkBondVector}).
+     */
     @Override
     public Collection<SharkBond> getAllSharkBonds() {
-        return this.sharkBondStore;
+        return this.sharkBondStore.snapshot();
     }
 
     @Override
@@ -98,7 +154,7 @@ public class SharkBondStorageImpl implements SharkBondStorage {
 
     @Override
     public SharkBond getSharkBondByBondId(CharSequence bondId) {
-        int index = getIndexOfSharkBond(bondId);
+        int index = this.getPosition(bondId);
         if (index >= this.sharkBondStore.size() || index < 0) {
             throw new InvalidParameterException("A bond matching the provided bondId couldn't be found in the sharkBondStorage");
         }
@@ -108,43 +164,226 @@ public class SharkBondStorageImpl implements SharkBondStorage {
 
     @Override
     public Collection<SharkBond> getSharkBondsByCreditor(CharSequence creditorId) {
-        Collection<SharkBond> bondsAsCreditor = new ArrayList<>();
-        if (creditorId != null) {
-            for (SharkBond sharkBond : this.sharkBondStore) {
-                if (sharkBond.getCreditorID().equals(creditorId)) {
-                    bondsAsCreditor.add(sharkBond);
-                }
-            }
-        }
-
-        return bondsAsCreditor;
+        return this.getSharkBonds(this.creditorIndex.get(SharkBondIndex.toKey(creditorId)));
     }
 
     @Override
     public Collection<SharkBond> getSharkBondsByDebtor(CharSequence debtorId) {
-        Collection<SharkBond> bondsAsDebtor = new ArrayList<>();
-        if (debtorId != null) {
-            for (SharkBond sharkBond : this.sharkBondStore) {
-                if (sharkBond.getDebtorID().equals(debtorId)) {
-                    bondsAsDebtor.add(sharkBond);
-                }
+        return this.getSharkBonds(this.debtorIndex.get(SharkBondIndex.toKey(debtorId)));
+    }
+
+    @Override
+    public Collection<SharkBond> getSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId) {
+        return this.getSharkBonds(this.creditorAndDebtorIndex.get(SharkBondIndex.toKey(creditorId, debtorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamAllSharkBonds() {
+        return this.sharkBondStore.snapshot().stream();
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBondsByCreditor(CharSequence creditorId) {
+        return this.streamSharkBonds(this.creditorIndex.get(SharkBondIndex.toKey(creditorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBondsByDebtor(CharSequence debtorId) {
+        return this.streamSharkBonds(this.debtorIndex.get(SharkBondIndex.toKey(debtorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId) {
+        return this.streamSharkBonds(this.creditorAndDebtorIndex.get(SharkBondIndex.toKey(creditorId, debtorId)));
+    }
+
+    @Override
+    public Stream<SharkBond> streamSharkBonds(SharkBondQuery query) {
+        Collection<String> bondIDs = query.selectBondIDs(this.creditorIndex, this.debtorIndex,
+                this.creditorAndDebtorIndex, this.unitIndex, this.expirationIndex);
+        Stream<SharkBond> sharkBonds = bondIDs == null ? this.streamAllSharkBonds() : this.streamSharkBonds(bondIDs);
+        return sharkBonds.filter(query::matches);
+    }
+
+    /**
+     * @return index of expiration dates - read by the {@link SharkBondExpirationSweeper}
+     */
+    SharkBondExpirationIndex getExpirationIndex() {
+        return this.expirationIndex;
+    }
+
+    /**
+     * @return bonds of this storage as columns for reports - kept up to date from now on
+     */
+    public SharkBondColumns getColumns() {
+        if (this.columns == null) {
+            SharkBondColumns columns = new SharkBondColumns();
+            for (int i = 0; i < this.sharkBondStore.size(); i++) {
+                columns.add(this.sharkBondStore.get(i));
             }
+            this.columns = columns;
         }
 
-        return bondsAsDebtor;
+        return this.columns;
     }
 
+    /**
+     * @return next stored bond of these ids or null if there is none - used by streams to read ids and bonds lazily.
+     * Ids of bonds deleted meanwhile are skipped.
+     */
+    SharkBond nextSharkBond(Iterator<String> bondIDs) {
+        while (bondIDs.hasNext()) {
+            IndexEntry entry = this.bondIdIndex.get(bondIDs.next());
+            if (entry != null) return this.sharkBondStore.get(entry.position);
+        }
+
+        return null;
+    }
+
+    /**
+     * A stored bond changed its creditor, debtor or expiration date - move it to its new index positions.
+     */
     @Override
-    public Collection<SharkBond> getSharkBondsByCreditorAndDebtor(CharSequence creditorId, CharSequence debtorId) {
-        Collection<SharkBond> bondsAsCreditorAndDebtor = new ArrayList<>();
-        if (creditorId != null && debtorId != null) {
-            for (SharkBond sharkBond : this.sharkBondStore) {
-                if (sharkBond.getCreditorID().equals(creditorId) && sharkBond.getDebtorID().equals(debtorId)) {
-                    bondsAsCreditorAndDebtor.add(sharkBond);
-                }
+    public void sharkBondChanged(SharkBond sharkBond) {
+        String bondID = SharkBondIndex.toKey(sharkBond.getBondID());
+        IndexEntry entry = bondID == null ? null : this.bondIdIndex.get(bondID);
+        // ignore bonds with same id which are not (or no longer) stored here
+        if (entry != null && this.sharkBondStore.get(entry.position) == sharkBond) {
+            this.reindex(bondID, entry, sharkBond);
+            if (this.columns != null) {
+                this.columns.set(entry.position, sharkBond);
             }
         }
+    }
+
+    // nothing is copied - index iterators survive changes between two steps, a limit stops reading
+    private Stream<SharkBond> streamSharkBonds(Collection<String> bondIDs) {
+        Iterator<String> bondIDIterator = bondIDs.iterator();
+        Iterator<SharkBond> sharkBonds = new Iterator<SharkBond>() {
+            private SharkBond nextSharkBond;
+
+            @Override
+            public boolean hasNext() {
+                if (this.nextSharkBond == null) this.nextSharkBond = nextSharkBond(bondIDIterator);
+                return this.nextSharkBond != null;
+            }
+
+            @Override
+            public SharkBond next() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                SharkBond sharkBond = this.nextSharkBond;
+                this.nextSharkBond = null;
+                return sharkBond;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(sharkBonds,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private Collection<SharkBond> getSharkBonds(Set<String> bondIDs) {
+        Collection<SharkBond> sharkBonds = new ArrayList<>(bondIDs.size());
+        for (String bondID : bondIDs) {
+            sharkBonds.add(this.sharkBondStore.get(this.bondIdIndex.get(bondID).position));
+        }
+
+        return sharkBonds;
+    }
+
+    private void appendSharkBond(SharkBond sharkBond) {
+        String bondID = sharkBond.getBondID().toString();
+        IndexEntry entry = new IndexEntry(this.sharkBondStore.size());
+        this.bondIdIndex.put(bondID, entry);
+        this.sharkBondStore.add(sharkBond);
+        this.reindex(bondID, entry, sharkBond);
+        if (this.columns != null) {
+            this.columns.add(sharkBond);
+        }
+        observe(sharkBond, this);
+    }
+
+    private void replaceSharkBond(int index, SharkBond sharkBond) {
+        SharkBond previousSharkBond = this.sharkBondStore.set(index, sharkBond);
+        if (previousSharkBond != sharkBond) {
+            unobserve(previousSharkBond, this);
+            observe(sharkBond, this);
+        }
+        // bonds not telling about their changes are re-indexed with each update
+        String bondID = sharkBond.getBondID().toString();
+        this.reindex(bondID, this.bondIdIndex.get(bondID), sharkBond);
+        if (this.columns != null) {
+            this.columns.set(index, sharkBond);
+        }
+    }
+
+    private void reindex(String bondID, IndexEntry entry, SharkBond sharkBond) {
+        String creditorID = SharkBondIndex.toKey(sharkBond.getCreditorID());
+        String debtorID = SharkBondIndex.toKey(sharkBond.getDebtorID());
+        String unitDescription = SharkBondIndex.toKey(sharkBond.unitDescription());
+        long expirationDate = sharkBond.getExpirationDate();
+        if (entry.indexed && equals(creditorID, entry.creditorID) && equals(debtorID, entry.debtorID)
+                && equals(unitDescription, entry.unitDescription) && expirationDate == entry.expirationDate) {
+            return;
+        }
+
+        boolean newExpirationDate = !entry.indexed || expirationDate != entry.expirationDate;
+        this.unindex(bondID, entry);
+        entry.creditorID = creditorID;
+        entry.debtorID = debtorID;
+        entry.unitDescription = unitDescription;
+        entry.expirationDate = expirationDate;
+        entry.indexed = true;
+        this.creditorIndex.add(creditorID, bondID);
+        this.debtorIndex.add(debtorID, bondID);
+        this.creditorAndDebtorIndex.add(SharkBondIndex.toKey(creditorID, debtorID), bondID);
+        this.unitIndex.add(unitDescription, bondID);
+        this.expirationIndex.add(expirationDate, bondID, newExpirationDate);
+    }
+
+    private void unindex(String bondID, IndexEntry entry) {
+        if (entry.indexed) {
+            this.creditorIndex.remove(entry.creditorID, bondID);
+            this.debtorIndex.remove(entry.debtorID, bondID);
+            this.creditorAndDebtorIndex.remove(SharkBondIndex.toKey(entry.creditorID, entry.debtorID), bondID);
+            this.unitIndex.remove(entry.unitDescription, bondID);
+            this.expirationIndex.remove(entry.expirationDate, bondID);
+            entry.indexed = false;
+        }
+    }
+
+    private static void observe(SharkBond sharkBond, SharkBondChangedListener listener) {
+        if (sharkBond instanceof ObservableSharkBond) {
+            ((ObservableSharkBond) sharkBond).addChangedListener(listener);
+        }
+    }
+
+    private static void unobserve(SharkBond sharkBond, SharkBondChangedListener listener) {
+        if (sharkBond instanceof ObservableSharkBond) {
+            ((ObservableSharkBond) sharkBond).removeChangedListener(listener);
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static CharSequence checkBondID(SharkBond sharkBond) throws SharkCreditMoneyException {
+        if (sharkBond.getBondID() == null) {
+            throw new SharkCreditMoneyException("The provided bond has no bondId and can't be stored in the sharkBondStorage");
+        }
+
+        return sharkBond.getBondID();
+    }
 
-        return bondsAsCreditorAndDebtor;
+    private static class IndexEntry {
+        private int position;
+        // keys this bond is currently indexed with
+        private boolean indexed;
+        private String creditorID, debtorID, unitDescription;
+        private long expirationDate;
+
+        IndexEntry(int position) {
+            this.position = position;
+        }
     }
 }
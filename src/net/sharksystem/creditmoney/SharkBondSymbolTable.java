@@ -0,0 +1,69 @@
+package net.sharksystem.creditmoney;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Strings like peer ids and units interned as int symbols. Millions of bonds are made by a few peers - each of
+ * them is kept once. Symbols are never removed. Symbol 0 stands for null.
+ * <br/>
+ * Thread-safe. Looking up a string of a symbol does not lock.
+ */
+class SharkBondSymbolTable {
+    static final int NULL_SYMBOL = 0;
+    static final int UNKNOWN_SYMBOL = -1;
+
+    // shared by compact bonds and bond columns
+    static final SharkBondSymbolTable PEER_IDS = new SharkBondSymbolTable();
+    static final SharkBondSymbolTable UNITS = new SharkBondSymbolTable();
+
+    private final ConcurrentHashMap<String, Integer> symbols = new ConcurrentHashMap<>();
+    // replaced after each new symbol - readers see the string of each symbol they got
+    private volatile String[] strings = new String[16];
+    private int size = 1;
+
+    int intern(CharSequence string) {
+        if (string == null) return NULL_SYMBOL;
+
+        String key = string.toString();
+        Integer symbol = this.symbols.get(key);
+        if (symbol != null) return symbol;
+
+        synchronized (this) {
+            symbol = this.symbols.get(key);
+            if (symbol != null) return symbol;
+
+            String[] strings = this.strings;
+            if (this.size == strings.length) {
+                strings = Arrays.copyOf(strings, strings.length * 2);
+            }
+            symbol = this.size++;
+            strings[symbol] = key;
+            this.strings = strings;
+            this.symbols.put(key, symbol);
+
+            return symbol;
+        }
+    }
+
+    /**
+     * @return symbol of this string without interning it - UNKNOWN_SYMBOL if never interned
+     */
+    int lookup(CharSequence string) {
+        if (string == null) return NULL_SYMBOL;
+
+        Integer symbol = this.symbols.get(string.toString());
+        return symbol == null ? UNKNOWN_SYMBOL : symbol;
+    }
+
+    /**
+     * @return string of this symbol - null for NULL_SYMBOL
+     */
+    String get(int symbol) {
+        return symbol == NULL_SYMBOL ? null : this.strings[symbol];
+    }
+
+    int size() {
+        return this.symbols.size();
+    }
+}
@@ -0,0 +1,131 @@
+package net.sharksystem.creditmoney;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Bond list with cheap snapshots. Bonds are kept in chunks of fixed size. A snapshot shares all chunks with the
+ * vector. A chunk is copied when it is changed for the first time after a snapshot (copy-on-write) - a snapshot
+ * costs a copy of the chunk array at most, never a copy of all bonds.
+ * <br/>
+ * Not thread-safe. Snapshots are immutable and can be read by any thread.
+ */
+class SharkBondVector {
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private SharkBond[][] chunks = new SharkBond[0][];
+    // chunks written since the last snapshot have the current epoch and can be changed in place
+    private int[] chunkEpochs = new int[0];
+    private int epoch = 0;
+    private boolean chunkArrayShared = false;
+    private int size = 0;
+    // returned again as long as nothing changes
+    private List<SharkBond> lastSnapshot;
+
+    int size() {
+        return this.size;
+    }
+
+    SharkBond get(int index) {
+        return this.chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+    SharkBond set(int index, SharkBond sharkBond) {
+        SharkBond[] chunk = this.getWritableChunk(index >>> CHUNK_BITS);
+        SharkBond previousSharkBond = chunk[index & CHUNK_MASK];
+        chunk[index & CHUNK_MASK] = sharkBond;
+        return previousSharkBond;
+    }
+
+    void add(SharkBond sharkBond) {
+        int chunkIndex = this.size >>> CHUNK_BITS;
+        if (chunkIndex == this.chunks.length) {
+            this.copyChunkArrayIfShared();
+            int capacity = Math.max(4, this.chunks.length * 2);
+            this.chunks = Arrays.copyOf(this.chunks, capacity);
+            this.chunkEpochs = Arrays.copyOf(this.chunkEpochs, capacity);
+        }
+        if (this.chunks[chunkIndex] == null) {
+            this.copyChunkArrayIfShared();
+            this.chunks[chunkIndex] = new SharkBond[CHUNK_SIZE];
+            this.chunkEpochs[chunkIndex] = this.epoch;
+        }
+
+        this.set(this.size, sharkBond);
+        this.size++;
+    }
+
+    SharkBond removeLast() {
+        SharkBond lastSharkBond = this.set(this.size - 1, null);
+        this.size--;
+        return lastSharkBond;
+    }
+
+    void clear() {
+        // snapshots keep the old chunks
+        this.chunks = new SharkBond[0][];
+        this.chunkEpochs = new int[0];
+        this.chunkArrayShared = false;
+        this.size = 0;
+        this.lastSnapshot = null;
+    }
+
+    /**
+     * @return immutable list of all bonds stored right now
+     */
+    List<SharkBond> snapshot() {
+        if (this.lastSnapshot == null) {
+            this.epoch++;
+            this.chunkArrayShared = true;
+            this.lastSnapshot = new Snapshot(this.chunks, this.size);
+        }
+
+        return this.lastSnapshot;
+    }
+
+    private SharkBond[] getWritableChunk(int chunkIndex) {
+        this.lastSnapshot = null;
+        if (this.chunkEpochs[chunkIndex] != this.epoch) {
+            this.copyChunkArrayIfShared();
+            this.chunks[chunkIndex] = this.chunks[chunkIndex].clone();
+            this.chunkEpochs[chunkIndex] = this.epoch;
+        }
+
+        return this.chunks[chunkIndex];
+    }
+
+    private void copyChunkArrayIfShared() {
+        this.lastSnapshot = null;
+        if (this.chunkArrayShared) {
+            this.chunks = this.chunks.clone();
+            this.chunkArrayShared = false;
+        }
+    }
+
+    private static class Snapshot extends AbstractList<SharkBond> implements RandomAccess {
+        private final SharkBond[][] chunks;
+        private final int size;
+
+        Snapshot(SharkBond[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public SharkBond get(int index) {
+            if (index < 0 || index >= this.size) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + this.size);
+            }
+            return this.chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package net.sharksystem.creditmoney;
+
+/**
+ * Signatures of one bond as checked by {@link SharkBondHelper#verifyAll}.
+ */
+class SharkBondVerification {
+    private final SharkBond sharkBond;
+    private final boolean signedAsCreditor;
+    private final boolean signedAsDebtor;
+
+    SharkBondVerification(SharkBond sharkBond, boolean signedAsCreditor, boolean signedAsDebtor) {
+        this.sharkBond = sharkBond;
+        this.signedAsCreditor = signedAsCreditor;
+        this.signedAsDebtor = signedAsDebtor;
+    }
+
+    SharkBond getSharkBond() {
+        return this.sharkBond;
+    }
+
+    boolean isSignedAsCreditor() {
+        return this.signedAsCreditor;
+    }
+
+    boolean isSignedAsDebtor() {
+        return this.signedAsDebtor;
+    }
+}
@@ -0,0 +1,121 @@
+package net.sharksystem.creditmoney;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Signatures already verified. Each protocol step verifies the signatures of a bond again - a verification found
+ * here costs a hash instead of a public key operation. Oldest verifications are forgotten first.
+ * <br/>
+ * Key is a digest of signed data, signer, signature and public key of the signer. A signer with a new key misses
+ * the cache. Failed verifications are not kept. Signed bonds are looked up by the content hash of their
+ * canonical form - see {@link #bondKey}.
+ */
+class SharkBondVerificationCache {
+    static final int DEFAULT_CAPACITY = 4096;
+    private static final byte DATA_KEY = 0;
+    private static final byte BOND_KEY = 1;
+
+    // digest -> signer
+    private final Map<ByteBuffer, String> verifications;
+
+    SharkBondVerificationCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    SharkBondVerificationCache(int capacity) {
+        this.verifications = new LinkedHashMap<ByteBuffer, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, String> eldest) {
+                return this.size() > capacity;
+            }
+        };
+    }
+
+    static ByteBuffer key(byte[] data, byte[] signature, String signer, PublicKey publicKey) {
+        MessageDigest messageDigest = newDigest(DATA_KEY);
+        update(messageDigest, data);
+        return finish(messageDigest, signature, signer, publicKey);
+    }
+
+    /**
+     * @param contentHash {@link SharkBondCanonicalForm#getContentHash()} of the bond - content sent from sender to
+     *                    recipient is signed
+     */
+    static ByteBuffer bondKey(byte[] contentHash, CharSequence sender, CharSequence recipient, byte[] signature,
+                              String signer, PublicKey publicKey) {
+        MessageDigest messageDigest = newDigest(BOND_KEY);
+        update(messageDigest, contentHash);
+        update(messageDigest, toBytes(sender));
+        update(messageDigest, toBytes(recipient));
+        return finish(messageDigest, signature, signer, publicKey);
+    }
+
+    private static MessageDigest newDigest(byte kind) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance(SharkBondCanonicalForm.CONTENT_HASH_ALGORITHM);
+            // data and bond keys never match
+            messageDigest.update(kind);
+            return messageDigest;
+        } catch (NoSuchAlgorithmException e) {
+            // each java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer finish(MessageDigest messageDigest, byte[] signature, String signer,
+                                     PublicKey publicKey) {
+        update(messageDigest, signature);
+        update(messageDigest, signer.getBytes(StandardCharsets.UTF_8));
+        update(messageDigest, publicKey.getEncoded());
+        return ByteBuffer.wrap(messageDigest.digest());
+    }
+
+    private static byte[] toBytes(CharSequence peerID) {
+        return peerID == null ? null : peerID.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // length first - no two different inputs are hashed the same way
+    private static void update(MessageDigest messageDigest, byte[] bytes) {
+        int length = bytes == null ? 0 : bytes.length;
+        messageDigest.update(new byte[] {
+                (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length});
+        if (bytes != null) messageDigest.update(bytes);
+    }
+
+    boolean contains(ByteBuffer key) {
+        synchronized (this.verifications) {
+            return this.verifications.get(key) != null;
+        }
+    }
+
+    void add(ByteBuffer key, String signer) {
+        synchronized (this.verifications) {
+            this.verifications.put(key, signer);
+        }
+    }
+
+    /**
+     * Forget verifications of this signer - e.g. when its certificate is no longer trusted.
+     */
+    void remove(CharSequence signer) {
+        synchronized (this.verifications) {
+            Iterator<String> signers = this.verifications.values().iterator();
+            while (signers.hasNext()) {
+                if (signers.next().equals(signer.toString())) signers.remove();
+            }
+        }
+    }
+
+    int size() {
+        synchronized (this.verifications) {
+            return this.verifications.size();
+        }
+    }
+}
@@ -11,7 +11,9 @@ import net.sharksystem.pki.SharkPKIComponent;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
 /**
  * This component provides a digital currency system that is based on the concept of
@@ -176,10 +178,22 @@ public interface SharkCreditMoneyComponent extends SharkComponent {
     /** allow transfer of debtor or creditor - default: yes / true */
     String BEHAVIOUR_SHARK_MONEY_ALLOW_TRANSFER = "SHARK_MONEY_BEHAVIOUR_ALLOW_TRANSFER";
 
+    /** encrypt messages to each peer with session keys - peers of former releases can't read them - default: no /
+     * false. Peers which sent session keyed messages get them anyway. */
+    String BEHAVIOUR_SHARK_MONEY_SESSION_KEYS = "SHARK_MONEY_BEHAVIOUR_SESSION_KEYS";
+
     void addSharkBondReceivedListener(SharkBondsReceivedListener listener);
 
     void removeSharkBondReceivedListener(SharkBondsReceivedListener listener);
 
+    /**
+     * Listener is told when a stored bond is about to expire (one week before) and when it has expired. Stored
+     * bonds are checked once a minute.
+     */
+    void addSharkBondExpirationListener(SharkBondExpirationListener listener);
+
+    void removeSharkBondExpirationListener(SharkBondExpirationListener listener);
+
     /**
      * Create a bond. It is a decentralized system. Bond creation requires interaction of several peers. This
      * method will not return anything. A listener is informed about a successfully signed bond.
@@ -198,6 +212,12 @@ public interface SharkCreditMoneyComponent extends SharkComponent {
 
     void sendBond(SharkBond bond, CharSequence sender, Set<CharSequence> receiver, boolean sign, boolean encrypt, CharSequence uri) throws IOException, ASAPException, SharkCreditMoneyException;
 
+    /**
+     * Sends several bonds to the same receiver in one message. The message is signed and encrypted once - the
+     * signature covers a Merkle root over all bonds, each bond can still be verified on its own.
+     */
+    void sendBonds(List<SharkBond> bonds, CharSequence sender, Set<CharSequence> receiver, boolean sign, boolean encrypt, CharSequence uri) throws IOException, ASAPException, SharkCreditMoneyException;
+
     void saveBond(SharkBond bond) throws SharkCreditMoneyException;
 
     Collection<SharkBond> getBondsByCreditor(CharSequence creditorID) throws SharkCreditMoneyException;
@@ -206,6 +226,27 @@ public interface SharkCreditMoneyComponent extends SharkComponent {
 
     Collection<SharkBond> getBondsByCreditorAndDebtor(CharSequence creditorID, CharSequence debtorID) throws SharkCreditMoneyException;
 
+    /**
+     * Lazy variant of {@link #getBondsByCreditor(CharSequence)}. Bonds are read while the stream is consumed - use
+     * skip and limit to show a page without loading all bonds of a creditor.
+     */
+    Stream<SharkBond> streamBondsByCreditor(CharSequence creditorID) throws SharkCreditMoneyException;
+
+    Stream<SharkBond> streamBondsByDebtor(CharSequence debtorID) throws SharkCreditMoneyException;
+
+    Stream<SharkBond> streamBondsByCreditorAndDebtor(CharSequence creditorID, CharSequence debtorID) throws SharkCreditMoneyException;
+
+    /**
+     * @return stored bonds matching the query, e.g. bonds of a unit, in an amount range or not yet signed
+     */
+    Stream<SharkBond> streamBonds(SharkBondQuery query) throws SharkCreditMoneyException;
+
+    /**
+     * Tell this component the certificate of a peer was replaced or withdrawn. Verified signatures and the public
+     * key of this peer are forgotten, the next encrypted message to this peer starts a new session.
+     */
+    void certificateChanged(CharSequence peerID);
+
     void subscribeBondReceivedListener(SharkBondsReceivedListener listener);
 
     SharkPKIComponent getSharkPKI();
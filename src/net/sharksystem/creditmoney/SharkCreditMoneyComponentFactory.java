@@ -5,13 +5,24 @@ import net.sharksystem.SharkComponentFactory;
 import net.sharksystem.contactinformation.SharkContactInformationComponent;
 import net.sharksystem.pki.SharkPKIComponent;
 
+import java.io.File;
+
 public class SharkCreditMoneyComponentFactory implements SharkComponentFactory {
     private final SharkPKIComponent pkiComponent;
     private final SharkContactInformationComponent contactsComponent;
+    private final File bondStorageFolder;
 
-    public SharkCreditMoneyComponentFactory(SharkPKIComponent pkiComponent, SharkContactInformationComponent contactsComponent) {
+    /**
+     * @param bondStorageFolder folder bonds are persisted in - bonds are kept in memory only if null
+     */
+    public SharkCreditMoneyComponentFactory(SharkPKIComponent pkiComponent, SharkContactInformationComponent contactsComponent, File bondStorageFolder) {
         this.pkiComponent = pkiComponent;
         this.contactsComponent = contactsComponent;
+        this.bondStorageFolder = bondStorageFolder;
+    }
+
+    public SharkCreditMoneyComponentFactory(SharkPKIComponent pkiComponent, SharkContactInformationComponent contactsComponent) {
+        this(pkiComponent, contactsComponent, null);
     }
 
     public SharkCreditMoneyComponentFactory(SharkPKIComponent pkiComponent) {
@@ -20,6 +31,6 @@ public class SharkCreditMoneyComponentFactory implements SharkComponentFactory {
 
     @Override
     public SharkComponent getComponent() {
-        return new SharkCreditMoneyComponentImpl(pkiComponent);
+        return new SharkCreditMoneyComponentImpl(pkiComponent, bondStorageFolder);
     }
 }
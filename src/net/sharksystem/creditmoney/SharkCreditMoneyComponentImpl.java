@@ -6,28 +6,53 @@ import net.sharksystem.asap.*;
 import net.sharksystem.pki.SharkPKIComponent;
 import net.sharksystem.utils.Log;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class SharkCreditMoneyComponentImpl extends SharkBondReceivedListenerManager implements SharkCreditMoneyComponent, ASAPMessageReceivedListener {
     private final SharkPKIComponent certificateComponent;
+    private final File bondStorageFolder;
     private ASAPPeer asapPeer;
     private SharkBondsReceivedListener sharkBondReceivedListener;
-    private SharkBondStorage sharkBondStorage;
+    // read by the expiration sweeper thread
+    private volatile SharkBondStorage sharkBondStorage;
     private boolean allowTransfer = false;
+    private final SharkBondMessageHistory receivedMessages = new SharkBondMessageHistory();
+    private final SharkBondExpirationListenerManager expirationListenerManager =
+            new SharkBondExpirationListenerManager();
+    private final SharkBondExpirationSweeper expirationSweeper = new SharkBondExpirationSweeper(
+            () -> this.sharkBondStorage, this.expirationListenerManager,
+            SharkBondExpirationSweeper.DEFAULT_EXPIRATION_WARNING_MILLIS);
 
 
     public SharkCreditMoneyComponentImpl(SharkPKIComponent certificateComponent) {
+        this(certificateComponent, null);
+    }
+
+    /**
+     * @param bondStorageFolder folder bonds are persisted in - bonds are kept in memory only if null
+     */
+    public SharkCreditMoneyComponentImpl(SharkPKIComponent certificateComponent, File bondStorageFolder) {
         this.certificateComponent = certificateComponent;
+        this.bondStorageFolder = bondStorageFolder;
     }
 
     @Override
     public void onStart(ASAPPeer asapPeer) throws SharkException {
-        this.sharkBondStorage = new SharkBondStorageImpl();
+        // message listener, expiration sweeper and application threads share the storage - both are thread-safe
+        if (this.bondStorageFolder != null) {
+            this.sharkBondStorage = new SharkBondLogStorageImpl(this.bondStorageFolder);
+        } else {
+            this.sharkBondStorage = new ConcurrentSharkBondStorageImpl();
+        }
         this.asapPeer = asapPeer;
         Log.writeLog(this, "MAKE URI LISTENER PUBLIC AGAIN. Thank you :)");
         this.asapPeer.addASAPMessageReceivedListener(SharkCreditMoneyComponent.SHARK_CREDIT_MONEY_FORMAT, this);
+        this.expirationSweeper.start(SharkBondExpirationSweeper.DEFAULT_SWEEP_INTERVAL_MILLIS);
     }
 
     @Override
@@ -36,11 +61,23 @@ public class SharkCreditMoneyComponentImpl extends SharkBondReceivedListenerMana
         switch (behaviour) {
             case SharkCreditMoneyComponent.BEHAVIOUR_SHARK_MONEY_ALLOW_TRANSFER:
                 this.allowTransfer = on; break;
+            case SharkCreditMoneyComponent.BEHAVIOUR_SHARK_MONEY_SESSION_KEYS:
+                SharkBondSessionKeys.setEnabled(this.certificateComponent, on); break;
 
             default: throw new SharkUnknownBehaviourException(behaviour);
         }
     }
 
+    @Override
+    public void addSharkBondExpirationListener(SharkBondExpirationListener listener) {
+        this.expirationListenerManager.addSharkBondExpirationListener(listener);
+    }
+
+    @Override
+    public void removeSharkBondExpirationListener(SharkBondExpirationListener listener) {
+        this.expirationListenerManager.removeSharkBondExpirationListener(listener);
+    }
+
     @Override
     public void subscribeBondReceivedListener(SharkBondsReceivedListener listener) {
         // TODO just one listener. OK?
@@ -52,12 +89,43 @@ public class SharkCreditMoneyComponentImpl extends SharkBondReceivedListenerMana
     public void asapMessagesReceived(ASAPMessages asapMessages) throws IOException {
         try {
             CharSequence uri = asapMessages.getURI();
-            this.notifySharkBondReceivedListener(uri);
+            List<ByteBuffer> newMessages = this.newMessagesForMe(asapMessages);
+            if (newMessages.isEmpty()) {
+                Log.writeLog(this, "drop messages on " + uri + ": nothing new for " + this.certificateComponent.getOwner());
+                return;
+            }
+            // seen once handled - messages are read again if a listener failed
+            if (this.notifySharkBondReceivedListener(uri)) {
+                this.receivedMessages.add(newMessages);
+            }
         } catch (NullPointerException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Reads message headers only - no decryption. Messages for other peers, messages which cannot be bond messages
+     * and messages already seen are ignored. History is not changed.
+     * @return digests of new messages for me
+     */
+    private List<ByteBuffer> newMessagesForMe(ASAPMessages asapMessages) throws IOException {
+        List<ByteBuffer> newMessagesForMe = new ArrayList<>();
+        Iterator<byte[]> messages = asapMessages.getMessages();
+        while (messages.hasNext()) {
+            byte[] message = messages.next();
+            try {
+                if (SharkBondEnvelope.parse(message).isFor(this.certificateComponent.getOwner())) {
+                    ByteBuffer digest = SharkBondMessageHistory.digest(asapMessages.getURI(), message);
+                    if (!this.receivedMessages.contains(digest)) newMessagesForMe.add(digest);
+                }
+            } catch (IOException e) {
+                Log.writeLog(this, "drop malformed message on " + asapMessages.getURI() + ": " + e.getMessage());
+            }
+        }
+
+        return newMessagesForMe;
+    }
+
     @Override
     public void createBond(CharSequence creditorID, CharSequence debtorID, CharSequence unit, int amount, boolean asCreditor) throws SharkCreditMoneyException, ASAPException, IOException {
         // Create creditBond and ask to sign by debtor
@@ -101,6 +169,15 @@ public class SharkCreditMoneyComponentImpl extends SharkBondReceivedListenerMana
         this.asapPeer.sendASAPMessage(SharkCreditMoneyComponent.SHARK_CREDIT_MONEY_FORMAT, uri, serializedBond);
     }
 
+    @Override
+    public void sendBonds(List<SharkBond> bonds, CharSequence sender, Set<CharSequence> receiver, boolean sign, boolean encrypt, CharSequence uri) throws IOException, ASAPException, SharkCreditMoneyException {
+        byte[] serializedBonds = SharkBondSerializer.serializeCreditBonds(bonds, sender, receiver, sign, encrypt, this.certificateComponent);
+        for (SharkBond bond : bonds) {
+            this.sharkBondStorage.addOrUpdateSharkBond(bond);
+        }
+        this.asapPeer.sendASAPMessage(SharkCreditMoneyComponent.SHARK_CREDIT_MONEY_FORMAT, uri, serializedBonds);
+    }
+
     @Override
     public void saveBond(SharkBond bond) throws SharkCreditMoneyException {
         this.sharkBondStorage.addOrUpdateSharkBond(bond);
@@ -121,6 +198,31 @@ public class SharkCreditMoneyComponentImpl extends SharkBondReceivedListenerMana
         return this.sharkBondStorage.getSharkBondsByCreditorAndDebtor(creditorID, debtorID);
     }
 
+    @Override
+    public Stream<SharkBond> streamBondsByCreditor(CharSequence creditorID) throws SharkCreditMoneyException {
+        return this.sharkBondStorage.streamSharkBondsByCreditor(creditorID);
+    }
+
+    @Override
+    public Stream<SharkBond> streamBondsByDebtor(CharSequence debtorID) throws SharkCreditMoneyException {
+        return this.sharkBondStorage.streamSharkBondsByDebtor(debtorID);
+    }
+
+    @Override
+    public Stream<SharkBond> streamBondsByCreditorAndDebtor(CharSequence creditorID, CharSequence debtorID) throws SharkCreditMoneyException {
+        return this.sharkBondStorage.streamSharkBondsByCreditorAndDebtor(creditorID, debtorID);
+    }
+
+    @Override
+    public Stream<SharkBond> streamBonds(SharkBondQuery query) throws SharkCreditMoneyException {
+        return this.sharkBondStorage.streamSharkBonds(query);
+    }
+
+    @Override
+    public void certificateChanged(CharSequence peerID) {
+        SharkBondHelper.forgetVerifications(peerID);
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////
     //                       backdoor - remove it when finished implementing                   //
     /////////////////////////////////////////////////////////////////////////////////////////////
@@ -4,13 +4,27 @@ import net.sharksystem.*;
 import net.sharksystem.asap.ASAPException;
 import net.sharksystem.asap.ASAPSecurityException;
 import net.sharksystem.asap.pki.CredentialMessageInMemo;
+import net.sharksystem.asap.utils.ASAPSerialization;
 import net.sharksystem.pki.SharkPKIComponent;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import static net.sharksystem.creditmoney.TestConstants.*;
 
@@ -58,7 +72,7 @@ public class SharkBondSerializerAndHelperTests {
     }
 
     @Test
-    public void bondToByteArrayConversionTest() {
+    public void bondToByteArrayConversionTest() throws IOException {
         SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
 
         // Bond to byte array
@@ -81,6 +95,447 @@ public class SharkBondSerializerAndHelperTests {
         Assert.assertEquals(convertedSharkBond1.getExpirationDate(), convertedSharkBond2.getExpirationDate());
     }
 
+    @Test
+    public void bondCodecKeepsAllFieldsAndRejectsCorruptData() throws IOException {
+        SharkBond sharkBond = new InMemoSharkBond("bond-\u00e4\uD83D\uDCB0", ALICE_ID, BOB_ID, BOND_UNIT, -5,
+                Long.MIN_VALUE, new byte[]{1, 2}, new byte[0], true, false, true, false, CLARA_ID, null);
+
+        byte[] encodedBond = SharkBondCodec.encode(sharkBond);
+        SharkBond decodedBond = SharkBondCodec.decode(encodedBond);
+        Assert.assertEquals(sharkBond.getBondID(), decodedBond.getBondID());
+        Assert.assertEquals(sharkBond.getAmount(), decodedBond.getAmount());
+        Assert.assertEquals(sharkBond.getExpirationDate(), decodedBond.getExpirationDate());
+        Assert.assertArrayEquals(sharkBond.getDebtorSignature(), decodedBond.getDebtorSignature());
+        Assert.assertArrayEquals(sharkBond.getCreditorSignature(), decodedBond.getCreditorSignature());
+        Assert.assertEquals(CLARA_ID, decodedBond.getTempCreditorID());
+        Assert.assertNull(decodedBond.getTempDebtorID());
+        Assert.assertTrue(decodedBond.allowedToChangeCreditor());
+        Assert.assertFalse(decodedBond.allowedToChangeDebtor());
+        Assert.assertTrue(decodedBond.getBondIsAnnulledByCreditor());
+        Assert.assertFalse(decodedBond.getBondIsAnnulledByDebtor());
+
+        // signatures left out for signing
+        Assert.assertNull(SharkBondCodec.decode(SharkBondCodec.encode(sharkBond, true)).getDebtorSignature());
+
+        // fields added by later versions are skipped
+        byte[] extendedBond = Arrays.copyOf(encodedBond, encodedBond.length + 3);
+        extendedBond[encodedBond.length] = (byte) (99 << 3 | 2);
+        extendedBond[encodedBond.length + 1] = 1;
+        Assert.assertEquals(sharkBond.getBondID(), SharkBondCodec.decode(extendedBond).getBondID());
+
+        for (int length = 0; length < encodedBond.length; length++) {
+            try {
+                SharkBondCodec.decode(encodedBond, 0, length);
+                // cut between two fields - fine as long as the id was read
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        // bonds stored with java serialization can still be read
+        ByteArrayOutputStream legacyBond = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(legacyBond)) {
+            out.writeObject(sharkBond);
+        }
+        Assert.assertTrue(legacyBond.size() > encodedBond.length);
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.byteArrayToSharkBond(legacyBond.toByteArray()).getBondID());
+    }
+
+    @Test
+    public void pooledSerializationMatchesStreamLayout() throws SharkException, IOException, ASAPException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+
+        // layout written with ASAPSerialization streams
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ASAPSerialization.writeByteArray(SharkBondSerializer.sharkBondToByteArray(sharkBond), content);
+        ASAPSerialization.writeCharSequenceParameter(ALICE_ID, content);
+        ASAPSerialization.writeCharSequenceSetParameter(receiver, content);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ASAPSerialization.writeByteParameter((byte) 0, expected);
+        ASAPSerialization.writeByteArray(content.toByteArray(), expected);
+
+        Assert.assertArrayEquals(expected.toByteArray(), SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, false, false, alicePKI, false));
+
+        // channel variant writes the same message
+        byte[] signedBond = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, false, alicePKI, false);
+        ByteArrayOutputStream channelBytes = new ByteArrayOutputStream();
+        int length = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, false, alicePKI, Channels.newChannel(channelBytes));
+        Assert.assertEquals(signedBond.length, length);
+        Assert.assertArrayEquals(signedBond, channelBytes.toByteArray());
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.deserializeCreditBond(signedBond, bobPKI).getBondID());
+    }
+
+    @Test
+    public void canonicalFormIsCachedUntilBondChanges() throws SharkCreditMoneyException, IOException, ASAPException {
+        SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBondCanonicalForm canonicalForm = SharkBondCanonicalForm.of(sharkBond);
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+        Assert.assertArrayEquals(
+                SharkBondSerializer.serializeCreditBond(sharkBond, ALICE_ID, receiver, true, true, null, true, 2),
+                canonicalForm.getSignedContent(ALICE_ID, BOB_ID));
+
+        // signatures are not signed
+        sharkBond.setCreditorSignature(new byte[]{1});
+        Assert.assertSame(canonicalForm, SharkBondCanonicalForm.of(sharkBond));
+        Assert.assertSame(canonicalForm.getSignedContent(ALICE_ID, BOB_ID),
+                SharkBondCanonicalForm.of(sharkBond).getSignedContent(ALICE_ID, BOB_ID));
+
+        sharkBond.setCreditorID(CLARA_ID);
+        SharkBondCanonicalForm changedForm = SharkBondCanonicalForm.of(sharkBond);
+        Assert.assertNotSame(canonicalForm, changedForm);
+        Assert.assertFalse(Arrays.equals(canonicalForm.getContentHash(), changedForm.getContentHash()));
+    }
+
+    @Test
+    public void envelopeIsReadWithoutDecryption() throws SharkException, IOException, ASAPException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+
+        SharkBondEnvelope signedEnvelope = SharkBondEnvelope.parse(SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, false, alicePKI, false));
+        Assert.assertTrue(signedEnvelope.isSigned());
+        Assert.assertFalse(signedEnvelope.isEncrypted());
+        Assert.assertEquals(ALICE_ID, signedEnvelope.getSender());
+        Assert.assertEquals(sharkBond.getBondID(), signedEnvelope.getBondID());
+        Assert.assertTrue(signedEnvelope.isFor(BOB_ID));
+        Assert.assertFalse(signedEnvelope.isFor(CLARA_ID));
+
+        byte[] encryptedBond = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, true, alicePKI, false);
+        SharkBondEnvelope encryptedEnvelope = SharkBondEnvelope.parse(encryptedBond);
+        Assert.assertTrue(encryptedEnvelope.isEncrypted());
+        Assert.assertTrue(encryptedEnvelope.isFor(BOB_ID));
+        Assert.assertNull(encryptedEnvelope.getBondID());
+
+        try {
+            SharkBondEnvelope.parse(Arrays.copyOf(encryptedBond, 7));
+            Assert.fail("truncated message accepted");
+        } catch (IOException e) {
+            // expected
+        }
+
+        SharkBondMessageHistory history = new SharkBondMessageHistory(1);
+        ByteBuffer signedDigest = SharkBondMessageHistory.digest(
+                SharkCreditMoneyComponent.SHARK_CREDIT_MONEY_SIGNED_BOND_URI, encryptedBond);
+        ByteBuffer annulDigest = SharkBondMessageHistory.digest(
+                SharkCreditMoneyComponent.SHARK_CREDIT_MONEY_ANNUL_BOND_URI, encryptedBond);
+        Assert.assertFalse(history.contains(signedDigest));
+        history.add(Collections.singletonList(signedDigest));
+        Assert.assertTrue(history.contains(signedDigest));
+        Assert.assertFalse(history.contains(annulDigest));
+        // oldest is forgotten
+        history.add(Collections.singletonList(annulDigest));
+        Assert.assertFalse(history.contains(signedDigest));
+    }
+
+    @Test
+    public void bondMessagesAreReadFromStream() throws SharkException, IOException, ASAPException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        SharkBond sharkBond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBond sharkBond2 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT + 1, false);
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+
+        ByteArrayOutputStream messages = new ByteArrayOutputStream();
+        SharkBondSerializer.serializeCreditBond(
+                sharkBond1, ALICE_ID, receiver, true, true, alicePKI, Channels.newChannel(messages));
+        SharkBondSerializer.serializeCreditBond(
+                sharkBond2, ALICE_ID, receiver, false, false, alicePKI, Channels.newChannel(messages));
+
+        // messages follow each other - each read stops at the end of its message
+        InputStream is = new ByteArrayInputStream(messages.toByteArray());
+        Assert.assertEquals(sharkBond1.getBondID(), SharkBondSerializer.deserializeCreditBond(is, bobPKI).getBondID());
+        Assert.assertEquals(BOND_AMOUNT + 1, SharkBondSerializer.deserializeCreditBond(is, bobPKI).getAmount());
+        Assert.assertEquals(-1, is.read());
+    }
+
+    @Test
+    public void batchCarriesBondsUnderOneSignature() throws SharkException, IOException, ASAPException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        List<SharkBond> sharkBonds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sharkBonds.add(new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT + i, false));
+        }
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+
+        byte[] batchMessage = SharkBondSerializer.serializeCreditBonds(
+                sharkBonds, ALICE_ID, receiver, true, true, alicePKI);
+        Assert.assertTrue(SharkBondEnvelope.parse(batchMessage).isFor(BOB_ID));
+
+        SharkBondBatch batch = SharkBondSerializer.deserializeCreditBonds(batchMessage, bobPKI);
+        Assert.assertTrue(batch.isVerified());
+        Assert.assertEquals(5, batch.getSharkBonds().size());
+        Assert.assertEquals(BOND_AMOUNT + 4, batch.getSharkBonds().get(4).getAmount());
+
+        // each bond on its own
+        for (int i = 0; i < 5; i++) {
+            SharkBondInclusionProof proof = batch.getInclusionProof(i);
+            Assert.assertTrue(proof.verify(batch.getSharkBonds().get(i), bobPKI));
+            Assert.assertFalse(proof.verify(batch.getSharkBonds().get((i + 1) % 5), bobPKI));
+        }
+
+        // signed by alice - but alice is no party of this bond
+        List<SharkBond> otherBonds = Collections.singletonList(
+                new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false));
+        batch = SharkBondSerializer.deserializeCreditBonds(SharkBondSerializer.serializeCreditBonds(
+                otherBonds, ALICE_ID, receiver, true, false, alicePKI), bobPKI);
+        Assert.assertFalse(batch.isVerified());
+        Assert.assertFalse(batch.getInclusionProof(0).verify(otherBonds.get(0), bobPKI));
+
+        // no single bond reader mistakes a batch for a bond
+        try {
+            SharkBondSerializer.deserializeCreditBond(batchMessage, bobPKI);
+            Assert.fail("batch read as single bond");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void largeMessagesAreCompressed() throws SharkException, IOException, ASAPException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        List<SharkBond> sharkBonds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            sharkBonds.add(new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT + i, false));
+        }
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+
+        byte[] batchMessage = SharkBondSerializer.serializeCreditBonds(
+                sharkBonds, ALICE_ID, receiver, true, false, alicePKI);
+        Assert.assertTrue((batchMessage[0] & SharkBond.COMPRESSED_MASK) != 0);
+        Assert.assertEquals(ALICE_ID, SharkBondEnvelope.parse(batchMessage).getSender().toString());
+        SharkBondBatch batch = SharkBondSerializer.deserializeCreditBonds(batchMessage, bobPKI);
+        Assert.assertTrue(batch.isVerified());
+        Assert.assertEquals(BOND_AMOUNT + 19, batch.getSharkBonds().get(19).getAmount());
+
+        byte[] encryptedMessage = SharkBondSerializer.serializeCreditBonds(
+                sharkBonds, ALICE_ID, receiver, true, true, alicePKI);
+        Assert.assertTrue((encryptedMessage[0] & SharkBond.COMPRESSED_MASK) != 0);
+        batch = SharkBondSerializer.deserializeCreditBonds(new ByteArrayInputStream(encryptedMessage), bobPKI);
+        Assert.assertTrue(batch.isVerified());
+        Assert.assertEquals(20, batch.getSharkBonds().size());
+
+        // small messages stay as they are
+        byte[] bondMessage = SharkBondSerializer.serializeCreditBond(
+                sharkBonds.get(0), ALICE_ID, receiver, true, false, alicePKI, false);
+        Assert.assertEquals(0, bondMessage[0] & SharkBond.COMPRESSED_MASK);
+
+        // recipients behind the first inflated part of the header
+        Set<CharSequence> manyReceivers = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            manyReceivers.add("PEER_" + i);
+        }
+        manyReceivers.add(BOB_ID);
+        byte[] manyReceiversMessage = SharkBondSerializer.serializeCreditBonds(
+                sharkBonds, ALICE_ID, manyReceivers, false, false, alicePKI);
+        Assert.assertTrue((manyReceiversMessage[0] & SharkBond.COMPRESSED_MASK) != 0);
+        Assert.assertTrue(SharkBondEnvelope.parse(manyReceiversMessage).isFor(BOB_ID));
+        Assert.assertTrue(SharkBondEnvelope.parse(manyReceiversMessage).isFor("PEER_999"));
+    }
+
+    @Test
+    public void compressionDictionaryIsFrozen() throws Exception {
+        // a new dictionary needs a new id - peers inflate with the dictionary named in the message
+        Assert.assertEquals(2, SharkBondCompression.DICTIONARY_ID);
+        StringBuilder hash = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(SharkBondCompression.DICTIONARY)) {
+            hash.append(String.format("%02x", b));
+        }
+        Assert.assertEquals("8c3acedd530760fe82a7121d7db2e282994950e0c32b24e2a6bc3f5e0d0f91f3", hash.toString());
+
+        // claims a huge body - the envelope inflates its header only
+        byte[] compressed = SharkBondCompression.compress(new byte[2048], 0, 2048);
+        compressed[1] = 0x03;
+        ByteBuffer message = ByteBuffer.allocate(5 + compressed.length);
+        message.put((byte) (SharkBond.COMPRESSED_MASK | SharkBond.SIGNED_MASK));
+        message.putInt(compressed.length);
+        message.put(compressed);
+        try {
+            SharkBondEnvelope.parse(message.array());
+            Assert.fail("malformed message parsed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void verificationsAreCachedPerSignatureAndKey() throws SharkException, IOException, ASAPSecurityException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBondHelper.signAsCreditor(alicePKI, sharkBond, false);
+        Assert.assertTrue(SharkBondHelper.isSignedAsCreditor(sharkBond, bobPKI));
+        Assert.assertTrue(SharkBondHelper.isSignedAsCreditor(sharkBond, bobPKI));
+
+        // other signature - no cache hit
+        byte[] signature = sharkBond.getCreditorSignature().clone();
+        signature[signature.length - 1] ^= 1;
+        sharkBond.setCreditorSignature(signature);
+        Assert.assertFalse(SharkBondHelper.isSignedAsCreditor(sharkBond, bobPKI));
+
+        SharkBondVerificationCache cache = new SharkBondVerificationCache(2);
+        byte[] data = {1, 2, 3};
+        cache.add(SharkBondVerificationCache.key(data, signature, ALICE_ID, alicePKI.getPublicKey()), ALICE_ID);
+        Assert.assertTrue(cache.contains(
+                SharkBondVerificationCache.key(data, signature, ALICE_ID, alicePKI.getPublicKey())));
+        // other key of the signer
+        Assert.assertFalse(cache.contains(
+                SharkBondVerificationCache.key(data, signature, ALICE_ID, bobPKI.getPublicKey())));
+        cache.add(SharkBondVerificationCache.key(data, signature, BOB_ID, bobPKI.getPublicKey()), BOB_ID);
+        cache.remove(ALICE_ID);
+        Assert.assertEquals(1, cache.size());
+
+        // bonds are looked up by content hash - same bond state, same key
+        byte[] contentHash = SharkBondCanonicalForm.of(sharkBond).getContentHash();
+        Assert.assertEquals(
+                SharkBondVerificationCache.bondKey(contentHash, ALICE_ID, BOB_ID, signature, ALICE_ID, alicePKI.getPublicKey()),
+                SharkBondVerificationCache.bondKey(SharkBondCanonicalForm.of(sharkBond).getContentHash(),
+                        ALICE_ID, BOB_ID, signature, ALICE_ID, alicePKI.getPublicKey()));
+        Assert.assertNotEquals(
+                SharkBondVerificationCache.bondKey(contentHash, ALICE_ID, BOB_ID, signature, ALICE_ID, alicePKI.getPublicKey()),
+                SharkBondVerificationCache.bondKey(contentHash, ALICE_ID, CLARA_ID, signature, ALICE_ID, alicePKI.getPublicKey()));
+        Assert.assertNotEquals(
+                SharkBondVerificationCache.key(contentHash, signature, ALICE_ID, alicePKI.getPublicKey()),
+                SharkBondVerificationCache.bondKey(contentHash, null, null, signature, ALICE_ID, alicePKI.getPublicKey()));
+    }
+
+    @Test
+    public void bondsAreVerifiedInParallel() throws SharkException, IOException, ASAPSecurityException, InterruptedException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        List<SharkBond> sharkBonds = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT + i, false);
+            SharkBondHelper.signAsCreditor(alicePKI, sharkBond, false);
+            if (i != 3) SharkBondHelper.signAsDebtor(bobPKI, sharkBond, false);
+            sharkBonds.add(sharkBond);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            List<SharkBondVerification> verifications = SharkBondHelper.verifyAll(sharkBonds, alicePKI, pool);
+            Assert.assertEquals(8, verifications.size());
+            for (int i = 0; i < 8; i++) {
+                Assert.assertSame(sharkBonds.get(i), verifications.get(i).getSharkBond());
+                Assert.assertTrue(verifications.get(i).isSignedAsCreditor());
+                Assert.assertEquals(i != 3, verifications.get(i).isSignedAsDebtor());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void sessionKeyIsReusedForEncryptedMessages() throws SharkException, IOException, ASAPException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        SharkBond sharkBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        Set<CharSequence> receiver = new HashSet<>();
+        receiver.add(BOB_ID);
+        Set<CharSequence> replyReceiver = new HashSet<>();
+        replyReceiver.add(ALICE_ID);
+
+        // off by default - peers of former releases read the message
+        byte[] legacyMessage = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, true, alicePKI, false);
+        Assert.assertEquals(SharkBond.SIGNED_MASK + SharkBond.ENCRYPTED_MASK, legacyMessage[0]);
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.deserializeCreditBond(legacyMessage, bobPKI).getBondID());
+        byte[] reply = SharkBondSerializer.serializeCreditBond(
+                sharkBond, BOB_ID, replyReceiver, true, true, bobPKI, false);
+        Assert.assertEquals(0, reply[0] & SharkBond.SESSION_KEY_MASK);
+
+        SharkCreditMoneyComponent aliceComponent =
+                (SharkCreditMoneyComponent) this.alicePeer.getComponent(SharkCreditMoneyComponent.class);
+        aliceComponent.setBehaviour(SharkCreditMoneyComponent.BEHAVIOUR_SHARK_MONEY_SESSION_KEYS, true);
+        byte[] firstMessage = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, true, alicePKI, false);
+        byte[] secondMessage = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, true, alicePKI, false);
+        Assert.assertTrue((firstMessage[0] & SharkBond.SESSION_KEY_MASK) != 0);
+        // same encrypted session key, content encrypted with a key of its own
+        byte[] firstSessionKey = readEncryptedSessionKey(firstMessage);
+        Assert.assertArrayEquals(firstSessionKey, readEncryptedSessionKey(secondMessage));
+        Assert.assertFalse(Arrays.equals(Arrays.copyOfRange(firstMessage, firstMessage.length - 32, firstMessage.length),
+                Arrays.copyOfRange(secondMessage, secondMessage.length - 32, secondMessage.length)));
+
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.deserializeCreditBond(firstMessage, bobPKI).getBondID());
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.deserializeCreditBond(secondMessage, bobPKI).getBondID());
+
+        // alice sent session keyed messages - bob answers with session keys as well
+        reply = SharkBondSerializer.serializeCreditBond(sharkBond, BOB_ID, replyReceiver, true, true, bobPKI, false);
+        Assert.assertTrue((reply[0] & SharkBond.SESSION_KEY_MASK) != 0);
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.deserializeCreditBond(reply, alicePKI).getBondID());
+
+        // new certificate - new session
+        aliceComponent.certificateChanged(BOB_ID);
+        byte[] thirdMessage = SharkBondSerializer.serializeCreditBond(
+                sharkBond, ALICE_ID, receiver, true, true, alicePKI, false);
+        Assert.assertFalse(Arrays.equals(firstSessionKey, readEncryptedSessionKey(thirdMessage)));
+        Assert.assertEquals(sharkBond.getBondID(),
+                SharkBondSerializer.deserializeCreditBond(thirdMessage, bobPKI).getBondID());
+    }
+
+    private static byte[] readEncryptedSessionKey(byte[] message) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(message, 5, message.length - 5));
+        dis.skipBytes(dis.readInt());
+        byte[] encryptedKey = new byte[dis.readInt()];
+        dis.readFully(encryptedKey);
+        return encryptedKey;
+    }
+
+    @Test
+    public void bondsAreSignedInOneGo() throws SharkException, IOException, ASAPSecurityException, InterruptedException {
+        this.setUpSharkBondFunctionalitiesScenario();
+        List<SharkBond> sharkBonds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sharkBonds.add(new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT + i, false));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SharkBondHelper.signAll(alicePKI, sharkBonds, true, pool);
+            SharkBondHelper.signAll(bobPKI, sharkBonds, false, pool);
+            for (SharkBond sharkBond : sharkBonds) {
+                Assert.assertTrue(SharkBondHelper.isSignedAsCreditor(sharkBond, bobPKI));
+                Assert.assertTrue(SharkBondHelper.isSignedAsDebtor(sharkBond, alicePKI));
+            }
+
+            // one signature for all bonds
+            List<SharkBondInclusionProof> proofs = SharkBondHelper.signAllByMerkleRoot(alicePKI, sharkBonds, pool);
+            Assert.assertEquals(5, proofs.size());
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(ALICE_ID, proofs.get(i).getSender());
+                Assert.assertTrue(proofs.get(i).verify(sharkBonds.get(i), bobPKI));
+            }
+            Assert.assertFalse(proofs.get(0).verify(sharkBonds.get(1), bobPKI));
+
+            // bob is not creditor - nothing signed
+            SharkBond otherBond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+            try {
+                SharkBondHelper.signAll(bobPKI, Arrays.asList(otherBond), true, pool);
+                Assert.fail("bob signed as creditor");
+            } catch (SharkCreditMoneyException e) {
+                Assert.assertNull(otherBond.getCreditorSignature());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     @Test
     public void bondTestUserSignaturesForCreditorAndDebtor() throws SharkException, IOException, ASAPSecurityException {
         this.setUpSharkBondFunctionalitiesScenario();
@@ -0,0 +1,561 @@
+package net.sharksystem.creditmoney;
+
+import net.sharksystem.SharkTestPeerFS;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static net.sharksystem.creditmoney.TestConstants.*;
+
+public class SharkBondStorageTests {
+    private static final String THIS_ROOT_DIRECTORY = ROOT_DIRECTORY + SharkBondStorageTests.class.getSimpleName() + "/";
+    private static final String LOG_FOLDER = THIS_ROOT_DIRECTORY + "bondLog";
+
+    @Test
+    public void addLookupAndDeleteByBondId() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBond bond2 = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBond bond3 = new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false);
+
+        storage.addSharkBond(bond1);
+        storage.addSharkBond(bond2);
+        storage.addSharkBond(bond3);
+
+        Assert.assertEquals(3, storage.getStorageSize());
+        Assert.assertEquals(0, storage.getIndexOfSharkBond(bond1.getBondID()));
+        Assert.assertEquals(2, storage.getIndexOfSharkBond(bond3.getBondID()));
+        Assert.assertSame(bond2, storage.getSharkBondByBondId(bond2.getBondID()));
+
+        // delete first bond - last bond takes its position
+        storage.deleteSharkBondById(bond1.getBondID());
+        Assert.assertEquals(2, storage.getStorageSize());
+        Assert.assertEquals(-1, storage.getIndexOfSharkBond(bond1.getBondID()));
+        Assert.assertSame(bond3, storage.getSharkBondAtIndex(0));
+        Assert.assertEquals(0, storage.getIndexOfSharkBond(bond3.getBondID()));
+        Assert.assertSame(bond2, storage.getSharkBondByBondId(bond2.getBondID()));
+    }
+
+    @Test
+    public void addOrUpdateReplacesBondWithSameId() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        SharkBond bond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        storage.addOrUpdateSharkBond(bond);
+
+        SharkBond copy = new InMemoSharkBond(bond);
+        storage.addOrUpdateSharkBond(copy);
+
+        Assert.assertEquals(1, storage.getStorageSize());
+        Assert.assertSame(copy, storage.getSharkBondByBondId(bond.getBondID()));
+    }
+
+    @Test(expected = SharkCreditMoneyException.class)
+    public void addExistingBondFails() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        SharkBond bond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        storage.addSharkBond(bond);
+        storage.addSharkBond(new InMemoSharkBond(bond));
+    }
+
+    @Test
+    public void queryByCreditorAndDebtor() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        storage.addSharkBond(new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false));
+        storage.addSharkBond(new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false));
+        storage.addSharkBond(new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false));
+        storage.addSharkBond(new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false));
+
+        Assert.assertEquals(3, storage.getSharkBondsByCreditor(ALICE_ID).size());
+        Assert.assertEquals(1, storage.getSharkBondsByCreditor(BOB_ID).size());
+        Assert.assertTrue(storage.getSharkBondsByCreditor(CLARA_ID).isEmpty());
+        Assert.assertEquals(2, storage.getSharkBondsByDebtor(CLARA_ID).size());
+        Assert.assertEquals(2, storage.getSharkBondsByCreditorAndDebtor(ALICE_ID, BOB_ID).size());
+        Assert.assertEquals(1, storage.getSharkBondsByCreditorAndDebtor(BOB_ID, CLARA_ID).size());
+        Assert.assertTrue(storage.getSharkBondsByCreditorAndDebtor(BOB_ID, ALICE_ID).isEmpty());
+    }
+
+    @Test
+    public void transferOfStoredBondUpdatesIndexes() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        SharkBond bond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+        storage.addSharkBond(bond);
+
+        // change creditor of the stored bond without updating the storage
+        bond.setCreditorID(CLARA_ID);
+
+        Assert.assertTrue(storage.getSharkBondsByCreditor(ALICE_ID).isEmpty());
+        Assert.assertTrue(storage.getSharkBondsByCreditor(CLARA_ID).contains(bond));
+        Assert.assertTrue(storage.getSharkBondsByCreditorAndDebtor(CLARA_ID, BOB_ID).contains(bond));
+
+        bond.setDebtorID(DAVID_ID);
+        Assert.assertTrue(storage.getSharkBondsByDebtor(BOB_ID).isEmpty());
+        Assert.assertTrue(storage.getSharkBondsByCreditorAndDebtor(CLARA_ID, DAVID_ID).contains(bond));
+
+        // a deleted bond is no longer indexed even if it changes later
+        storage.deleteSharkBondById(bond.getBondID());
+        bond.setCreditorID(ALICE_ID);
+        Assert.assertTrue(storage.getSharkBondsByCreditor(ALICE_ID).isEmpty());
+    }
+
+    @Test
+    public void compactBondKeepsAllFields() throws SharkCreditMoneyException {
+        SharkBond bond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+        bond.setTempCreditorID(CLARA_ID);
+        bond.setCreditorSignature(new byte[] {1, 2, 3});
+        bond.setBondIsAnnulledByDebtor();
+        SharkBond compactBond = CompactSharkBond.of(bond);
+        Assert.assertArrayEquals(SharkBondCodec.encode(bond), SharkBondCodec.encode(compactBond));
+
+        // no UUID
+        SharkBond otherBond = new InMemoSharkBond("bond 1", ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, 0,
+                null, null, true, true, false, false, null, null);
+        SharkBond compactOtherBond = CompactSharkBond.of(otherBond);
+        Assert.assertEquals("bond 1", compactOtherBond.getBondID());
+        Assert.assertSame(compactBond.getCreditorID(), compactOtherBond.getCreditorID());
+
+        // storage follows changes
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        storage.addSharkBond(compactBond);
+        compactBond.setCreditorID(DAVID_ID);
+        Assert.assertEquals(1, storage.getSharkBondsByCreditor(DAVID_ID).size());
+        Assert.assertTrue(storage.getSharkBondsByCreditor(ALICE_ID).isEmpty());
+    }
+
+    @Test
+    public void columnsFollowStorage() throws SharkCreditMoneyException {
+        SharkBondStorageImpl storage = new SharkBondStorageImpl();
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, 100, true);
+        SharkBond bond2 = new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, 30, true);
+        storage.addSharkBond(bond1);
+        storage.addSharkBond(bond2);
+        long now = System.currentTimeMillis();
+
+        SharkBondColumns columns = storage.getColumns();
+        Assert.assertEquals(130, columns.getExposure(null, null, BOND_UNIT, now));
+        Assert.assertEquals(0, columns.getExposure(null, null, "unknown unit", now));
+        Assert.assertEquals(-70, columns.getBalance(BOB_ID, BOND_UNIT, now));
+        Assert.assertEquals(Long.valueOf(-30), columns.getBalances(null, now).get(CLARA_ID));
+
+        // changes after columns were created
+        SharkBond bond3 = new InMemoSharkBond(CLARA_ID, ALICE_ID, BOND_UNIT, 5, true);
+        storage.addSharkBond(bond3);
+        bond1.setCreditorID(DAVID_ID);
+        Assert.assertEquals(-5, columns.getBalance(ALICE_ID, BOND_UNIT, now));
+        Assert.assertEquals(100, columns.getExposure(DAVID_ID, BOB_ID, null, now));
+
+        storage.deleteSharkBondById(bond1.getBondID());
+        bond2.setBondIsAnnulledByCreditor();
+        bond2.setBondIsAnnulledByDebtor();
+        storage.updateSharkBond(bond2);
+        Assert.assertEquals(2, columns.size());
+        Assert.assertEquals(5, columns.getExposure(null, null, null, now));
+        Assert.assertEquals(1, columns.countExpiring(now, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void logStorageSurvivesRestart() throws SharkCreditMoneyException {
+        SharkTestPeerFS.removeFolder(LOG_FOLDER);
+        SharkBondLogStorageImpl storage = new SharkBondLogStorageImpl(new File(LOG_FOLDER));
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBond bond2 = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBond bond3 = new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, true);
+        storage.addSharkBond(bond1);
+        storage.addSharkBond(bond2);
+        storage.addSharkBond(bond3);
+        bond1.setCreditorID(DAVID_ID);
+        storage.addOrUpdateSharkBond(bond1);
+        storage.deleteSharkBondById(bond2.getBondID());
+        storage.close();
+
+        // restart
+        storage = new SharkBondLogStorageImpl(new File(LOG_FOLDER));
+        Assert.assertEquals(2, storage.getStorageSize());
+        Assert.assertEquals(-1, storage.getIndexOfSharkBond(bond2.getBondID()));
+        Assert.assertEquals(DAVID_ID, storage.getSharkBondByBondId(bond1.getBondID()).getCreditorID());
+        Assert.assertEquals(1, storage.getSharkBondsByCreditorAndDebtor(BOB_ID, CLARA_ID).size());
+        storage.close();
+    }
+
+    @Test
+    public void logStorageCutsOffTornRecord() throws SharkCreditMoneyException, IOException {
+        SharkTestPeerFS.removeFolder(LOG_FOLDER);
+        SharkBondLogStorageImpl storage = new SharkBondLogStorageImpl(new File(LOG_FOLDER));
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBond bond2 = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false);
+        storage.addSharkBond(bond1);
+        storage.addSharkBond(bond2);
+        storage.close();
+
+        // simulate a crash in the middle of writing the second bond
+        File segment = new File(LOG_FOLDER).listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        storage = new SharkBondLogStorageImpl(new File(LOG_FOLDER));
+        Assert.assertEquals(1, storage.getStorageSize());
+        Assert.assertNotEquals(-1, storage.getIndexOfSharkBond(bond1.getBondID()));
+
+        // log continues after last complete record
+        storage.addSharkBond(bond2);
+        storage.close();
+        storage = new SharkBondLogStorageImpl(new File(LOG_FOLDER));
+        Assert.assertEquals(2, storage.getStorageSize());
+        storage.close();
+    }
+
+    @Test
+    public void logStorageCompactionAndCheckpoint() throws SharkCreditMoneyException {
+        SharkTestPeerFS.removeFolder(LOG_FOLDER);
+        File folder = new File(LOG_FOLDER);
+        // tiny segments, no background maintenance
+        SharkBondLogStorageImpl storage = new SharkBondLogStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBond bond2 = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBond bond3 = new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, true);
+        // each protocol step writes the bond again
+        for (int i = 0; i < 100; i++) {
+            storage.addOrUpdateSharkBond(bond1);
+            storage.addOrUpdateSharkBond(bond2);
+            storage.addOrUpdateSharkBond(bond3);
+        }
+        storage.deleteSharkBondById(bond2.getBondID());
+        int filesBefore = folder.list().length;
+        Assert.assertTrue(filesBefore > 2);
+
+        storage.compact();
+        Assert.assertTrue(folder.list().length < filesBefore);
+
+        bond1.setCreditorID(DAVID_ID);
+        storage.addOrUpdateSharkBond(bond1);
+        storage.close();
+
+        storage = new SharkBondLogStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+        Assert.assertEquals(2, storage.getStorageSize());
+        Assert.assertEquals(DAVID_ID, storage.getSharkBondByBondId(bond1.getBondID()).getCreditorID());
+
+        // snapshot + active segment only
+        storage.checkpoint();
+        Assert.assertEquals(2, folder.list().length);
+        storage.addOrUpdateSharkBond(bond2);
+        // changed in place - not written back
+        bond2.setDebtorID(DAVID_ID);
+        storage.close();
+
+        storage = new SharkBondLogStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+        Assert.assertEquals(3, storage.getStorageSize());
+        Assert.assertEquals(1, storage.getSharkBondsByCreditor(DAVID_ID).size());
+        Assert.assertTrue(storage.getSharkBondsByCreditorAndDebtor(ALICE_ID, CLARA_ID).isEmpty());
+        Assert.assertEquals(1, storage.getSharkBondsByCreditorAndDebtor(ALICE_ID, DAVID_ID).size());
+        storage.close();
+    }
+
+    @Test
+    public void archiveStorageReadsMappedSegments() throws SharkCreditMoneyException {
+        SharkTestPeerFS.removeFolder(LOG_FOLDER);
+        File folder = new File(LOG_FOLDER);
+        SharkBondLogStorageImpl storage = new SharkBondLogStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBond bond2 = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, true);
+        SharkBond bond3 = new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, true);
+        storage.addSharkBond(bond1);
+        storage.addSharkBond(bond2);
+        storage.checkpoint();
+        storage.addSharkBond(bond3);
+        for (int i = 0; i < 10; i++) {
+            storage.addOrUpdateSharkBond(bond3);
+        }
+        storage.close();
+
+        // snapshot and closed segments are mapped, active segment is on heap
+        SharkBondArchiveStorageImpl archiveStorage = new SharkBondArchiveStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+        Assert.assertEquals(3, archiveStorage.getStorageSize());
+        Assert.assertEquals(3, archiveStorage.getAllSharkBonds().size());
+        Assert.assertEquals(bond1.getDebtorID(), archiveStorage.getSharkBondByBondId(bond1.getBondID()).getDebtorID());
+        Assert.assertEquals(2, archiveStorage.getSharkBondsByCreditor(ALICE_ID).size());
+        Assert.assertEquals(2, archiveStorage.getSharkBondsByDebtor(CLARA_ID).size());
+        Assert.assertEquals(1, archiveStorage.getSharkBondsByCreditorAndDebtor(ALICE_ID, CLARA_ID).size());
+        Assert.assertEquals(1, archiveStorage.streamSharkBondsByCreditor(ALICE_ID).skip(1).count());
+        for (int i = 0; i < archiveStorage.getStorageSize(); i++) {
+            SharkBond sharkBond = archiveStorage.getSharkBondAtIndex(i);
+            Assert.assertEquals(i, archiveStorage.getIndexOfSharkBond(sharkBond.getBondID()));
+        }
+
+        // archived bonds are copies - written back they move to the heap
+        SharkBond archivedBond = archiveStorage.getSharkBondByBondId(bond1.getBondID());
+        archivedBond.setCreditorID(DAVID_ID);
+        archiveStorage.updateSharkBond(archivedBond);
+        Assert.assertSame(archivedBond, archiveStorage.getSharkBondByBondId(bond1.getBondID()));
+        Assert.assertEquals(1, archiveStorage.getSharkBondsByCreditor(ALICE_ID).size());
+        archiveStorage.deleteSharkBondById(bond2.getBondID());
+        Assert.assertEquals(2, archiveStorage.getStorageSize());
+        Assert.assertEquals(-1, archiveStorage.getIndexOfSharkBond(bond2.getBondID()));
+
+        // maintenance maps written bonds - they leave the heap
+        archiveStorage.checkpoint();
+        Assert.assertNotSame(archiveStorage.getSharkBondByBondId(bond1.getBondID()),
+                archiveStorage.getSharkBondByBondId(bond1.getBondID()));
+        Assert.assertEquals(2, archiveStorage.getStorageSize());
+        Assert.assertEquals(1, archiveStorage.getSharkBondsByCreditor(DAVID_ID).size());
+        SharkBond bond4 = new InMemoSharkBond(CLARA_ID, DAVID_ID, BOND_UNIT, BOND_AMOUNT, true);
+        archiveStorage.addOrUpdateSharkBond(bond3);
+        // last version of bond3 ends up in a closed segment
+        for (int i = 0; i < 100; i++) {
+            archiveStorage.addOrUpdateSharkBond(bond4);
+        }
+        Assert.assertSame(bond3, archiveStorage.getSharkBondByBondId(bond3.getBondID()));
+        archiveStorage.compact();
+        Assert.assertNotSame(archiveStorage.getSharkBondByBondId(bond3.getBondID()),
+                archiveStorage.getSharkBondByBondId(bond3.getBondID()));
+        Assert.assertEquals(3, archiveStorage.getStorageSize());
+        archiveStorage.close();
+
+        archiveStorage = new SharkBondArchiveStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+        Assert.assertEquals(3, archiveStorage.getStorageSize());
+        Assert.assertEquals(1, archiveStorage.getSharkBondsByCreditor(DAVID_ID).size());
+        Assert.assertTrue(archiveStorage.getSharkBondsByCreditor(ALICE_ID).isEmpty());
+        archiveStorage.close();
+    }
+
+    @Test
+    public void concurrentStorageKeepsParallelUpdates() throws InterruptedException, SharkCreditMoneyException {
+        this.assertKeepsParallelUpdates(new ConcurrentSharkBondStorageImpl());
+    }
+
+    @Test
+    public void logStorageKeepsParallelUpdates() throws InterruptedException, SharkCreditMoneyException {
+        SharkTestPeerFS.removeFolder(LOG_FOLDER);
+        File folder = new File(LOG_FOLDER);
+        // storage of a component with a bond folder - maintenance runs while bonds are written
+        SharkBondLogStorageImpl storage = new SharkBondLogStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 5, 4096);
+        this.assertKeepsParallelUpdates(storage);
+        storage.close();
+
+        storage = new SharkBondLogStorageImpl(folder,
+                SharkBondLogStorageImpl.SyncPolicy.BATCH, 100, 0, 0, 4096);
+        Assert.assertEquals(8 * 200 * 3 / 4, storage.getSharkBondsByCreditor(CLARA_ID).size());
+        Assert.assertTrue(storage.getSharkBondsByCreditor(ALICE_ID).isEmpty());
+        storage.close();
+    }
+
+    private void assertKeepsParallelUpdates(SharkBondStorage storage) throws InterruptedException {
+        int threads = 8;
+        int bondsPerThread = 200;
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int i = 0; i < bondsPerThread; i++) {
+                        SharkBond bond = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, true);
+                        storage.addOrUpdateSharkBond(bond);
+                        // protocol steps write the same bond again
+                        bond.setCreditorID(CLARA_ID);
+                        storage.addOrUpdateSharkBond(bond);
+                        if (i % 4 == 0) {
+                            storage.deleteSharkBondById(bond.getBondID());
+                        }
+                        storage.getSharkBondsByCreditor(CLARA_ID);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Assert.assertTrue(failures.toString(), failures.isEmpty());
+        int expectedSize = threads * bondsPerThread * 3 / 4;
+        Assert.assertEquals(expectedSize, storage.getStorageSize());
+        Assert.assertEquals(expectedSize, storage.getSharkBondsByCreditor(CLARA_ID).size());
+        Assert.assertTrue(storage.getSharkBondsByCreditor(ALICE_ID).isEmpty());
+        for (int i = 0; i < expectedSize; i++) {
+            SharkBond sharkBond = storage.getSharkBondAtIndex(i);
+            Assert.assertEquals(i, storage.getIndexOfSharkBond(sharkBond.getBondID()));
+        }
+    }
+
+    @Test
+    public void getAllSharkBondsReturnsSnapshot() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new SharkBondStorageImpl();
+        SharkBond bond1 = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBond bond2 = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false);
+        storage.addSharkBond(bond1);
+        storage.addSharkBond(bond2);
+
+        Collection<SharkBond> snapshot = storage.getAllSharkBonds();
+        // storage can be changed while iterating a snapshot
+        for (SharkBond sharkBond : snapshot) {
+            storage.deleteSharkBondById(sharkBond.getBondID());
+            storage.addSharkBond(new InMemoSharkBond(BOB_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false));
+        }
+
+        Assert.assertEquals(Arrays.asList(bond1, bond2), new ArrayList<>(snapshot));
+        Assert.assertEquals(2, storage.getStorageSize());
+        Assert.assertFalse(storage.getAllSharkBonds().contains(bond1));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotCannotChangeStorage() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new ConcurrentSharkBondStorageImpl();
+        storage.addSharkBond(new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false));
+        storage.getAllSharkBonds().clear();
+    }
+
+    @Test
+    public void streamQueriesArePageable() throws SharkCreditMoneyException {
+        SharkBondStorage[] storages = {new SharkBondStorageImpl(), new ConcurrentSharkBondStorageImpl()};
+        for (SharkBondStorage storage : storages) {
+            for (int i = 0; i < 25; i++) {
+                storage.addSharkBond(new InMemoSharkBond(ALICE_ID, i % 5 == 0 ? CLARA_ID : BOB_ID,
+                        BOND_UNIT, BOND_AMOUNT, false));
+            }
+
+            List<SharkBond> all = storage.streamSharkBondsByCreditor(ALICE_ID).collect(Collectors.toList());
+            Assert.assertEquals(25, all.size());
+            List<SharkBond> page = storage.streamSharkBondsByCreditor(ALICE_ID).skip(10).limit(10)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(all.subList(10, 20), page);
+
+            Assert.assertEquals(5, storage.streamSharkBondsByCreditorAndDebtor(ALICE_ID, CLARA_ID).count());
+            Assert.assertEquals(20, storage.streamSharkBondsByDebtor(BOB_ID).count());
+            Assert.assertEquals(25, storage.streamAllSharkBonds().count());
+
+            // storage can change while a stream is consumed
+            storage.streamSharkBondsByDebtor(CLARA_ID).forEach(sharkBond -> {
+                try {
+                    storage.deleteSharkBondById(sharkBond.getBondID());
+                } catch (SharkCreditMoneyException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            Assert.assertEquals(0, storage.streamSharkBondsByDebtor(CLARA_ID).count());
+
+            Iterator<SharkBond> sharkBonds = storage.streamSharkBondsByCreditor(ALICE_ID).iterator();
+            sharkBonds.next();
+            storage.addSharkBond(new InMemoSharkBond(ALICE_ID, DAVID_ID, BOND_UNIT, BOND_AMOUNT, false));
+            int read = 1;
+            for (; sharkBonds.hasNext(); read++) sharkBonds.next();
+            // new bond may or may not be read
+            Assert.assertTrue(read == 20 || read == 21);
+        }
+    }
+
+    @Test
+    public void queryCombinesIndexAndPredicates() throws SharkCreditMoneyException {
+        SharkBondStorage[] storages = {new SharkBondStorageImpl(), new ConcurrentSharkBondStorageImpl()};
+        for (SharkBondStorage storage : storages) {
+            for (int i = 0; i < 20; i++) {
+                storage.addSharkBond(new InMemoSharkBond(ALICE_ID, i % 2 == 0 ? BOB_ID : CLARA_ID,
+                        i % 4 == 0 ? "EUR" : BOND_UNIT, i, false));
+            }
+            SharkBond annulled = new InMemoSharkBond(BOB_ID, CLARA_ID, "EUR", 5, false);
+            annulled.setBondIsAnnulledByCreditor();
+            annulled.setBondIsAnnulledByDebtor();
+            storage.addSharkBond(annulled);
+            SharkBond signed = new InMemoSharkBond(BOB_ID, CLARA_ID, "EUR", 5, false);
+            signed.setCreditorSignature(new byte[] {1});
+            signed.setDebtorSignature(new byte[] {2});
+            storage.addSharkBond(signed);
+
+            // bonds 0, 4, 8, 12, 16 are EUR
+            Assert.assertEquals(7, storage.streamSharkBonds(new SharkBondQuery().unit("EUR")).count());
+            Assert.assertEquals(3, storage.streamSharkBonds(new SharkBondQuery()
+                    .creditor(ALICE_ID).unit("EUR").amountBetween(4, 12)).count());
+            Assert.assertEquals(5, storage.streamSharkBonds(new SharkBondQuery()
+                    .creditor(ALICE_ID).debtor(CLARA_ID).amountBetween(0, 9)).count());
+            Assert.assertEquals(1, storage.streamSharkBonds(new SharkBondQuery().annulled(true)).count());
+            Assert.assertEquals(21, storage.streamSharkBonds(new SharkBondQuery().annulled(false)).count());
+            Assert.assertSame(signed, storage.streamSharkBonds(new SharkBondQuery()
+                    .debtor(CLARA_ID).signed(true)).findFirst().get());
+            Assert.assertEquals(2, storage.streamSharkBonds(new SharkBondQuery()
+                    .where(sharkBond -> sharkBond.getAmount() > 17)).count());
+            Assert.assertEquals(0, storage.streamSharkBonds(new SharkBondQuery()
+                    .creditor(DAVID_ID).unit("EUR")).count());
+            // new bonds are valid for a year
+            Assert.assertEquals(0, storage.streamSharkBonds(new SharkBondQuery()
+                    .expiresBetween(0, System.currentTimeMillis())).count());
+            Assert.assertEquals(22, storage.streamSharkBonds(new SharkBondQuery()
+                    .expiresBetween(System.currentTimeMillis(), Long.MAX_VALUE)).count());
+        }
+    }
+
+    @Test
+    public void expirationSweeperReportsDueBonds() throws SharkCreditMoneyException {
+        SharkBondStorage storage = new ConcurrentSharkBondStorageImpl();
+        SharkBond dueSoon = new InMemoSharkBond(ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT, false);
+        SharkBond notDue = new InMemoSharkBond(ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT, false);
+        long day = 24 * 60 * 60 * 1000;
+        // expired while the peer was offline
+        SharkBond expiredBefore = new InMemoSharkBond("expiredBefore", ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT,
+                dueSoon.getExpirationDate() - 100 * day, null, null, false, false, false, false, null, null);
+        storage.addSharkBond(dueSoon);
+        storage.addSharkBond(notDue);
+        storage.addSharkBond(expiredBefore);
+        // changes of stored bonds move them in the expiration index
+        notDue.extendCreditBondValidity();
+
+        List<SharkBond> expiresSoon = new ArrayList<>();
+        List<SharkBond> expired = new ArrayList<>();
+        SharkBondExpirationListenerManager listenerManager = new SharkBondExpirationListenerManager();
+        listenerManager.addSharkBondExpirationListener(new SharkBondExpirationListener() {
+            @Override
+            public void sharkBondExpiresSoon(SharkBond bond) {
+                expiresSoon.add(bond);
+            }
+
+            @Override
+            public void sharkBondExpired(SharkBond bond) {
+                expired.add(bond);
+            }
+        });
+        SharkBondExpirationSweeper sweeper = new SharkBondExpirationSweeper(() -> storage, listenerManager, 10 * day);
+
+        // a year later: due bond expires within the warning period
+        long now = dueSoon.getExpirationDate() - 5 * day;
+        sweeper.sweep(now);
+        Assert.assertEquals(Collections.singletonList(dueSoon), expiresSoon);
+        Assert.assertEquals(Collections.singletonList(expiredBefore), expired);
+
+        // late - but deleted before the next sweep
+        SharkBond deletedLate = new InMemoSharkBond("deletedLate", ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT,
+                now - 2 * day, null, null, false, false, false, false, null, null);
+        storage.addSharkBond(deletedLate);
+        storage.deleteSharkBondById(deletedLate.getBondID());
+        // received after its range was swept
+        SharkBond receivedLate = new InMemoSharkBond("receivedLate", ALICE_ID, BOB_ID, BOND_UNIT, BOND_AMOUNT,
+                now - day, null, null, false, false, false, false, null, null);
+        storage.addSharkBond(receivedLate);
+        // a change other than the expiration date - not reported again
+        storage.updateSharkBond(new InMemoSharkBond("expiredBefore", ALICE_ID, CLARA_ID, BOND_UNIT, BOND_AMOUNT,
+                expiredBefore.getExpirationDate(), null, null, false, false, false, false, null, null));
+
+        sweeper.sweep(now + 6 * day);
+        Assert.assertEquals(Arrays.asList(expiredBefore, dueSoon, receivedLate), expired);
+        Assert.assertEquals(1, expiresSoon.size());
+        Assert.assertEquals(1, storage.streamSharkBonds(new SharkBondQuery()
+                .expiresBetween(now + 365 * day, Long.MAX_VALUE)).count());
+    }
+}